@@ -0,0 +1,432 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.SparseArray;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source.TsPidFilter;
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.UnknownHostException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collections;
+
+/**
+ * A tuner HAL which receives MPEG-TS over UDP or RTP from an IPTV headend instead of a tuner
+ * device. Each channel is received on its own UDP endpoint, which may be a multicast group, and
+ * the datagrams are read from a non-blocking {@link DatagramChannel}, so no native code is
+ * involved and the HAL works over the loopback interface as well.
+ *
+ * <p>The datagrams are put back in order and filtered by a {@link TsDatagramReceiver}. A reader
+ * which waits for data waits on a {@link Selector} for the next datagram. Unlike the PID filters
+ * of a DVB demux, the PID filters are applied in user space after each datagram is copied out of
+ * the socket, so every packet of the stream is received whichever PIDs are filtered.
+ *
+ * <p>Multicast groups are joined with {@link DatagramChannel#join}, which is only available from
+ * API level 24, so before that, which this app supports down to API level 21, a channel on a
+ * multicast endpoint fails to tune with an {@link IOException}. Unicast endpoints work on all API
+ * levels.
+ *
+ * <p>The endpoints of the channels are looked up by their frequencies in Hz, which are those of
+ * the scan tables. A frequency is looked up in the channel table of the preferences first, and is
+ * otherwise mapped to a UDP port on the configured address: the base port plus the frequency in
+ * MHz, e.g. port 5057 for the US channel 2 at 57.028615 MHz.
+ */
+public class NetworkTunerHal extends TunerHal {
+    private static final String TAG = "NetworkTunerHal";
+    private static final boolean DEBUG = false;
+
+    /** Maps a channel to the UDP endpoint which its stream is sent to. */
+    public interface EndpointResolver {
+        /**
+         * Returns the endpoint of the channel, or {@code null} if the channel is not available.
+         */
+        InetSocketAddress resolve(int frequency, String channelNumber);
+    }
+
+    // About 1.7 secs of a 19.39Mbps ATSC stream, to ride out the scheduling of the reader.
+    private static final int SOCKET_RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private static final Object sLock = new Object();
+    // @GuardedBy("sLock")
+    private static int sOpenDeviceCount;
+    // @GuardedBy("sLock")
+    private static long sNextDeviceId;
+
+    private final EndpointResolver mEndpointResolver;
+    private final String mInterfaceName;
+    private final int mMaxDeviceCount;
+    private final TsPidFilter mPidFilter = new TsPidFilter();
+    private final TsDatagramReceiver mReceiver = new TsDatagramReceiver(mPidFilter);
+
+    private long mDeviceId = -1;
+    private DatagramChannel mChannel;
+    private InetSocketAddress mEndpoint;
+    // Used by the reading thread, and woken up when the channel is closed.
+    private volatile Selector mSelector;
+    private DatagramChannel mRegisteredChannel;
+
+    /** Creates a network tuner which receives the channels configured in the preferences. */
+    public NetworkTunerHal(Context context) {
+        this(
+                context,
+                new ChannelMapResolver(
+                        TunerPreferences.getNetworkTunerAddress(context),
+                        TunerPreferences.getNetworkTunerBasePort(context),
+                        TunerPreferences.getNetworkTunerEndpoints(context)),
+                TunerPreferences.getNetworkTunerInterface(context),
+                TunerPreferences.getNetworkTunerCount(context));
+    }
+
+    /**
+     * Creates a network tuner.
+     *
+     * @param endpointResolver the mapping from the channels to their endpoints
+     * @param interfaceName the name of the network interface to join the multicast groups on, or
+     *     {@code null} to use the first one which is up
+     * @param maxDeviceCount the number of the network tuners which can be open at the same time
+     */
+    public NetworkTunerHal(
+            Context context,
+            EndpointResolver endpointResolver,
+            String interfaceName,
+            int maxDeviceCount) {
+        super(context);
+        mEndpointResolver = endpointResolver;
+        mInterfaceName = interfaceName;
+        mMaxDeviceCount = maxDeviceCount;
+    }
+
+    /** Returns the number of the network tuners, which is 0 if no headend is configured. */
+    public static int getNumberOfDevices(Context context) {
+        if (TextUtils.isEmpty(TunerPreferences.getNetworkTunerAddress(context))
+                && TextUtils.isEmpty(TunerPreferences.getNetworkTunerEndpoints(context))) {
+            return 0;
+        }
+        return TunerPreferences.getNetworkTunerCount(context);
+    }
+
+    @Override
+    protected boolean openFirstAvailable() {
+        if (DEBUG) Log.d(TAG, "openFirstAvailable");
+        synchronized (sLock) {
+            if (sOpenDeviceCount >= mMaxDeviceCount) {
+                Log.e(TAG, "There's no available network tuner");
+                return false;
+            }
+            sOpenDeviceCount++;
+            mDeviceId = sNextDeviceId++;
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (DEBUG) Log.d(TAG, "close");
+        if (mDeviceId >= 0) {
+            stopTune();
+            Selector selector = mSelector;
+            mSelector = null;
+            if (selector != null) {
+                try {
+                    selector.close();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to close the selector", e);
+                }
+            }
+            synchronized (sLock) {
+                sOpenDeviceCount--;
+            }
+            mDeviceId = -1;
+        }
+    }
+
+    @Override
+    protected boolean isDeviceOpen() {
+        return mDeviceId >= 0;
+    }
+
+    @Override
+    protected long getDeviceId() {
+        return mDeviceId;
+    }
+
+    @Override
+    public synchronized boolean tune(
+            int frequency, @ModulationType String modulation, String channelNumber) {
+        if (DEBUG) Log.d(TAG, "tune(" + frequency + ", " + channelNumber + ")");
+        if (!isDeviceOpen()) {
+            Log.e(TAG, "There's no available device");
+            return false;
+        }
+        InetSocketAddress endpoint = mEndpointResolver.resolve(frequency, channelNumber);
+        if (endpoint == null) {
+            Log.e(TAG, "There's no stream for frequency " + frequency);
+            return false;
+        }
+        mPidFilter.clear();
+        mPidFilter.add(PID_PAT);
+        mPidFilter.add(PID_ATSC_SI_BASE);
+        // When tuning to a new channel in the same stream, the socket and the buffered datagrams
+        // are kept and only the pid filters are reopened.
+        if (mChannel != null && endpoint.equals(mEndpoint)) {
+            return true;
+        }
+        closeChannel();
+        try {
+            mChannel = openChannel(endpoint);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to receive from " + endpoint, e);
+            return false;
+        }
+        mEndpoint = endpoint;
+        // Wakes up a reader which waits for the tune.
+        notifyAll();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean addPidFilter(int pid, @FilterType int filterType) {
+        if (DEBUG) Log.d(TAG, "addPidFilter(" + pid + ")");
+        if (!isDeviceOpen()) {
+            Log.e(TAG, "There's no available device");
+            return false;
+        }
+        if (pid >= 0 && pid <= 0x1fff) {
+            mPidFilter.add(pid);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void stopTune() {
+        if (DEBUG) Log.d(TAG, "stopTune");
+        if (mChannel != null) {
+            Log.i(TAG, "Stopped receiving from " + mEndpoint + ": " + getStats());
+        }
+        closeChannel();
+        mPidFilter.clear();
+        mEndpoint = null;
+    }
+
+    @Override
+    public void setHasPendingTune(boolean hasPendingTune) {
+        // Tuning only opens a socket, so there's no long running tune to abort.
+    }
+
+    @Override
+    public synchronized int readTsStream(byte[] javaBuffer, int javaBufferSize) {
+        if (mChannel == null) {
+            return 0;
+        }
+        return mReceiver.read(
+                mChannel, javaBuffer, javaBufferSize, SystemClock.elapsedRealtime());
+    }
+
+    @Override
+    protected void waitForData(long timeoutMs) throws InterruptedException {
+        DatagramChannel channel;
+        long waitMs;
+        synchronized (this) {
+            channel = mChannel;
+            if (channel == null) {
+                wait(timeoutMs);
+                return;
+            }
+            // A gap in the jitter buffer may time out before the next datagram comes.
+            waitMs =
+                    Math.min(
+                            timeoutMs,
+                            mReceiver.getGapTimeoutMs(SystemClock.elapsedRealtime()));
+        }
+        if (waitMs <= 0) {
+            return;
+        }
+        try {
+            Selector selector = mSelector;
+            if (selector == null) {
+                selector = Selector.open();
+                mSelector = selector;
+            }
+            if (channel != mRegisteredChannel) {
+                // The key of the previous channel was cancelled when the channel was closed.
+                channel.register(selector, SelectionKey.OP_READ);
+                mRegisteredChannel = channel;
+            }
+            selector.select(waitMs);
+            selector.selectedKeys().clear();
+        } catch (ClosedChannelException | ClosedSelectorException e) {
+            // Retuned or closed meanwhile.
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to wait for " + mEndpoint, e);
+            Thread.sleep(Math.min(waitMs, TsDatagramReceiver.MAX_JITTER_MS));
+        }
+    }
+
+    /** Returns the counters of the received datagrams, for debugging. */
+    public synchronized String getStats() {
+        return mReceiver.getStats();
+    }
+
+    private DatagramChannel openChannel(InetSocketAddress endpoint) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            DatagramSocket socket = channel.socket();
+            // Lets the tuners receive the groups which share a port.
+            socket.setReuseAddress(true);
+            socket.setReceiveBufferSize(SOCKET_RECEIVE_BUFFER_SIZE);
+            // Binding to the group address rather than to the wildcard address keeps the other
+            // groups on the same port out of the socket.
+            socket.bind(endpoint);
+            if (endpoint.getAddress().isMulticastAddress()) {
+                joinGroup(channel, endpoint.getAddress());
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    @TargetApi(Build.VERSION_CODES.N)
+    private void joinGroup(DatagramChannel channel, InetAddress group) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
+            throw new IOException("Multicast is not supported before API level 24");
+        }
+        NetworkInterface networkInterface;
+        if (mInterfaceName != null) {
+            networkInterface = NetworkInterface.getByName(mInterfaceName);
+        } else {
+            networkInterface = findMulticastInterface();
+        }
+        if (networkInterface == null) {
+            throw new IOException("There's no network interface to join " + group);
+        }
+        // The membership is dropped when the channel is closed.
+        channel.join(group, networkInterface);
+    }
+
+    private static NetworkInterface findMulticastInterface() throws IOException {
+        NetworkInterface loopback = null;
+        for (NetworkInterface networkInterface :
+                Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!networkInterface.isUp() || !networkInterface.supportsMulticast()) {
+                continue;
+            }
+            if (!networkInterface.isLoopback()) {
+                return networkInterface;
+            }
+            loopback = networkInterface;
+        }
+        return loopback;
+    }
+
+    private void closeChannel() {
+        if (mChannel != null) {
+            try {
+                mChannel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close the socket", e);
+            }
+            mChannel = null;
+            // Wakes up a reader which waits on the channel.
+            Selector selector = mSelector;
+            if (selector != null) {
+                selector.wakeup();
+            }
+        }
+        mReceiver.reset();
+    }
+
+    /**
+     * Maps the frequency of a channel to its endpoint in a table, or otherwise to a UDP port on a
+     * single address. The table lists {@code <frequency>=<host>:<port>} entries, which are
+     * separated by commas or white spaces.
+     */
+    private static class ChannelMapResolver implements EndpointResolver {
+        private static final int HZ_PER_MHZ = 1000000;
+
+        private final String mHost;
+        private final int mBasePort;
+        private final SparseArray<InetSocketAddress> mChannelTable = new SparseArray<>();
+
+        ChannelMapResolver(String host, int basePort, String channelTable) {
+            mHost = TextUtils.isEmpty(host) ? null : host;
+            mBasePort = basePort;
+            if (channelTable == null) {
+                return;
+            }
+            for (String entry : channelTable.trim().split("[,\\s]+")) {
+                int equals = entry.indexOf('=');
+                int colon = entry.lastIndexOf(':');
+                try {
+                    if (equals <= 0 || colon <= equals + 1) {
+                        throw new NumberFormatException();
+                    }
+                    int frequency = Integer.parseInt(entry.substring(0, equals));
+                    int port = Integer.parseInt(entry.substring(colon + 1));
+                    // Resolved when the channel is tuned.
+                    mChannelTable.put(
+                            frequency,
+                            InetSocketAddress.createUnresolved(
+                                    entry.substring(equals + 1, colon), port));
+                } catch (IllegalArgumentException e) {
+                    if (!entry.isEmpty()) {
+                        Log.w(TAG, "Ignored a malformed network tuner channel: " + entry);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public InetSocketAddress resolve(int frequency, String channelNumber) {
+            InetSocketAddress endpoint = mChannelTable.get(frequency);
+            if (endpoint != null) {
+                return resolve(endpoint.getHostString(), endpoint.getPort());
+            }
+            int port = mBasePort + (frequency + HZ_PER_MHZ / 2) / HZ_PER_MHZ;
+            if (mHost == null || frequency <= 0 || port > 0xffff) {
+                return null;
+            }
+            return resolve(mHost, port);
+        }
+
+        private static InetSocketAddress resolve(String host, int port) {
+            try {
+                return new InetSocketAddress(InetAddress.getByName(host), port);
+            } catch (UnknownHostException e) {
+                Log.e(TAG, "Unknown network tuner address " + host, e);
+                return null;
+            }
+        }
+    }
+}
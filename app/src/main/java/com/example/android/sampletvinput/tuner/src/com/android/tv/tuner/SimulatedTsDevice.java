@@ -0,0 +1,458 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner;
+
+import android.os.SystemClock;
+import android.util.Log;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source.TsFileReader;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source.TsPidFilter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A model of a tuner device which replays a corpus of TS files at a given bitrate, to run the
+ * streaming pipeline without a tuner. The stream advances with the clock whether it is read or
+ * not, like a broadcast, and becomes readable a transfer at a time, like from a USB tuner. The
+ * stream which is due but not read yet is held in a buffer of the size of a Linux DVB dvr buffer,
+ * and its oldest packets are dropped when the buffer overflows. The files are read through a
+ * {@link TsFileReader}, and looped at their end.
+ *
+ * <p>Faults can be injected at random times:
+ *
+ * <ul>
+ *   <li>Lock losses, during which nothing is read and the stream is lost.
+ *   <li>Stalls, during which nothing is read and the stream is held in the buffer.
+ *   <li>Packet errors, which flip a bit of a packet and set its transport error indicator, as a
+ *       demodulator does for a packet it fails to correct.
+ *   <li>Tune failures.
+ * </ul>
+ *
+ * <p>The model uses no framework class but the clock, so that it runs on a plain JVM as well.
+ */
+public class SimulatedTsDevice implements Closeable {
+    private static final String TAG = "SimulatedTsDevice";
+
+    private static final int TS_PACKET_SIZE = TsPidFilter.TS_PACKET_SIZE;
+    // The default size of the dvr buffer of the Linux DVB drivers.
+    private static final int DEVICE_BUFFER_SIZE = TS_PACKET_SIZE * 10 * 1024;
+    // About 5ms of a 19.39Mbps ATSC stream.
+    private static final int TRANSFER_SIZE = TS_PACKET_SIZE * 64;
+    private static final int TRANSPORT_ERROR_INDICATOR = 0x80;
+    private static final int TS_HEADER_SIZE = 4;
+    private static final long NANOS_PER_SECOND = 1000000000L;
+    private static final long NANOS_PER_MS = 1000000L;
+
+    /** The faults to inject. A fault which is not set is not injected. */
+    public static final class Faults {
+        public static final Faults NONE = new Builder().build();
+
+        private final long mLockLossIntervalMs;
+        private final long mLockLossDurationMs;
+        private final long mStallIntervalMs;
+        private final long mStallDurationMs;
+        private final double mPacketErrorRate;
+        private final double mTuneFailureRate;
+        private final long mSeed;
+
+        private Faults(Builder builder) {
+            mLockLossIntervalMs = builder.mLockLossIntervalMs;
+            mLockLossDurationMs = builder.mLockLossDurationMs;
+            mStallIntervalMs = builder.mStallIntervalMs;
+            mStallDurationMs = builder.mStallDurationMs;
+            mPacketErrorRate = builder.mPacketErrorRate;
+            mTuneFailureRate = builder.mTuneFailureRate;
+            mSeed = builder.mSeed;
+        }
+
+        @Override
+        public String toString() {
+            return "Faults{lockLoss="
+                    + mLockLossDurationMs
+                    + "ms every "
+                    + mLockLossIntervalMs
+                    + "ms, stall="
+                    + mStallDurationMs
+                    + "ms every "
+                    + mStallIntervalMs
+                    + "ms, packetErrorRate="
+                    + mPacketErrorRate
+                    + ", tuneFailureRate="
+                    + mTuneFailureRate
+                    + "}";
+        }
+
+        /** Builds the faults to inject. */
+        public static final class Builder {
+            private long mLockLossIntervalMs;
+            private long mLockLossDurationMs;
+            private long mStallIntervalMs;
+            private long mStallDurationMs;
+            private double mPacketErrorRate;
+            private double mTuneFailureRate;
+            private long mSeed;
+
+            /** Loses the lock for the given duration, every given interval on average. */
+            public Builder setLockLoss(long intervalMs, long durationMs) {
+                mLockLossIntervalMs = intervalMs;
+                mLockLossDurationMs = durationMs;
+                return this;
+            }
+
+            /** Stalls the reads for the given duration, every given interval on average. */
+            public Builder setStall(long intervalMs, long durationMs) {
+                mStallIntervalMs = intervalMs;
+                mStallDurationMs = durationMs;
+                return this;
+            }
+
+            /** Corrupts the given fraction of the packets which are read. */
+            public Builder setPacketErrorRate(double rate) {
+                mPacketErrorRate = rate;
+                return this;
+            }
+
+            /** Fails the given fraction of the tunes. */
+            public Builder setTuneFailureRate(double rate) {
+                mTuneFailureRate = rate;
+                return this;
+            }
+
+            /** Sets the seed of the random times of the faults, for a repeatable run. */
+            public Builder setSeed(long seed) {
+                mSeed = seed;
+                return this;
+            }
+
+            public Faults build() {
+                return new Faults(this);
+            }
+        }
+    }
+
+    private final List<File> mCorpus;
+    private final long mBytesPerSecond;
+    private final Faults mFaults;
+    private final Random mRandom;
+    private final TsPidFilter mPidFilter = new TsPidFilter();
+
+    private TsFileReader mFile;
+    // The time when the stream started, and the position in the stream up to which it is read or
+    // dropped.
+    private long mStartTimeNs;
+    private long mPosition;
+
+    private long mLockLostUntilNs;
+    private long mNextLockLossNs;
+    private long mStalledUntilNs;
+    private long mNextStallNs;
+    private long mPacketsUntilError;
+
+    private long mBytesRead;
+    private long mOverflowBytes;
+    private long mLockLossBytes;
+    private int mLockLossCount;
+    private int mStallCount;
+    private long mPacketErrorCount;
+    private int mTuneFailureCount;
+
+    /**
+     * Creates a device.
+     *
+     * @param corpus the TS files which the channels are streamed from
+     * @param bitrate the bitrate of the streams in bits per second
+     * @param faults the faults to inject
+     */
+    public SimulatedTsDevice(List<File> corpus, int bitrate, Faults faults) {
+        if (corpus.isEmpty()) {
+            throw new IllegalArgumentException("The corpus is empty");
+        }
+        if (bitrate < 8) {
+            throw new IllegalArgumentException("Invalid bitrate " + bitrate);
+        }
+        mCorpus = new ArrayList<>(corpus);
+        mBytesPerSecond = bitrate / 8;
+        mFaults = faults;
+        mRandom = new Random(faults.mSeed);
+    }
+
+    /** Returns the TS files in a directory, in the order of their names. */
+    public static List<File> listCorpus(File dir) {
+        File[] files = dir.listFiles();
+        List<File> corpus = new ArrayList<>();
+        if (files == null) {
+            return corpus;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            if (file.isFile() && file.getName().endsWith(".ts")) {
+                corpus.add(file);
+            }
+        }
+        return corpus;
+    }
+
+    /**
+     * Starts streaming a file of the corpus, which is picked by the frequency. The stream starts
+     * at the start of the file.
+     *
+     * @return {@code true} if the operation was successful, {@code false} otherwise
+     */
+    public boolean tune(int frequency) {
+        closeFile();
+        if (mFaults.mTuneFailureRate > 0 && mRandom.nextDouble() < mFaults.mTuneFailureRate) {
+            mTuneFailureCount++;
+            return false;
+        }
+        int size = mCorpus.size();
+        File file = mCorpus.get(((frequency % size) + size) % size);
+        try {
+            mFile = TsFileReader.open(file.getPath());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open " + file, e);
+            return false;
+        }
+        if (mFile.size() < TS_PACKET_SIZE) {
+            Log.e(TAG, file + " has no TS packet");
+            closeFile();
+            return false;
+        }
+        long nowNs = SystemClock.elapsedRealtimeNanos();
+        mStartTimeNs = nowNs;
+        mPosition = 0;
+        mLockLostUntilNs = 0;
+        mStalledUntilNs = 0;
+        mNextLockLossNs = nowNs + nextInterval(mFaults.mLockLossIntervalMs);
+        mNextStallNs = nowNs + nextInterval(mFaults.mStallIntervalMs);
+        mPacketsUntilError = nextPacketError();
+        return true;
+    }
+
+    /** Stops streaming. */
+    public void stopTune() {
+        closeFile();
+        mPidFilter.clear();
+    }
+
+    public void addPidFilter(int pid) {
+        mPidFilter.add(pid);
+    }
+
+    public void clearPidFilters() {
+        mPidFilter.clear();
+    }
+
+    /**
+     * Reads the packets which passed the PID filters and are due by now.
+     *
+     * @return the number of bytes read, which is {@code 0} if no packet is due
+     */
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (mFile == null) {
+            return 0;
+        }
+        long nowNs = SystemClock.elapsedRealtimeNanos();
+        updateFaults(nowNs);
+        long streamSize = (nowNs - mStartTimeNs) * mBytesPerSecond / NANOS_PER_SECOND;
+        long dueSize = streamSize - streamSize % TRANSFER_SIZE - mPosition;
+        if (nowNs < mLockLostUntilNs) {
+            mLockLossBytes += skip(dueSize);
+            return 0;
+        }
+        if (dueSize > DEVICE_BUFFER_SIZE) {
+            long overflowSize = skip(dueSize - DEVICE_BUFFER_SIZE);
+            mOverflowBytes += overflowSize;
+            dueSize -= overflowSize;
+        }
+        if (nowNs < mStalledUntilNs) {
+            return 0;
+        }
+        int readSize = 0;
+        while (readSize < length && dueSize >= TS_PACKET_SIZE) {
+            long scannedSize = mFile.getBytesScanned();
+            int result =
+                    mFile.read(
+                            mPidFilter,
+                            buffer,
+                            offset + readSize,
+                            length - readSize,
+                            (int) Math.min(dueSize, Integer.MAX_VALUE));
+            if (result < 0) {
+                mFile.rewind();
+                continue;
+            }
+            scannedSize = mFile.getBytesScanned() - scannedSize;
+            if (scannedSize == 0) {
+                // There's no room for the next packet which passes.
+                break;
+            }
+            mPosition += scannedSize;
+            dueSize -= scannedSize;
+            corruptPackets(buffer, offset + readSize, result);
+            readSize += result;
+        }
+        mBytesRead += readSize;
+        return readSize;
+    }
+
+    /**
+     * Returns how long it is until the next transfer can be read, which is {@code 0} if there's
+     * a transfer to read.
+     */
+    public long getTimeUntilReadableNs() {
+        if (mFile == null) {
+            return Long.MAX_VALUE;
+        }
+        long transferEnd = (mPosition / TRANSFER_SIZE + 1) * TRANSFER_SIZE;
+        long readableTimeNs =
+                Math.max(
+                        mStartTimeNs + transferEnd * NANOS_PER_SECOND / mBytesPerSecond,
+                        Math.max(mLockLostUntilNs, mStalledUntilNs));
+        return Math.max(0, readableTimeNs - SystemClock.elapsedRealtimeNanos());
+    }
+
+    /** Returns the time when the stream up to the position which was read was broadcast. */
+    public long getBroadcastTimeNs() {
+        return mStartTimeNs + mPosition * NANOS_PER_SECOND / mBytesPerSecond;
+    }
+
+    public long getBytesRead() {
+        return mBytesRead;
+    }
+
+    /** Returns the number of bytes of the stream which were dropped by the device buffer. */
+    public long getOverflowBytes() {
+        return mOverflowBytes;
+    }
+
+    /** Returns the number of bytes of the stream which were lost while the lock was lost. */
+    public long getLockLossBytes() {
+        return mLockLossBytes;
+    }
+
+    public int getLockLossCount() {
+        return mLockLossCount;
+    }
+
+    public int getStallCount() {
+        return mStallCount;
+    }
+
+    public long getPacketErrorCount() {
+        return mPacketErrorCount;
+    }
+
+    public int getTuneFailureCount() {
+        return mTuneFailureCount;
+    }
+
+    /** Returns the counters of the device, for debugging. */
+    public String getStats() {
+        return "read="
+                + mBytesRead
+                + ", overflow="
+                + mOverflowBytes
+                + ", lockLoss="
+                + mLockLossBytes
+                + " ("
+                + mLockLossCount
+                + " times), stalls="
+                + mStallCount
+                + ", packetErrors="
+                + mPacketErrorCount
+                + ", tuneFailures="
+                + mTuneFailureCount;
+    }
+
+    @Override
+    public void close() {
+        closeFile();
+    }
+
+    private void closeFile() {
+        if (mFile != null) {
+            try {
+                mFile.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to close the stream file", e);
+            }
+            mFile = null;
+        }
+    }
+
+    /** Skips the stream without reading it, looping the file at its end. */
+    private long skip(long size) {
+        long skippedSize = 0;
+        while (skippedSize < size) {
+            long result = mFile.skip(size - skippedSize);
+            if (result == 0) {
+                mFile.rewind();
+            }
+            skippedSize += result;
+        }
+        mPosition += skippedSize;
+        return skippedSize;
+    }
+
+    private void updateFaults(long nowNs) {
+        if (mFaults.mLockLossIntervalMs > 0 && nowNs >= mNextLockLossNs) {
+            mLockLostUntilNs = nowNs + mFaults.mLockLossDurationMs * NANOS_PER_MS;
+            mNextLockLossNs = mLockLostUntilNs + nextInterval(mFaults.mLockLossIntervalMs);
+            mLockLossCount++;
+        }
+        if (mFaults.mStallIntervalMs > 0 && nowNs >= mNextStallNs) {
+            mStalledUntilNs = nowNs + mFaults.mStallDurationMs * NANOS_PER_MS;
+            mNextStallNs = mStalledUntilNs + nextInterval(mFaults.mStallIntervalMs);
+            mStallCount++;
+        }
+    }
+
+    /** Returns a random interval of the given mean, as the faults come at random. */
+    private long nextInterval(long meanMs) {
+        return (long) (-Math.log(1 - mRandom.nextDouble()) * meanMs * NANOS_PER_MS);
+    }
+
+    /** Returns the number of the packets before the next one to corrupt. */
+    private long nextPacketError() {
+        if (mFaults.mPacketErrorRate <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return (long)
+                (Math.log(1 - mRandom.nextDouble()) / Math.log(1 - mFaults.mPacketErrorRate));
+    }
+
+    private void corruptPackets(byte[] buffer, int offset, int length) {
+        int packetCount = length / TS_PACKET_SIZE;
+        int index = 0;
+        while (mPacketsUntilError < packetCount - index) {
+            index += (int) mPacketsUntilError;
+            int packetOffset = offset + index * TS_PACKET_SIZE;
+            buffer[packetOffset + 1] |= TRANSPORT_ERROR_INDICATOR;
+            int bit = mRandom.nextInt((TS_PACKET_SIZE - TS_HEADER_SIZE) * 8);
+            buffer[packetOffset + TS_HEADER_SIZE + bit / 8] ^= (byte) (1 << (bit % 8));
+            mPacketErrorCount++;
+            index++;
+            mPacketsUntilError = nextPacketError();
+        }
+        mPacketsUntilError -= packetCount - index;
+    }
+}
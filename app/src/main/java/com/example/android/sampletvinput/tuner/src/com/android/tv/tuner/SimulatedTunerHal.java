@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner;
+
+import android.content.Context;
+import android.text.TextUtils;
+import android.util.Log;
+import com.android.tv.common.BuildConfig;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.SimulatedTsDevice.Faults;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A tuner HAL which streams from a {@link SimulatedTsDevice} instead of a tuner device, so that
+ * {@code TunerTsStreamer}, the event detection and the DVR can be run and loaded without one. Any
+ * number of the tuners can be open at the same time.
+ *
+ * <p>The tuners are only reported on debug builds, and only when there is no other tuner.
+ */
+public class SimulatedTunerHal extends TunerHal {
+    private static final String TAG = "SimulatedTunerHal";
+    private static final boolean DEBUG = false;
+
+    // The number of the tuners which is reported to the framework.
+    private static final int REPORTED_DEVICE_COUNT = 4;
+    private static final long NANOS_PER_MS = 1000000L;
+
+    private static final AtomicLong sNextDeviceId = new AtomicLong();
+
+    private static final Object sCorpusLock = new Object();
+    // The corpus path which sCorpusFileCount was counted for.
+    // @GuardedBy("sCorpusLock")
+    private static String sCorpusPath;
+    // @GuardedBy("sCorpusLock")
+    private static int sCorpusFileCount;
+
+    private final SimulatedTsDevice mDevice;
+    private long mDeviceId = -1;
+    private boolean mTuned;
+    private int mFrequency = -1;
+
+    /**
+     * Creates a simulated tuner which streams the corpus configured in the preferences at the
+     * bitrate of the paced TS files, without faults.
+     */
+    public SimulatedTunerHal(Context context) {
+        this(
+                context,
+                SimulatedTsDevice.listCorpus(
+                        new File(TunerPreferences.getSimulatedTunerCorpus(context))),
+                TunerPreferences.getFileStreamBitrate(context),
+                Faults.NONE);
+    }
+
+    /**
+     * Creates a simulated tuner.
+     *
+     * @param corpus the TS files which the channels are streamed from
+     * @param bitrate the bitrate of the streams in bits per second
+     * @param faults the faults to inject
+     */
+    public SimulatedTunerHal(Context context, List<File> corpus, int bitrate, Faults faults) {
+        super(context);
+        mDevice = new SimulatedTsDevice(corpus, bitrate, faults);
+    }
+
+    /**
+     * Returns the number of the simulated tuners to report, which is 0 on release builds or if no
+     * corpus is configured. The corpus is listed once per configured path.
+     */
+    public static int getNumberOfDevices(Context context) {
+        if (!BuildConfig.DEBUG) {
+            return 0;
+        }
+        String corpus = TunerPreferences.getSimulatedTunerCorpus(context);
+        if (TextUtils.isEmpty(corpus)) {
+            return 0;
+        }
+        synchronized (sCorpusLock) {
+            if (!corpus.equals(sCorpusPath)) {
+                sCorpusFileCount = SimulatedTsDevice.listCorpus(new File(corpus)).size();
+                sCorpusPath = corpus;
+            }
+            return sCorpusFileCount > 0 ? REPORTED_DEVICE_COUNT : 0;
+        }
+    }
+
+    @Override
+    protected boolean openFirstAvailable() {
+        if (DEBUG) Log.d(TAG, "openFirstAvailable");
+        mDeviceId = sNextDeviceId.getAndIncrement();
+        return true;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (DEBUG) Log.d(TAG, "close");
+        if (mDeviceId >= 0) {
+            stopTune();
+            mDevice.close();
+            mDeviceId = -1;
+        }
+    }
+
+    @Override
+    protected boolean isDeviceOpen() {
+        return mDeviceId >= 0;
+    }
+
+    @Override
+    protected long getDeviceId() {
+        return mDeviceId;
+    }
+
+    @Override
+    public synchronized boolean tune(
+            int frequency, @ModulationType String modulation, String channelNumber) {
+        if (DEBUG) Log.d(TAG, "tune(" + frequency + ")");
+        if (!isDeviceOpen()) {
+            Log.e(TAG, "There's no available device");
+            return false;
+        }
+        mDevice.clearPidFilters();
+        mDevice.addPidFilter(PID_PAT);
+        mDevice.addPidFilter(PID_ATSC_SI_BASE);
+        // As with a tuner device, tuning to a new channel in the same frequency only reopens the
+        // pid filters.
+        if (mTuned && mFrequency == frequency) {
+            return true;
+        }
+        mTuned = mDevice.tune(frequency);
+        mFrequency = mTuned ? frequency : -1;
+        // Wakes up a reader which waits for the tune.
+        notifyAll();
+        return mTuned;
+    }
+
+    @Override
+    public synchronized boolean addPidFilter(int pid, @FilterType int filterType) {
+        if (!isDeviceOpen()) {
+            Log.e(TAG, "There's no available device");
+            return false;
+        }
+        if (pid >= 0 && pid <= 0x1fff) {
+            mDevice.addPidFilter(pid);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void stopTune() {
+        if (DEBUG) Log.d(TAG, "stopTune");
+        if (mTuned) {
+            Log.i(TAG, "Stopped streaming frequency " + mFrequency + ": " + mDevice.getStats());
+        }
+        mDevice.stopTune();
+        mTuned = false;
+        mFrequency = -1;
+        notifyAll();
+    }
+
+    @Override
+    public void setHasPendingTune(boolean hasPendingTune) {
+        // A simulated tune completes at once.
+    }
+
+    @Override
+    protected synchronized void waitForData(long timeoutMs) throws InterruptedException {
+        // The device knows when its next transfer comes, so there's no need to poll it.
+        long waitNs = mTuned ? mDevice.getTimeUntilReadableNs() : Long.MAX_VALUE;
+        long waitMs = Math.min(timeoutMs, (waitNs + NANOS_PER_MS - 1) / NANOS_PER_MS);
+        if (waitMs > 0) {
+            wait(waitMs);
+        }
+    }
+
+    @Override
+    public synchronized int readTsStream(byte[] javaBuffer, int javaBufferSize) {
+        if (!mTuned) {
+            return 0;
+        }
+        try {
+            return mDevice.read(javaBuffer, 0, javaBufferSize);
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to read the stream", e);
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,365 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner;
+
+import android.util.Log;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source.TsPidFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Arrays;
+
+/**
+ * Receives MPEG-TS datagrams over UDP or RTP from a non-blocking {@link DatagramChannel}, and
+ * hands out the TS packets which pass a {@link TsPidFilter} in order.
+ *
+ * <p>RTP datagrams are put back in order by a small jitter buffer before their packets are
+ * handed out, and the sequence numbers which never arrive are counted as lost. Raw UDP datagrams
+ * are taken in the order of arrival. The datagrams are received into preallocated direct slots
+ * which are swapped into the jitter buffer, and the PID filters are applied to them in place, so
+ * nothing is allocated or copied per datagram. The filters are applied in user space, after the
+ * whole datagram is copied out of the socket, so the packets which are filtered out are copied
+ * out of the kernel as well. Not thread-safe.
+ */
+public class TsDatagramReceiver {
+    private static final String TAG = "TsDatagramReceiver";
+
+    private static final int TS_SYNC_BYTE = 0x47;
+    private static final int RTP_VERSION = 2;
+    private static final int RTP_HEADER_SIZE = 12;
+    private static final int SEQUENCE_MASK = 0xffff;
+
+    // A headend sends 7 TS packets in a datagram, which is 1328 bytes with the RTP header. A
+    // datagram which fills a slot is taken as truncated.
+    private static final int SLOT_SIZE = 2048;
+    // The number of datagrams the jitter buffer holds. Must be a power of 2.
+    private static final int REORDER_SLOTS = 64;
+    private static final int SLOT_MASK = REORDER_SLOTS - 1;
+    /** How long a gap in the sequence is waited for before it is taken as lost. */
+    public static final long MAX_JITTER_MS = 50;
+    // The sequence jumps which are taken as a loss or as a restart of the sender, from RFC 3550.
+    private static final int MAX_DROPOUT = 3000;
+    private static final int MAX_MISORDER = 100;
+
+    private final TsPidFilter mPidFilter;
+
+    // The jitter buffer. A datagram of the sequence number n is kept in the slot n % REORDER_SLOTS,
+    // with its position at the start of its TS packets. The sequence number of an empty slot is -1.
+    private final ByteBuffer[] mSlots = new ByteBuffer[REORDER_SLOTS];
+    private final int[] mSlotSequences = new int[REORDER_SLOTS];
+    private final long[] mSlotArrivalMs = new long[REORDER_SLOTS];
+    private int mBufferedCount;
+    // The sequence number to be handed out next, or -1 before the first datagram.
+    private int mExpectedSequence = -1;
+    private int mHighestSequence;
+    // The datagrams are received into the spare slot, which is swapped with the slot of its
+    // sequence number. A datagram which is too far ahead of the buffer stays there as pending,
+    // until the buffer catches up with it.
+    private ByteBuffer mSpare;
+    private boolean mHasPending;
+    private int mPendingSequence;
+    private long mPendingArrivalMs;
+
+    private long mDatagramCount;
+    private long mRtpDatagramCount;
+    private long mUdpDatagramCount;
+    private long mMalformedDatagramCount;
+    private long mLostCount;
+    private long mReorderedCount;
+    private long mLateCount;
+    private long mResyncCount;
+    private long mPassedBytes;
+
+    /** @param pidFilter the filter of the packets to hand out, which the caller may change */
+    public TsDatagramReceiver(TsPidFilter pidFilter) {
+        mPidFilter = pidFilter;
+        ByteBuffer slots = ByteBuffer.allocateDirect(SLOT_SIZE * (REORDER_SLOTS + 1));
+        for (int i = 0; i <= REORDER_SLOTS; ++i) {
+            slots.limit((i + 1) * SLOT_SIZE).position(i * SLOT_SIZE);
+            if (i < REORDER_SLOTS) {
+                mSlots[i] = slots.slice();
+            } else {
+                mSpare = slots.slice();
+            }
+        }
+        Arrays.fill(mSlotSequences, -1);
+    }
+
+    /** Drops the buffered datagrams, so that the next datagram starts a new sequence. */
+    public void reset() {
+        Arrays.fill(mSlotSequences, -1);
+        mBufferedCount = 0;
+        mExpectedSequence = -1;
+        mHasPending = false;
+    }
+
+    /**
+     * Receives the datagrams which are available in the channel without waiting, and copies the
+     * packets which can be handed out.
+     *
+     * @param channel the non-blocking channel to receive from
+     * @param buffer the buffer to copy the packets into
+     * @param length the largest number of bytes to copy
+     * @param nowMs the current time, to time out the gaps in the sequence
+     * @return the number of bytes copied
+     */
+    public int read(DatagramChannel channel, byte[] buffer, int length, long nowMs) {
+        int written = release(buffer, 0, length, nowMs, false);
+        boolean drained = false;
+        try {
+            while (written < length && !mHasPending) {
+                if (!receive(channel, nowMs)) {
+                    drained = true;
+                    break;
+                }
+                written += release(buffer, written, length - written, nowMs, false);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to receive", e);
+        }
+        if (drained) {
+            // A late datagram may still be in the socket until it is drained, so the gaps are
+            // only timed out afterwards.
+            written += release(buffer, written, length - written, nowMs, true);
+        }
+        return written;
+    }
+
+    /**
+     * Returns the time until a gap before the buffered datagrams times out, or {@link
+     * Long#MAX_VALUE} if there is no such gap.
+     */
+    public long getGapTimeoutMs(long nowMs) {
+        if (mBufferedCount == 0 || mSlotSequences[mExpectedSequence & SLOT_MASK] >= 0) {
+            return Long.MAX_VALUE;
+        }
+        int index = (mExpectedSequence + distanceToNextBuffered()) & SLOT_MASK;
+        return mSlotArrivalMs[index] + MAX_JITTER_MS - nowMs;
+    }
+
+    /** Returns the number of the sequence numbers which were skipped as lost. */
+    public long getLostCount() {
+        return mLostCount;
+    }
+
+    /** Returns the number of the datagrams which arrived before an earlier one. */
+    public long getReorderedCount() {
+        return mReorderedCount;
+    }
+
+    /** Returns the number of the datagrams which arrived after they were skipped, or twice. */
+    public long getLateCount() {
+        return mLateCount;
+    }
+
+    /** Returns the counters of the received datagrams, for debugging. */
+    public String getStats() {
+        return "datagrams="
+                + mDatagramCount
+                + " (rtp="
+                + mRtpDatagramCount
+                + ", udp="
+                + mUdpDatagramCount
+                + ", malformed="
+                + mMalformedDatagramCount
+                + "), lost="
+                + mLostCount
+                + ", reordered="
+                + mReorderedCount
+                + ", late="
+                + mLateCount
+                + ", resyncs="
+                + mResyncCount
+                + ", passedBytes="
+                + mPassedBytes
+                + ", skippedTsPackets="
+                + mPidFilter.getSkippedPacketCount();
+    }
+
+    /**
+     * Receives a datagram into the spare slot and puts it into the jitter buffer.
+     *
+     * @return {@code false} if there was no datagram to receive
+     */
+    private boolean receive(DatagramChannel channel, long nowMs) throws IOException {
+        ByteBuffer datagram = mSpare;
+        datagram.clear();
+        if (channel.receive(datagram) == null) {
+            return false;
+        }
+        datagram.flip();
+        mDatagramCount++;
+        int sequence = datagram.remaining() < SLOT_SIZE ? parseHeader(datagram) : -1;
+        if (sequence < 0) {
+            mMalformedDatagramCount++;
+            return true;
+        }
+        if (mExpectedSequence < 0) {
+            mExpectedSequence = sequence;
+            mHighestSequence = sequence;
+        }
+        int distance = (short) (sequence - mExpectedSequence);
+        if (distance >= 0 && distance < REORDER_SLOTS) {
+            if (mSlotSequences[sequence & SLOT_MASK] == sequence) {
+                mLateCount++;
+            } else {
+                place(sequence, nowMs);
+            }
+        } else if (distance < 0 && distance >= -MAX_MISORDER) {
+            // The sequence number was handed out already, or skipped as lost.
+            mLateCount++;
+        } else {
+            // The datagram is ahead of the buffer, or the sender restarted.
+            mHasPending = true;
+            mPendingSequence = sequence;
+            mPendingArrivalMs = nowMs;
+        }
+        return true;
+    }
+
+    /**
+     * Skips the header of a datagram.
+     *
+     * @return the sequence number of the datagram, or -1 if it is not a TS datagram
+     */
+    private int parseHeader(ByteBuffer datagram) {
+        int start = datagram.position();
+        int end = datagram.limit();
+        if (end == start) {
+            return -1;
+        }
+        int first = datagram.get(start) & 0xff;
+        if (first == TS_SYNC_BYTE) {
+            // Raw UDP has no sequence number, so it is taken in the order of arrival.
+            mUdpDatagramCount++;
+            return mExpectedSequence < 0 ? 0 : (mHighestSequence + 1) & SEQUENCE_MASK;
+        }
+        if ((first >>> 6) != RTP_VERSION || end - start < RTP_HEADER_SIZE) {
+            return -1;
+        }
+        int headerSize = RTP_HEADER_SIZE + 4 * (first & 0x0f);
+        if ((first & 0x10) != 0) {
+            if (end - start < headerSize + 4) {
+                return -1;
+            }
+            headerSize += 4 + 4 * (datagram.getShort(start + headerSize + 2) & 0xffff);
+        }
+        if ((first & 0x20) != 0) {
+            end -= datagram.get(end - 1) & 0xff;
+        }
+        if (start + headerSize > end) {
+            return -1;
+        }
+        datagram.limit(end);
+        datagram.position(start + headerSize);
+        mRtpDatagramCount++;
+        return datagram.getShort(start + 2) & SEQUENCE_MASK;
+    }
+
+    /** Swaps the spare slot, which holds a datagram, into the slot of its sequence number. */
+    private void place(int sequence, long arrivalMs) {
+        int index = sequence & SLOT_MASK;
+        ByteBuffer datagram = mSpare;
+        mSpare = mSlots[index];
+        mSlots[index] = datagram;
+        mSlotSequences[index] = sequence;
+        mSlotArrivalMs[index] = arrivalMs;
+        mBufferedCount++;
+        if ((short) (sequence - mHighestSequence) > 0) {
+            mHighestSequence = sequence;
+        } else if (sequence != mHighestSequence) {
+            mReorderedCount++;
+        }
+    }
+
+    /**
+     * Copies the packets which pass the PID filters out of the jitter buffer, in the order of the
+     * sequence numbers. A gap in the sequence is skipped at once if a datagram is pending, or
+     * once the datagram after it has waited for {@link #MAX_JITTER_MS} if {@code timeOutGaps} is
+     * {@code true}.
+     *
+     * @return the number of bytes copied
+     */
+    private int release(byte[] buffer, int offset, int length, long nowMs, boolean timeOutGaps) {
+        int written = 0;
+        while (mExpectedSequence >= 0) {
+            int index = mExpectedSequence & SLOT_MASK;
+            if (mSlotSequences[index] == mExpectedSequence) {
+                ByteBuffer datagram = mSlots[index];
+                int copied =
+                        mPidFilter.filter(datagram, buffer, offset + written, length - written);
+                written += copied;
+                mPassedBytes += copied;
+                if (datagram.remaining() >= TsPidFilter.TS_PACKET_SIZE) {
+                    // The buffer is full.
+                    break;
+                }
+                mSlotSequences[index] = -1;
+                mBufferedCount--;
+                advance(1);
+                continue;
+            }
+            if (mBufferedCount == 0) {
+                if (!mHasPending) {
+                    break;
+                }
+                int distance = (short) (mPendingSequence - mExpectedSequence);
+                if (distance >= 0 && distance <= MAX_DROPOUT) {
+                    mLostCount += distance;
+                } else {
+                    mResyncCount++;
+                }
+                mExpectedSequence = mPendingSequence;
+                mHighestSequence = mPendingSequence;
+                mHasPending = false;
+                place(mPendingSequence, mPendingArrivalMs);
+                continue;
+            }
+            int distance = distanceToNextBuffered();
+            if (!mHasPending
+                    && (!timeOutGaps
+                            || nowMs - mSlotArrivalMs[(mExpectedSequence + distance) & SLOT_MASK]
+                                    < MAX_JITTER_MS)) {
+                break;
+            }
+            mLostCount += distance;
+            advance(distance);
+        }
+        return written;
+    }
+
+    private int distanceToNextBuffered() {
+        for (int distance = 1; ; ++distance) {
+            int sequence = (mExpectedSequence + distance) & SEQUENCE_MASK;
+            if (mSlotSequences[sequence & SLOT_MASK] == sequence) {
+                return distance;
+            }
+        }
+    }
+
+    private void advance(int count) {
+        mExpectedSequence = (mExpectedSequence + count) & SEQUENCE_MASK;
+        if (mHasPending) {
+            int distance = (short) (mPendingSequence - mExpectedSequence);
+            if (distance >= 0 && distance < REORDER_SLOTS) {
+                mHasPending = false;
+                place(mPendingSequence, mPendingArrivalMs);
+            }
+        }
+    }
+}
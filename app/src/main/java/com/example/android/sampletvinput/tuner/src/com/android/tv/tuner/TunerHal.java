@@ -17,6 +17,7 @@
 package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.support.annotation.IntDef;
 import android.support.annotation.StringDef;
 import android.support.annotation.WorkerThread;
@@ -72,13 +73,15 @@ public abstract class TunerHal implements AutoCloseable {
     public static final int DELIVERY_SYSTEM_DVBT = 5;
     public static final int DELIVERY_SYSTEM_DVBT2 = 6;
 
-    @IntDef({TUNER_TYPE_BUILT_IN, TUNER_TYPE_USB, TUNER_TYPE_NETWORK})
+    @IntDef({TUNER_TYPE_BUILT_IN, TUNER_TYPE_USB, TUNER_TYPE_NETWORK, TUNER_TYPE_SIMULATED})
     @Retention(RetentionPolicy.SOURCE)
     public @interface TunerType {}
 
     public static final int TUNER_TYPE_BUILT_IN = 1;
     public static final int TUNER_TYPE_USB = 2;
     public static final int TUNER_TYPE_NETWORK = 3;
+    /** The simulated tuners of {@link SimulatedTunerHal}, which only debug builds report. */
+    public static final int TUNER_TYPE_SIMULATED = 4;
 
     protected static final int PID_PAT = 0;
     protected static final int PID_ATSC_SI_BASE = 0x1ffb;
@@ -95,6 +98,14 @@ public abstract class TunerHal implements AutoCloseable {
 
     private static final int BUILT_IN_TUNER_TYPE_LINUX_DVB = 1;
 
+    // The backoff of the reads from a device which can't be waited for. The interval starts short
+    // after data came, and doubles up to the interval at which a stream delivers data. Once no
+    // data came for a while, e.g. when the signal is lost, it grows further to save the wakeups.
+    private static final long MIN_POLL_INTERVAL_MS = 1;
+    private static final long MAX_POLL_INTERVAL_MS = 10;
+    private static final long IDLE_POLL_INTERVAL_MS = 100;
+    private static final long IDLE_THRESHOLD_MS = 1000;
+
     private static Integer sBuiltInTunerType;
 
     protected @DeliverySystemType int mDeliverySystemType;
@@ -102,6 +113,14 @@ public abstract class TunerHal implements AutoCloseable {
     private int mFrequency;
     private String mModulation;
 
+    private long mPollIntervalMs = MIN_POLL_INTERVAL_MS;
+    // The time since which the reads found no data, or 0 if the last read found data.
+    private long mUnderrunStartTimeMs;
+    // Written only by the reading thread.
+    private volatile long mUnderrunCount;
+    private volatile long mWakeupCount;
+    private volatile long mReadTimeoutCount;
+
     /*static {
         //if (!BuildConfig.NO_JNI_TEST) {
             System.loadLibrary("tunertvinput_jni");
@@ -121,6 +140,12 @@ public abstract class TunerHal implements AutoCloseable {
         if (DvbTunerHal.getNumberOfDevices(context) > 0) {
             if (DEBUG) Log.d(TAG, "Use DvbTunerHal");
             tunerHal = new DvbTunerHal(context);
+        } else if (NetworkTunerHal.getNumberOfDevices(context) > 0) {
+            if (DEBUG) Log.d(TAG, "Use NetworkTunerHal");
+            tunerHal = new NetworkTunerHal(context);
+        } else if (SimulatedTunerHal.getNumberOfDevices(context) > 0) {
+            if (DEBUG) Log.d(TAG, "Use SimulatedTunerHal");
+            tunerHal = new SimulatedTunerHal(context);
         }
         return tunerHal != null && tunerHal.openFirstAvailable() ? tunerHal : null;
     }
@@ -138,6 +163,14 @@ public abstract class TunerHal implements AutoCloseable {
             if (usbTunerCount > 0) {
                 return new Pair<>(TUNER_TYPE_USB, usbTunerCount);
             }
+            int networkTunerCount = NetworkTunerHal.getNumberOfDevices(context);
+            if (networkTunerCount > 0) {
+                return new Pair<>(TUNER_TYPE_NETWORK, networkTunerCount);
+            }
+            int simulatedTunerCount = SimulatedTunerHal.getNumberOfDevices(context);
+            if (simulatedTunerCount > 0) {
+                return new Pair<>(TUNER_TYPE_SIMULATED, simulatedTunerCount);
+            }
         }
         return new Pair<>(null, 0);
     }
@@ -252,6 +285,7 @@ public abstract class TunerHal implements AutoCloseable {
             mIsStreaming = true;
             return true;
         }
+        resetPollInterval();
         int timeout_ms =
                 modulation.equals(MODULATION_8VSB)
                         ? DEFAULT_VSB_TUNE_TIMEOUT_MS
@@ -314,6 +348,7 @@ public abstract class TunerHal implements AutoCloseable {
             }
             nativeStopTune(getDeviceId());
         }
+        resetPollInterval();
         mIsStreaming = false;
         mFrequency = -1;
         mModulation = null;
@@ -351,6 +386,81 @@ public abstract class TunerHal implements AutoCloseable {
 
     protected native int nativeWriteInBuffer(long deviceId, byte[] javaBuffer, int javaBufferSize);
 
+    /**
+     * Reads TS data like {@link #readTsStream(byte[], int)}, but waits for the data for up to the
+     * given time if there's none. The lock of this object is not held while waiting, so that the
+     * other calls are not blocked meanwhile.
+     *
+     * @param javaBuffer a buffer to write the video data in
+     * @param javaBufferSize the max amount of bytes to write in this buffer
+     * @param timeoutMs the longest time to wait for data
+     * @return the amount of bytes written in the buffer, which is 0 if no data came in time
+     */
+    @WorkerThread
+    public int readTsStream(byte[] javaBuffer, int javaBufferSize, long timeoutMs) {
+        int result = readTsStream(javaBuffer, javaBufferSize);
+        if (result > 0) {
+            resetPollInterval();
+            return result;
+        }
+        mUnderrunCount++;
+        long nowMs = SystemClock.elapsedRealtime();
+        if (mUnderrunStartTimeMs == 0) {
+            mUnderrunStartTimeMs = nowMs;
+        }
+        long deadlineMs = nowMs + timeoutMs;
+        while (isDeviceOpen()) {
+            long remainingMs = deadlineMs - SystemClock.elapsedRealtime();
+            if (remainingMs <= 0) {
+                break;
+            }
+            try {
+                waitForData(remainingMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return 0;
+            }
+            mWakeupCount++;
+            result = readTsStream(javaBuffer, javaBufferSize);
+            if (result > 0) {
+                resetPollInterval();
+                return result;
+            }
+        }
+        mReadTimeoutCount++;
+        return 0;
+    }
+
+    /**
+     * Waits until data can be read, for at most the given time. It may return early, since the
+     * data is checked again after it returns. A tuner HAL which can wait for its device should
+     * override this. The default implementation polls with an adaptive backoff.
+     */
+    @WorkerThread
+    protected void waitForData(long timeoutMs) throws InterruptedException {
+        Thread.sleep(Math.min(mPollIntervalMs, timeoutMs));
+        long maxIntervalMs =
+                SystemClock.elapsedRealtime() - mUnderrunStartTimeMs > IDLE_THRESHOLD_MS
+                        ? IDLE_POLL_INTERVAL_MS
+                        : MAX_POLL_INTERVAL_MS;
+        mPollIntervalMs = Math.min(mPollIntervalMs * 2, maxIntervalMs);
+    }
+
+    /** Returns the counters of the reads, for debugging. */
+    public String getReadStats() {
+        return "Tuner reads: underruns="
+                + mUnderrunCount
+                + ", wakeups="
+                + mWakeupCount
+                + ", timeouts="
+                + mReadTimeoutCount;
+    }
+
+    private void resetPollInterval() {
+        mPollIntervalMs = MIN_POLL_INTERVAL_MS;
+        mUnderrunStartTimeMs = 0;
+    }
+
     /**
      * Opens Linux DVB frontend device. This method is called from native JNI and used only for
      * DvbTunerHal.
@@ -30,11 +30,26 @@ public class TunerPreferences extends CommonPreferences {
     private static final String PREFS_KEY_SCANNED_CHANNEL_COUNT = "scanned_channel_count";
     private static final String PREFS_KEY_SCAN_DONE = "scan_done";
     private static final String PREFS_KEY_TRICKPLAY_EXPIRED_MS = "trickplay_expired_ms";
+    private static final String PREFS_KEY_TS_BUFFER_CEILING_MB = "ts_buffer_ceiling_mb";
+    private static final String PREFS_KEY_FILE_STREAM_PACING = "file_stream_pacing";
+    private static final String PREFS_KEY_FILE_STREAM_BITRATE = "file_stream_bitrate";
+    private static final String PREFS_KEY_NETWORK_TUNER_ADDRESS = "network_tuner_address";
+    private static final String PREFS_KEY_NETWORK_TUNER_BASE_PORT = "network_tuner_base_port";
+    private static final String PREFS_KEY_NETWORK_TUNER_ENDPOINTS = "network_tuner_endpoints";
+    private static final String PREFS_KEY_NETWORK_TUNER_INTERFACE = "network_tuner_interface";
+    private static final String PREFS_KEY_NETWORK_TUNER_COUNT = "network_tuner_count";
+    private static final String PREFS_KEY_SIMULATED_TUNER_CORPUS = "simulated_tuner_corpus";
 
     private static final String SHARED_PREFS_NAME =
             CommonConstants.BASE_PACKAGE + ".tuner.preferences";
 
     public static final int CHANNEL_DATA_VERSION_NOT_SET = -1;
+    // About 12 secs of a 19.39Mbps ATSC stream.
+    public static final int TS_BUFFER_CEILING_MB_DEFAULT = 30;
+    // The bitrate of an ATSC stream.
+    public static final int FILE_STREAM_BITRATE_DEFAULT = 19392658;
+    public static final int NETWORK_TUNER_COUNT_DEFAULT = 4;
+    public static final int NETWORK_TUNER_BASE_PORT_DEFAULT = 5000;
 
     protected static SharedPreferences getSharedPreferences(Context context) {
         return context.getSharedPreferences(SHARED_PREFS_NAME, Context.MODE_PRIVATE);
@@ -97,4 +112,163 @@ public class TunerPreferences extends CommonPreferences {
                 .putLong(TunerPreferences.PREFS_KEY_TRICKPLAY_EXPIRED_MS, timeMs)
                 .apply();
     }
+
+    /** Returns the largest size of the buffer of a TS streamer, in megabytes. */
+    public static synchronized int getTsBufferCeilingMb(Context context) {
+        SoftPreconditions.checkState(sInitialized);
+        return getSharedPreferences(context)
+                .getInt(
+                        TunerPreferences.PREFS_KEY_TS_BUFFER_CEILING_MB,
+                        TS_BUFFER_CEILING_MB_DEFAULT);
+    }
+
+    public static synchronized void setTsBufferCeilingMb(Context context, int sizeMb) {
+        SoftPreconditions.checkState(sInitialized);
+        getSharedPreferences(context)
+                .edit()
+                .putInt(TunerPreferences.PREFS_KEY_TS_BUFFER_CEILING_MB, sizeMb)
+                .apply();
+    }
+
+    /** Returns whether the TS files are streamed at the real-time rate of the broadcast. */
+    public static synchronized boolean getFileStreamPacing(Context context) {
+        SoftPreconditions.checkState(sInitialized);
+        return getSharedPreferences(context)
+                .getBoolean(TunerPreferences.PREFS_KEY_FILE_STREAM_PACING, false);
+    }
+
+    public static synchronized void setFileStreamPacing(Context context, boolean pacing) {
+        SoftPreconditions.checkState(sInitialized);
+        getSharedPreferences(context)
+                .edit()
+                .putBoolean(TunerPreferences.PREFS_KEY_FILE_STREAM_PACING, pacing)
+                .apply();
+    }
+
+    /** Returns the bitrate in bits per second of a paced TS file which carries no PCR. */
+    public static synchronized int getFileStreamBitrate(Context context) {
+        SoftPreconditions.checkState(sInitialized);
+        return getSharedPreferences(context)
+                .getInt(
+                        TunerPreferences.PREFS_KEY_FILE_STREAM_BITRATE,
+                        FILE_STREAM_BITRATE_DEFAULT);
+    }
+
+    public static synchronized void setFileStreamBitrate(Context context, int bitrate) {
+        SoftPreconditions.checkState(sInitialized);
+        getSharedPreferences(context)
+                .edit()
+                .putInt(TunerPreferences.PREFS_KEY_FILE_STREAM_BITRATE, bitrate)
+                .apply();
+    }
+
+    /**
+     * Returns the address which the network tuners receive the streams on, or {@code null} if
+     * there's no network tuner.
+     */
+    public static synchronized String getNetworkTunerAddress(Context context) {
+        SoftPreconditions.checkState(sInitialized);
+        return getSharedPreferences(context)
+                .getString(TunerPreferences.PREFS_KEY_NETWORK_TUNER_ADDRESS, null);
+    }
+
+    public static synchronized void setNetworkTunerAddress(Context context, String address) {
+        SoftPreconditions.checkState(sInitialized);
+        getSharedPreferences(context)
+                .edit()
+                .putString(TunerPreferences.PREFS_KEY_NETWORK_TUNER_ADDRESS, address)
+                .apply();
+    }
+
+    /**
+     * Returns the port which the frequencies in MHz are added to, to get the ports of the
+     * channels on the network tuner address.
+     */
+    public static synchronized int getNetworkTunerBasePort(Context context) {
+        SoftPreconditions.checkState(sInitialized);
+        return getSharedPreferences(context)
+                .getInt(
+                        TunerPreferences.PREFS_KEY_NETWORK_TUNER_BASE_PORT,
+                        NETWORK_TUNER_BASE_PORT_DEFAULT);
+    }
+
+    public static synchronized void setNetworkTunerBasePort(Context context, int port) {
+        SoftPreconditions.checkState(sInitialized);
+        getSharedPreferences(context)
+                .edit()
+                .putInt(TunerPreferences.PREFS_KEY_NETWORK_TUNER_BASE_PORT, port)
+                .apply();
+    }
+
+    /**
+     * Returns the table of the endpoints of the channels which the network tuners receive, as
+     * {@code <frequency in Hz>=<host>:<port>} entries separated by commas, or {@code null} if
+     * there's none.
+     */
+    public static synchronized String getNetworkTunerEndpoints(Context context) {
+        SoftPreconditions.checkState(sInitialized);
+        return getSharedPreferences(context)
+                .getString(TunerPreferences.PREFS_KEY_NETWORK_TUNER_ENDPOINTS, null);
+    }
+
+    public static synchronized void setNetworkTunerEndpoints(Context context, String endpoints) {
+        SoftPreconditions.checkState(sInitialized);
+        getSharedPreferences(context)
+                .edit()
+                .putString(TunerPreferences.PREFS_KEY_NETWORK_TUNER_ENDPOINTS, endpoints)
+                .apply();
+    }
+
+    /**
+     * Returns the name of the network interface to join the multicast groups on, or {@code null}
+     * to use the first one which is up.
+     */
+    public static synchronized String getNetworkTunerInterface(Context context) {
+        SoftPreconditions.checkState(sInitialized);
+        return getSharedPreferences(context)
+                .getString(TunerPreferences.PREFS_KEY_NETWORK_TUNER_INTERFACE, null);
+    }
+
+    public static synchronized void setNetworkTunerInterface(Context context, String name) {
+        SoftPreconditions.checkState(sInitialized);
+        getSharedPreferences(context)
+                .edit()
+                .putString(TunerPreferences.PREFS_KEY_NETWORK_TUNER_INTERFACE, name)
+                .apply();
+    }
+
+    /** Returns the number of the channels which can be received at the same time. */
+    public static synchronized int getNetworkTunerCount(Context context) {
+        SoftPreconditions.checkState(sInitialized);
+        return getSharedPreferences(context)
+                .getInt(
+                        TunerPreferences.PREFS_KEY_NETWORK_TUNER_COUNT,
+                        NETWORK_TUNER_COUNT_DEFAULT);
+    }
+
+    public static synchronized void setNetworkTunerCount(Context context, int count) {
+        SoftPreconditions.checkState(sInitialized);
+        getSharedPreferences(context)
+                .edit()
+                .putInt(TunerPreferences.PREFS_KEY_NETWORK_TUNER_COUNT, count)
+                .apply();
+    }
+
+    /**
+     * Returns the directory of the TS files which the simulated tuners stream, or {@code null} if
+     * the simulated tuners are not used.
+     */
+    public static synchronized String getSimulatedTunerCorpus(Context context) {
+        SoftPreconditions.checkState(sInitialized);
+        return getSharedPreferences(context)
+                .getString(TunerPreferences.PREFS_KEY_SIMULATED_TUNER_CORPUS, null);
+    }
+
+    public static synchronized void setSimulatedTunerCorpus(Context context, String path) {
+        SoftPreconditions.checkState(sInitialized);
+        getSharedPreferences(context)
+                .edit()
+                .putString(TunerPreferences.PREFS_KEY_SIMULATED_TUNER_CORPUS, path)
+                .apply();
+    }
 }
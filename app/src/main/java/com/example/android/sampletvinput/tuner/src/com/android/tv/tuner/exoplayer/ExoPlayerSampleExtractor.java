@@ -28,6 +28,7 @@ import android.util.Pair;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.exoplayer.audio.MpegTsDefaultAudioTrackRenderer;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.exoplayer.buffer.BufferManager;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.exoplayer.buffer.RecordingSampleBuffer;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.exoplayer.buffer.SamplePool;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.exoplayer.buffer.SimpleSampleBuffer;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.tvinput.PlaybackBufferListener;
 import com.google.android.exoplayer.MediaFormat;
@@ -83,6 +84,8 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
     private long mBaseSamplePts = Long.MIN_VALUE;
     private HashMap<Integer, Long> mLastExtractedPositionUsMap = new HashMap<>();
     private final List<Pair<Integer, SampleHolder>> mPendingSamples = new ArrayList<>();
+    // Holds the buffers of the pending samples and of the sample which is being written.
+    private final SamplePool mSamplePool = new SamplePool();
     private OnCompletionListener mOnCompletionListener;
     private Handler mOnCompletionListenerHandler;
     private IOException mError;
@@ -250,7 +253,6 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
                     mTransferListener);
             mDecoderInputBuffer =
                     new DecoderInputBuffer(DecoderInputBuffer.BUFFER_REPLACEMENT_MODE_NORMAL);
-            mSampleHolder = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
         }
 
         MediaFormat convertFormat(Format format) {
@@ -410,6 +412,10 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
                         mSampleSource.releaseSource(mSourceInfoRefreshListener);
                         mMediaPeriod = null;
                     }
+                    if (mSampleHolder != null) {
+                        mSamplePool.releaseSample(mSampleHolder);
+                        mSampleHolder = null;
+                    }
                     cleanUp();
                     mSourceReaderHandler.removeCallbacksAndMessages(null);
                     return true;
@@ -468,8 +474,8 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
                 if (!mVideoTrackMet) {
                     if (index != mVideoTrackIndex) {
                         SampleHolder sample =
-                                new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
-                        mSampleHolder.flags =
+                                mSamplePool.acquireSample(mDecoderInputBuffer.data.position());
+                        sample.flags =
                                 (mDecoderInputBuffer.isKeyFrame()
                                                 ? android.media.MediaExtractor.SAMPLE_FLAG_SYNC
                                                 : 0)
@@ -482,9 +488,8 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
                                                 : 0);
                         sample.timeUs = mDecoderInputBuffer.timeUs;
                         sample.size = mDecoderInputBuffer.data.position();
-                        //sample.ensureSpaceForWrite(sample.size);
                         mDecoderInputBuffer.flip();
-                        sample.data.position(0);
+                        sample.data.clear();
                         sample.data.put(mDecoderInputBuffer.data);
                         sample.data.flip();
                         mPendingSamples.add(new Pair<>(index, sample));
@@ -499,6 +504,8 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
                         if (pair.second.timeUs >= mBaseSamplePts) {
                             mSampleBuffer.writeSample(pair.first, pair.second, conditionVariable);
                         }
+                        // The sample buffers copy the samples, so the buffers can be reused.
+                        mSamplePool.releaseSample(pair.second);
                     }
                     mPendingSamples.clear();
                 } else {
@@ -508,6 +515,13 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
                 }
             }
             // Copy the decoder input to the sample holder.
+            int size = mDecoderInputBuffer.data.position();
+            if (mSampleHolder == null || mSampleHolder.data.capacity() < size) {
+                if (mSampleHolder != null) {
+                    mSamplePool.releaseSample(mSampleHolder);
+                }
+                mSampleHolder = mSamplePool.acquireSample(size);
+            }
             mSampleHolder.data.clear();
             mSampleHolder.flags =
                     (mDecoderInputBuffer.isKeyFrame()
@@ -517,10 +531,8 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
                                     ? com.google.android.exoplayer2.C.BUFFER_FLAG_DECODE_ONLY
                                     : 0);
             mSampleHolder.timeUs = mDecoderInputBuffer.timeUs;
-            mSampleHolder.size = mDecoderInputBuffer.data.position();
-            //mSampleHolder.ensureSpaceForWrite(mSampleHolder.size);
+            mSampleHolder.size = size;
             mDecoderInputBuffer.flip();
-            mSampleHolder.data.position(0);
             mSampleHolder.data.put(mDecoderInputBuffer.data);
             mSampleHolder.data.flip();
             long writeStartTimeNs = SystemClock.elapsedRealtimeNanos();
@@ -622,6 +634,11 @@ public class ExoPlayerSampleExtractor implements SampleExtractor {
         } catch (IOException e) {
             result = false;
         }
+        for (Pair<Integer, SampleHolder> pair : mPendingSamples) {
+            mSamplePool.releaseSample(pair.second);
+        }
+        mPendingSamples.clear();
+        mSamplePool.trim();
         notifyCompletionIfNeeded(result);
         setOnCompletionListener(null, null);
     }
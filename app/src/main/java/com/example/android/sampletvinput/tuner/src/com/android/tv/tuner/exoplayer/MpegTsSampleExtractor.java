@@ -216,6 +216,11 @@ public final class MpegTsSampleExtractor implements SampleExtractor {
         mVideoTrackIndex = -1;
         mCea708TextTrackIndex = -1;
         mCea708TextTrackSelected = false;
+        for (SampleHolder holder : mPendingCcSamples) {
+            mCcSamplePool.releaseSample(holder);
+        }
+        mPendingCcSamples.clear();
+        mCcSamplePool.trim();
     }
 
     @Override
@@ -617,7 +617,7 @@ public class BufferManager {
     }
 
     /** Adds a disk write sample size to calculate the average disk write bandwidth. */
-    public void addWriteStat(long size, long timeNs) {
+    public synchronized void addWriteStat(long size, long timeNs) {
         if (size >= mMinSampleSizeForSpeedCheck) {
             mTotalWriteSize += size;
             mTotalWriteTimeNs += timeNs;
@@ -628,7 +628,7 @@ public class BufferManager {
      * Returns if the average disk write bandwidth is slower than threshold {@code
      * MINIMUM_DISK_WRITE_SPEED_MBPS}.
      */
-    public boolean isWriteSlow() {
+    public synchronized boolean isWriteSlow() {
         if (mTotalWriteSize < MINIMUM_WRITE_SIZE_FOR_SPEED_CHECK) {
             return false;
         }
@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.exoplayer.buffer;
+
+/**
+ * A histogram of latencies with power of two buckets in microseconds. Recording does not allocate,
+ * so that it can be done for every sample.
+ */
+final class LatencyHistogram {
+    // The last bucket holds latencies of 2^30us (~18 minutes) and longer.
+    private static final int BUCKET_COUNT = 31;
+
+    private final String mName;
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mTotalUs;
+    private long mMaxUs;
+
+    LatencyHistogram(String name) {
+        mName = name;
+    }
+
+    /** Records a latency in nanoseconds. */
+    synchronized void record(long latencyNs) {
+        long latencyUs = Math.max(0, latencyNs / 1000);
+        int bucket = 64 - Long.numberOfLeadingZeros(latencyUs);
+        ++mCounts[Math.min(bucket, BUCKET_COUNT - 1)];
+        ++mCount;
+        mTotalUs += latencyUs;
+        mMaxUs = Math.max(mMaxUs, latencyUs);
+    }
+
+    /**
+     * Returns the upper bound of the bucket which holds the given percentile in microseconds, or
+     * {@code 0} if nothing is recorded.
+     */
+    synchronized long getPercentileUs(double percentile) {
+        long rank = (long) Math.ceil(mCount * percentile / 100);
+        long count = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            count += mCounts[i];
+            if (count >= rank && count > 0) {
+                return Math.min((1L << i) - 1, mMaxUs);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return mName
+                + ": n="
+                + mCount
+                + " avg="
+                + (mCount == 0 ? 0 : mTotalUs / mCount)
+                + "us p50<="
+                + getPercentileUs(50)
+                + "us p99<="
+                + getPercentileUs(99)
+                + "us max="
+                + mMaxUs
+                + "us";
+    }
+}
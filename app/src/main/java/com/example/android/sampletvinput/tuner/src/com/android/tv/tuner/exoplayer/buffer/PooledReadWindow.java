@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.exoplayer.buffer;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * A copy of a region of a {@link SampleChunk}, which serves consecutive records and is refilled
+ * only when a record crosses its end. The region is read into a direct buffer from a pool which is
+ * shared by all the readers. The pool holds a fixed number of buffers, and a window which finds
+ * none free is not filled, so the memory of the windows is bounded. The region is read rather
+ * than mapped, since a mapping can't be unmapped through a public API before it is garbage
+ * collected, and would keep the blocks of a deleted chunk allocated until then.
+ *
+ * <p>A window is used by one reader thread.
+ */
+final class PooledReadWindow {
+    private static final int WINDOW_SIZE = 512 * 1024;
+    // Regions smaller than this are not read, since a window near the end of the written data
+    // would be refilled for almost every record while the reader trails the writer.
+    private static final int MIN_WINDOW_SIZE = 128 * 1024;
+    private static final int MAX_BUFFER_COUNT = 16;
+
+    private static final ArrayDeque<ByteBuffer> sFreeBuffers = new ArrayDeque<>();
+    // @GuardedBy("sFreeBuffers")
+    private static int sBufferCount;
+
+    private ByteBuffer mBuffer;
+    // The channel which the buffer holds a region of, or null if it holds none.
+    private FileChannel mChannel;
+    // The chunk offset where the window starts.
+    private long mStart;
+    private long mReadCount;
+
+    /**
+     * Returns the buffer which holds the given range of the chunk, or {@code null} if the range is
+     * too close to the end of the written data or no buffer is free. The range starts at {@link
+     * #getStart} in the returned buffer, and the limit of the buffer is the end of the region.
+     *
+     * @param channel the channel of the chunk
+     * @param offset the offset where the range starts
+     * @param length the length of the range
+     * @param endOffset the end of the written data, which the range should not exceed
+     * @throws IOException
+     */
+    ByteBuffer fill(FileChannel channel, long offset, int length, long endOffset)
+            throws IOException {
+        if (mChannel == channel
+                && offset >= mStart
+                && offset + length <= mStart + mBuffer.limit()) {
+            return mBuffer;
+        }
+        int size = (int) Math.min(WINDOW_SIZE, endOffset - offset);
+        if (size < length || size < MIN_WINDOW_SIZE) {
+            return null;
+        }
+        if (mBuffer == null) {
+            mBuffer = acquireBuffer();
+            if (mBuffer == null) {
+                return null;
+            }
+        }
+        mChannel = null;
+        mBuffer.clear();
+        mBuffer.limit(size);
+        while (mBuffer.hasRemaining()) {
+            // A positional read, which leaves the position of the channel as it is.
+            int read = channel.read(mBuffer, offset + mBuffer.position());
+            ++mReadCount;
+            if (read < 0) {
+                throw new EOFException("Region at " + offset + " is truncated");
+            }
+        }
+        mBuffer.flip();
+        mChannel = channel;
+        mStart = offset;
+        return mBuffer;
+    }
+
+    /** Returns the chunk offset where the last returned region starts. */
+    long getStart() {
+        return mStart;
+    }
+
+    /** Returns the number of reads made by this window. */
+    long getReadCount() {
+        return mReadCount;
+    }
+
+    /** Returns the buffer to the pool. */
+    void release() {
+        mChannel = null;
+        if (mBuffer != null) {
+            synchronized (sFreeBuffers) {
+                sFreeBuffers.offerLast(mBuffer);
+            }
+            mBuffer = null;
+        }
+    }
+
+    private static ByteBuffer acquireBuffer() {
+        synchronized (sFreeBuffers) {
+            ByteBuffer buffer = sFreeBuffers.pollLast();
+            if (buffer != null || sBufferCount >= MAX_BUFFER_COUNT) {
+                return buffer;
+            }
+            ++sBufferCount;
+        }
+        return ByteBuffer.allocateDirect(WINDOW_SIZE);
+    }
+}
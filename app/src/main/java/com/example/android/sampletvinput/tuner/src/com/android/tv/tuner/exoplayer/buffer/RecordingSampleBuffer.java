@@ -62,7 +62,6 @@ public class RecordingSampleBuffer
     /** The duration of a {@link SampleChunk} for recordings. */
     static final long RECORDING_CHUNK_DURATION_US = MIN_SEEK_DURATION_US * 1200; // 10 minutes
 
-    private static final long BUFFER_WRITE_TIMEOUT_MS = 10 * 1000; // 10 seconds
     private static final long BUFFER_NEEDED_US =
             1000L * Math.max(MpegTsPlayer.MIN_BUFFER_MS, MpegTsPlayer.MIN_REBUFFER_MS);
 
@@ -73,7 +72,8 @@ public class RecordingSampleBuffer
     private int mTrackCount;
     private boolean[] mTrackSelected;
     private List<SampleQueue> mReadSampleQueues;
-    private final SamplePool mSamplePool = new SamplePool();
+    // Direct buffers are read from and written to the chunk files without intermediate copies.
+    private final SamplePool mSamplePool = new SamplePool(true);
     private long mLastBufferedPositionUs = C.UNKNOWN_TIME_US;
     private long mCurrentPlaybackPositionUs = 0;
 
@@ -160,12 +160,8 @@ public class RecordingSampleBuffer
     @Override
     public void writeSample(int index, SampleHolder sample, ConditionVariable conditionVariable)
             throws IOException {
-        mSampleChunkIoHelper.writeSample(index, sample, conditionVariable);
-
-        if (!conditionVariable.block(BUFFER_WRITE_TIMEOUT_MS)) {
-            Log.e(TAG, "Error: Serious delay on writing buffer");
-            conditionVariable.block();
-        }
+        // The sample is queued and written by the I/O thread, so there is nothing to wait for.
+        mSampleChunkIoHelper.writeSample(index, sample);
     }
 
     @Override
@@ -173,7 +169,7 @@ public class RecordingSampleBuffer
         if (mBufferReason == BUFFER_REASON_RECORDED_PLAYBACK) {
             return false;
         }
-        mBufferManager.addWriteStat(sampleSize, writeDurationNs);
+        // Since samples are written asynchronously, the write time is measured by the I/O thread.
         return mBufferManager.isWriteSlow();
     }
 
@@ -287,8 +283,13 @@ public class RecordingSampleBuffer
         if (mTrackCount <= 0) {
             return;
         }
-        if (mSampleChunkIoHelper != null) {
-            mSampleChunkIoHelper.release();
+        try {
+            if (mSampleChunkIoHelper != null) {
+                mSampleChunkIoHelper.release();
+            }
+        } finally {
+            // The free buffers count toward the bound of all the pools.
+            mSamplePool.trim();
         }
     }
 
@@ -23,7 +23,6 @@ import com.google.android.exoplayer.SampleHolder;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.channels.FileChannel;
 
 /**
  * {@link SampleChunk} stores samples into file and makes them available for read. Stored file = {
@@ -38,13 +37,12 @@ public class SampleChunk {
     private final long mStartPositionUs;
     private SampleChunk mNextChunk;
 
-    // Header = sample size : int, sample flag : int, sample PTS in micro second : long
-    private static final int SAMPLE_HEADER_LENGTH = 16;
-
     private final File mFile;
     private final ChunkCallback mChunkCallback;
     private final SamplePool mSamplePool;
-    private RandomAccessFile mAccessFile;
+    // Reading and writing use separate files so that each keeps its own position.
+    private RandomAccessFile mReadFile;
+    private RandomAccessFile mWriteFile;
     private long mWriteOffset;
     private boolean mWriteFinished;
     private boolean mIsReading;
@@ -124,6 +122,7 @@ public class SampleChunk {
      */
     @VisibleForTesting
     public static class IoState {
+        private final SampleRecordIo mRecordIo = new SampleRecordIo();
         private SampleChunk mChunk;
         private long mCurrentOffset;
 
@@ -231,6 +230,31 @@ public class SampleChunk {
             mChunk.write(sample, this);
         }
 
+        /**
+         * Writes samples at the current SampleChunk.
+         *
+         * @param samples to write
+         * @param count the number of samples to write
+         * @throws IOException
+         */
+        void write(SampleHolder[] samples, int count) throws IOException {
+            if (mChunk == null) {
+                throw new IOException("mChunk should not be null");
+            }
+            mChunk.write(samples, count, this);
+        }
+
+        /**
+         * Commits the samples written at the current SampleChunk to permanent storage.
+         *
+         * @throws IOException
+         */
+        void sync() throws IOException {
+            if (mChunk != null) {
+                mChunk.sync();
+            }
+        }
+
         /**
          * Finishes write I/O operation.
          *
@@ -252,6 +276,16 @@ public class SampleChunk {
             return mCurrentOffset;
         }
 
+        /** Returns the average number of system calls per sample which is read or written. */
+        float getCallsPerSample() {
+            return mRecordIo.getCallsPerRecord();
+        }
+
+        /** Returns the buffer which is kept for subsequent reads to its pool. */
+        void releaseReadWindow() {
+            mRecordIo.releaseWindow();
+        }
+
         /**
          * Releases SampleChunk. the SampleChunk will not be used anymore.
          *
@@ -292,13 +326,11 @@ public class SampleChunk {
 
     private void openRead() throws IOException {
         if (!mIsReading) {
-            if (mAccessFile == null) {
-                mAccessFile = new RandomAccessFile(mFile, "r");
-            }
+            mReadFile = new RandomAccessFile(mFile, "r");
             if (mWriteFinished && mWriteOffset == 0) {
                 // Lazy loading of write offset, in order not to load
                 // all SampleChunk's write offset at start time of recorded playback.
-                mWriteOffset = mAccessFile.length();
+                mWriteOffset = mReadFile.length();
             }
             mIsReading = true;
         }
@@ -313,27 +345,19 @@ public class SampleChunk {
                 throw new IllegalStateException(
                         "Write is requested for " + "an already opened SampleChunk");
             }
-            mAccessFile = new RandomAccessFile(mFile, "rw");
+            mWriteFile = new RandomAccessFile(mFile, "rw");
             mIsWriting = true;
         }
     }
 
-    private void CloseAccessFileIfNeeded() throws IOException {
-        if (!mIsReading && !mIsWriting) {
-            try {
-                if (mAccessFile != null) {
-                    mAccessFile.close();
-                }
-            } finally {
-                mAccessFile = null;
-            }
-        }
-    }
-
     private void closeRead() throws IOException {
         if (mIsReading) {
             mIsReading = false;
-            CloseAccessFileIfNeeded();
+            try {
+                mReadFile.close();
+            } finally {
+                mReadFile = null;
+            }
         }
     }
 
@@ -342,7 +366,11 @@ public class SampleChunk {
             mNextChunk = nextChunk;
             mIsWriting = false;
             mWriteFinished = true;
-            CloseAccessFileIfNeeded();
+            try {
+                mWriteFile.close();
+            } finally {
+                mWriteFile = null;
+            }
         }
     }
 
@@ -351,7 +379,7 @@ public class SampleChunk {
     }
 
     private SampleHolder read(IoState state) throws IOException {
-        if (mAccessFile == null || state.mChunk != this) {
+        if (mReadFile == null || state.mChunk != this) {
             throw new IllegalStateException("Requested read for wrong SampleChunk");
         }
         long offset = state.mCurrentOffset;
@@ -365,55 +393,60 @@ public class SampleChunk {
                 return null;
             }
         }
-        mAccessFile.seek(offset);
-        int size = mAccessFile.readInt();
-        SampleHolder sample = mSamplePool.acquireSample(size);
-        sample.size = size;
-        sample.flags = mAccessFile.readInt();
-        sample.timeUs = mAccessFile.readLong();
-        sample.data.clear(); //sample.clearData();
-        sample.data.put(
-                mAccessFile
-                        .getChannel()
-                        .map(
-                                FileChannel.MapMode.READ_ONLY,
-                                offset + SAMPLE_HEADER_LENGTH,
-                                sample.size));
-        offset += sample.size + SAMPLE_HEADER_LENGTH;
+        SampleHolder sample =
+                state.mRecordIo.read(mReadFile.getChannel(), offset, mWriteOffset, mSamplePool);
+        offset += sample.size + SampleRecordIo.HEADER_LENGTH;
         state.mCurrentOffset = offset;
         return sample;
     }
 
     @VisibleForTesting
     protected void write(SampleHolder sample, IoState state) throws IOException {
-        if (mAccessFile == null || mNextChunk != null || !state.equals(this, mWriteOffset)) {
+        if (mWriteFile == null || mNextChunk != null || !state.equals(this, mWriteOffset)) {
+            throw new IllegalStateException("Requested write for wrong SampleChunk");
+        }
+
+        state.mRecordIo.write(mWriteFile.getChannel(), mWriteOffset, sample);
+        mWriteOffset += sample.size + SampleRecordIo.HEADER_LENGTH;
+        state.mCurrentOffset = mWriteOffset;
+    }
+
+    private void write(SampleHolder[] samples, int count, IoState state) throws IOException {
+        if (mWriteFile == null || mNextChunk != null || !state.equals(this, mWriteOffset)) {
             throw new IllegalStateException("Requested write for wrong SampleChunk");
         }
 
-        mAccessFile.seek(mWriteOffset);
-        mAccessFile.writeInt(sample.size);
-        mAccessFile.writeInt(sample.flags);
-        mAccessFile.writeLong(sample.timeUs);
-        sample.data.position(0).limit(sample.size);
-        mAccessFile.getChannel().position(mWriteOffset + SAMPLE_HEADER_LENGTH).write(sample.data);
-        mWriteOffset += sample.size + SAMPLE_HEADER_LENGTH;
+        mWriteOffset +=
+                state.mRecordIo.write(mWriteFile.getChannel(), mWriteOffset, samples, count);
         state.mCurrentOffset = mWriteOffset;
     }
 
+    private void sync() throws IOException {
+        if (mWriteFile != null) {
+            mWriteFile.getChannel().force(false);
+        }
+    }
+
     private void release(boolean delete) {
         mWriteFinished = true;
         mIsReading = mIsWriting = false;
+        closeQuietly(mReadFile);
+        closeQuietly(mWriteFile);
+        mReadFile = mWriteFile = null;
+        if (delete) {
+            mFile.delete();
+            mChunkCallback.onChunkDelete(this);
+        }
+    }
+
+    private static void closeQuietly(@Nullable RandomAccessFile file) {
         try {
-            if (mAccessFile != null) {
-                mAccessFile.close();
+            if (file != null) {
+                file.close();
             }
         } catch (IOException e) {
             // Since the SampleChunk will not be reused, ignore exception.
         }
-        if (delete) {
-            mFile.delete();
-            mChunkCallback.onChunkDelete(this);
-        }
     }
 
     /** Returns the start position. */
@@ -21,6 +21,7 @@ import android.os.ConditionVariable;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Message;
+import android.os.SystemClock;
 import android.util.ArraySet;
 import android.util.Log;
 import android.util.Pair;
@@ -30,10 +31,15 @@ import com.google.android.exoplayer.MediaFormat;
 import com.google.android.exoplayer.SampleHolder;
 import com.google.android.exoplayer.util.MimeTypes;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Handles all {@link SampleChunk} I/O operations. An I/O dedicated thread handles all I/O
@@ -41,9 +47,27 @@ import java.util.concurrent.ConcurrentLinkedQueue;
  */
 public class SampleChunkIoHelper implements Handler.Callback {
     private static final String TAG = "SampleChunkIoHelper";
-
-    private static final int MAX_READ_BUFFER_SAMPLES = 3;
-    private static final int READ_RESCHEDULING_DELAY_MS = 10;
+    private static final boolean DEBUG = false;
+
+    // The duration of the samples to read ahead for a track at the normal playback speed. It is
+    // scaled by the rate at which the samples are consumed, e.g. while fast-forwarding.
+    private static final long READ_AHEAD_DURATION_US = TimeUnit.MILLISECONDS.toMicros(500);
+    // Bounds the memory of the samples read ahead for a track of a high bitrate.
+    private static final long MAX_READ_AHEAD_BYTES = 2 * 1024 * 1024;
+    // The maximum number of samples which are read by a MSG_READ, so that writes are not starved.
+    private static final int MAX_READ_SAMPLES_PER_MESSAGE = 16;
+    private static final long CONSUMPTION_RATE_PERIOD_MS = 1000;
+    // The speed of the fastest smooth trickplay.
+    private static final float MAX_CONSUMPTION_RATE = 9.0f;
+
+    // The bounds of the samples which are queued to be written. The writer blocks only when the
+    // queue is full.
+    private static final int MAX_WRITE_QUEUE_SAMPLES = 256;
+    private static final long MAX_WRITE_QUEUE_BYTES = 8 * 1024 * 1024;
+    // The maximum number of queued samples which are written by a MSG_WRITE. The writer can queue
+    // more samples while they are written.
+    private static final int MAX_WRITE_BATCH_SAMPLES = 64;
+    private static final long WRITE_DELAY_WARNING_MS = 10 * 1000; // 10 seconds
 
     private static final int MSG_OPEN_READ = 1;
     private static final int MSG_OPEN_WRITE = 2;
@@ -63,8 +87,12 @@ public class SampleChunkIoHelper implements Handler.Callback {
     private final IoCallback mIoCallback;
 
     private Handler mIoHandler;
-    private final ConcurrentLinkedQueue<SampleHolder> mReadSampleBuffers[];
-    private final ConcurrentLinkedQueue<SampleHolder> mHandlerReadSampleBuffers[];
+    private final ReadAheadQueue[] mReadAheadQueues;
+    private final ReadAheadQueue[] mHandlerReadAheadQueues;
+    // Whether the read of each track waits for the samples to be written.
+    private final boolean[] mReadWaitingForWriter;
+    private long mReadMessageCount;
+    private long mReadSampleCount;
     private final long[] mWriteIndexEndPositionUs;
     private final long[] mWriteChunkEndPositionUs;
     private final SampleChunk.IoState[] mReadIoStates;
@@ -72,8 +100,25 @@ public class SampleChunkIoHelper implements Handler.Callback {
     private final Set<Integer> mSelectedTracks = new ArraySet<>();
     private long mBufferDurationUs = 0;
     private boolean mWriteEnded;
-    private boolean mErrorNotified;
-    private boolean mFinished;
+    private volatile boolean mErrorNotified;
+    private volatile boolean mFinished;
+
+    // The samples which are queued to be written in a ring buffer, guarded by mWriteQueueLock.
+    private final Object mWriteQueueLock = new Object();
+    private final SampleHolder[] mWriteQueueSamples = new SampleHolder[MAX_WRITE_QUEUE_SAMPLES];
+    private final int[] mWriteQueueTracks = new int[MAX_WRITE_QUEUE_SAMPLES];
+    private int mWriteQueueHead;
+    private int mWriteQueueSize;
+    private long mWriteQueueBytes;
+    private boolean mWriteScheduled;
+    // The samples which are taken from the queue to be written by the I/O thread.
+    private final SampleHolder[] mWriteBatchSamples = new SampleHolder[MAX_WRITE_BATCH_SAMPLES];
+    private final int[] mWriteBatchTracks = new int[MAX_WRITE_BATCH_SAMPLES];
+    // The consecutive samples of each track in the batch, which are written together.
+    private final SampleHolder[][] mWriteRuns;
+    private final int[] mWriteRunSizes;
+    private final LatencyHistogram mQueueLatency = new LatencyHistogram("Write queueing");
+    private final LatencyHistogram mCommitLatency = new LatencyHistogram("Group commit");
 
     /** A Callback for I/O events. */
     public abstract static class IoCallback {
@@ -88,21 +133,84 @@ public class SampleChunkIoHelper implements Handler.Callback {
     private static class IoParams {
         private final int index;
         private final long positionUs;
-        private final SampleHolder sample;
-        private final ConditionVariable conditionVariable;
-        private final ConcurrentLinkedQueue<SampleHolder> readSampleBuffer;
-
-        private IoParams(
-                int index,
-                long positionUs,
-                SampleHolder sample,
-                ConditionVariable conditionVariable,
-                ConcurrentLinkedQueue<SampleHolder> readSampleBuffer) {
+        private final ReadAheadQueue readAheadQueue;
+
+        private IoParams(int index, long positionUs, ReadAheadQueue readAheadQueue) {
             this.index = index;
             this.positionUs = positionUs;
-            this.sample = sample;
-            this.conditionVariable = conditionVariable;
-            this.readSampleBuffer = readSampleBuffer;
+            this.readAheadQueue = readAheadQueue;
+        }
+    }
+
+    /**
+     * The samples of a track which are read ahead by the I/O thread and dequeued by the consumer.
+     * A new queue is used whenever the read position changes, since the old one may still get a
+     * pending read.
+     */
+    private static class ReadAheadQueue {
+        private final ConcurrentLinkedQueue<SampleHolder> samples = new ConcurrentLinkedQueue<>();
+        private final AtomicLong queuedBytes = new AtomicLong();
+        // Whether the I/O thread waits for the consumer to dequeue samples.
+        private final AtomicBoolean waitingForConsumer = new AtomicBoolean();
+        private volatile long lastQueuedTimeUs;
+        // The presentation time consumed per real time, which follows the trickplay speed.
+        private volatile float consumptionRate = 1.0f;
+        // The start of the period where the consumption rate is measured. Used by the consumer.
+        private long rateStartTimeUs = Long.MIN_VALUE;
+        private long rateStartRealtimeMs;
+
+        private void queue(SampleHolder sample) {
+            lastQueuedTimeUs = sample.timeUs;
+            queuedBytes.addAndGet(sample.size);
+            samples.offer(sample);
+        }
+
+        private SampleHolder dequeue() {
+            SampleHolder sample = samples.poll();
+            if (sample != null) {
+                queuedBytes.addAndGet(-sample.size);
+                updateConsumptionRate(sample.timeUs);
+            }
+            return sample;
+        }
+
+        /** Returns whether enough samples are read ahead. */
+        private boolean isFull() {
+            return getQueuedDurationUs() >= getTargetDurationUs()
+                    || queuedBytes.get() >= MAX_READ_AHEAD_BYTES;
+        }
+
+        /** Returns whether the samples read ahead are below the half of the target. */
+        private boolean isBelowHalf() {
+            return getQueuedDurationUs() < getTargetDurationUs() / 2
+                    && queuedBytes.get() < MAX_READ_AHEAD_BYTES / 2;
+        }
+
+        private long getQueuedDurationUs() {
+            SampleHolder first = samples.peek();
+            return first == null ? 0 : Math.max(0, lastQueuedTimeUs - first.timeUs);
+        }
+
+        private long getTargetDurationUs() {
+            return (long) (READ_AHEAD_DURATION_US * consumptionRate);
+        }
+
+        private void updateConsumptionRate(long timeUs) {
+            long realtimeMs = SystemClock.elapsedRealtime();
+            if (rateStartTimeUs == Long.MIN_VALUE) {
+                rateStartTimeUs = timeUs;
+                rateStartRealtimeMs = realtimeMs;
+            } else if (realtimeMs - rateStartRealtimeMs >= CONSUMPTION_RATE_PERIOD_MS) {
+                // The rate is kept at least the normal speed, so that a pause does not shrink
+                // the read-ahead.
+                float rate =
+                        (float) (timeUs - rateStartTimeUs)
+                                / 1000
+                                / (realtimeMs - rateStartRealtimeMs);
+                consumptionRate = Math.max(1.0f, Math.min(rate, MAX_CONSUMPTION_RATE));
+                rateStartTimeUs = timeUs;
+                rateStartRealtimeMs = realtimeMs;
+            }
         }
     }
 
@@ -131,12 +239,15 @@ public class SampleChunkIoHelper implements Handler.Callback {
         mSamplePool = samplePool;
         mIoCallback = ioCallback;
 
-        mReadSampleBuffers = new ConcurrentLinkedQueue[mTrackCount];
-        mHandlerReadSampleBuffers = new ConcurrentLinkedQueue[mTrackCount];
+        mReadAheadQueues = new ReadAheadQueue[mTrackCount];
+        mHandlerReadAheadQueues = new ReadAheadQueue[mTrackCount];
+        mReadWaitingForWriter = new boolean[mTrackCount];
         mWriteIndexEndPositionUs = new long[mTrackCount];
         mWriteChunkEndPositionUs = new long[mTrackCount];
         mReadIoStates = new SampleChunk.IoState[mTrackCount];
         mWriteIoStates = new SampleChunk.IoState[mTrackCount];
+        mWriteRuns = new SampleHolder[mTrackCount][MAX_WRITE_BATCH_SAMPLES];
+        mWriteRunSizes = new int[mTrackCount];
 
         // Small chunk duration for live playback will give more fine grained storage usage
         // and eviction handling for trickplay.
@@ -180,27 +291,73 @@ public class SampleChunkIoHelper implements Handler.Callback {
      * @return {@code null} if a sample is not available, otherwise returns a sample
      */
     public SampleHolder readSample(int index) {
-        SampleHolder sample = mReadSampleBuffers[index].poll();
-        mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_READ, index));
+        ReadAheadQueue queue = mReadAheadQueues[index];
+        SampleHolder sample = queue.dequeue();
+        // The I/O thread is woken up only when it waits for the consumer and enough samples are
+        // consumed, rather than for every read.
+        if (sample != null
+                && queue.isBelowHalf()
+                && queue.waitingForConsumer.compareAndSet(true, false)) {
+            mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_READ, index));
+        }
         return sample;
     }
 
     /**
-     * Writes a sample.
+     * Queues a sample to be written. The sample is copied, so that it can be reused when this
+     * returns. This blocks only while the write queue is full.
      *
      * @param index track index
      * @param sample to write
-     * @param conditionVariable which will be wait until the write is finished
      * @throws IOException
      */
-    public void writeSample(int index, SampleHolder sample, ConditionVariable conditionVariable)
-            throws IOException {
+    public void writeSample(int index, SampleHolder sample) throws IOException {
         if (mErrorNotified) {
             throw new IOException("Storage I/O error happened");
         }
-        conditionVariable.close();
-        IoParams params = new IoParams(index, 0, sample, conditionVariable, null);
-        mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_WRITE, params));
+        sample.data.position(0).limit(sample.size);
+        SampleHolder sampleToQueue = mSamplePool.acquireSample(sample.size);
+        sampleToQueue.size = sample.size;
+        sampleToQueue.data.clear();
+        sampleToQueue.data.put(sample.data);
+        sampleToQueue.timeUs = sample.timeUs;
+        sampleToQueue.flags = sample.flags;
+
+        long startTimeNs = SystemClock.elapsedRealtimeNanos();
+        synchronized (mWriteQueueLock) {
+            boolean delayReported = false;
+            while (mWriteQueueSize == MAX_WRITE_QUEUE_SAMPLES
+                    || (mWriteQueueSize > 0
+                            && mWriteQueueBytes + sample.size > MAX_WRITE_QUEUE_BYTES)) {
+                if (mErrorNotified || mFinished) {
+                    mSamplePool.releaseSample(sampleToQueue);
+                    throw new IOException("Storage I/O error happened");
+                }
+                try {
+                    mWriteQueueLock.wait(WRITE_DELAY_WARNING_MS);
+                } catch (InterruptedException e) {
+                    mSamplePool.releaseSample(sampleToQueue);
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while writing a sample");
+                }
+                if (!delayReported
+                        && SystemClock.elapsedRealtimeNanos() - startTimeNs
+                                >= WRITE_DELAY_WARNING_MS * 1000000) {
+                    Log.e(TAG, "Error: Serious delay on writing buffer");
+                    delayReported = true;
+                }
+            }
+            int tail = (mWriteQueueHead + mWriteQueueSize) % MAX_WRITE_QUEUE_SAMPLES;
+            mWriteQueueSamples[tail] = sampleToQueue;
+            mWriteQueueTracks[tail] = index;
+            ++mWriteQueueSize;
+            mWriteQueueBytes += sampleToQueue.size;
+            if (!mWriteScheduled) {
+                mWriteScheduled = true;
+                mIoHandler.sendEmptyMessage(MSG_WRITE);
+            }
+        }
+        mQueueLatency.record(SystemClock.elapsedRealtimeNanos() - startTimeNs);
     }
 
     /**
@@ -210,9 +367,9 @@ public class SampleChunkIoHelper implements Handler.Callback {
      * @param positionUs the specified position
      */
     public void openRead(int index, long positionUs) {
-        // Old mReadSampleBuffers may have a pending read.
-        mReadSampleBuffers[index] = new ConcurrentLinkedQueue<>();
-        IoParams params = new IoParams(index, positionUs, null, null, mReadSampleBuffers[index]);
+        // Old mReadAheadQueues may have a pending read.
+        mReadAheadQueues[index] = new ReadAheadQueue();
+        IoParams params = new IoParams(index, positionUs, mReadAheadQueues[index]);
         mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_OPEN_READ, params));
     }
 
@@ -294,7 +451,7 @@ public class SampleChunkIoHelper implements Handler.Callback {
                     doRead((int) message.obj);
                     return true;
                 case MSG_WRITE:
-                    doWrite((IoParams) message.obj);
+                    doWrite();
                     // Since only write will increase storage, eviction will be handled here.
                     return true;
                 case MSG_RELEASE:
@@ -304,6 +461,10 @@ public class SampleChunkIoHelper implements Handler.Callback {
         } catch (IOException e) {
             mIoCallback.onIoError();
             mErrorNotified = true;
+            synchronized (mWriteQueueLock) {
+                // Wakes up the writer which waits for the queue.
+                mWriteQueueLock.notifyAll();
+            }
             Log.e(TAG, "IoException happened", e);
             return true;
         }
@@ -323,13 +484,9 @@ public class SampleChunkIoHelper implements Handler.Callback {
         }
         mSelectedTracks.add(index);
         mReadIoStates[index].openRead(readPosition.first, (long) readPosition.second);
-        if (mHandlerReadSampleBuffers[index] != null) {
-            SampleHolder sample;
-            while ((sample = mHandlerReadSampleBuffers[index].poll()) != null) {
-                mSamplePool.releaseSample(sample);
-            }
-        }
-        mHandlerReadSampleBuffers[index] = params.readSampleBuffer;
+        releaseReadAheadSamples(index);
+        mHandlerReadAheadQueues[index] = params.readAheadQueue;
+        mReadWaitingForWriter[index] = false;
         mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_READ, index));
     }
 
@@ -341,26 +498,36 @@ public class SampleChunkIoHelper implements Handler.Callback {
 
     private void doCloseRead(int index) {
         mSelectedTracks.remove(index);
-        if (mHandlerReadSampleBuffers[index] != null) {
+        releaseReadAheadSamples(index);
+        mReadWaitingForWriter[index] = false;
+        mIoHandler.removeMessages(MSG_READ, index);
+    }
+
+    private void releaseReadAheadSamples(int index) {
+        if (mHandlerReadAheadQueues[index] != null) {
             SampleHolder sample;
-            while ((sample = mHandlerReadSampleBuffers[index].poll()) != null) {
+            while ((sample = mHandlerReadAheadQueues[index].samples.poll()) != null) {
                 mSamplePool.releaseSample(sample);
             }
         }
-        mIoHandler.removeMessages(MSG_READ, index);
     }
 
     private void doRead(int index) throws IOException {
         mIoHandler.removeMessages(MSG_READ, index);
-        if (mHandlerReadSampleBuffers[index].size() >= MAX_READ_BUFFER_SAMPLES) {
-            // If enough samples are buffered, try again few moments later hoping that
-            // buffered samples are consumed.
-            mIoHandler.sendMessageDelayed(
-                    mIoHandler.obtainMessage(MSG_READ, index), READ_RESCHEDULING_DELAY_MS);
-        } else {
+        ReadAheadQueue queue = mHandlerReadAheadQueues[index];
+        ++mReadMessageCount;
+        for (int i = 0; i < MAX_READ_SAMPLES_PER_MESSAGE; ++i) {
+            if (queue.isFull()) {
+                // The consumer wakes this up when it has dequeued enough samples. Checks again in
+                // case it did so before the flag was set.
+                queue.waitingForConsumer.set(true);
+                if (queue.isFull() || !queue.waitingForConsumer.compareAndSet(true, false)) {
+                    return;
+                }
+            }
             if (mReadIoStates[index].isReadFinished()) {
-                for (int i = 0; i < mTrackCount; ++i) {
-                    if (!mReadIoStates[i].isReadFinished()) {
+                for (int j = 0; j < mTrackCount; ++j) {
+                    if (!mReadIoStates[j].isReadFinished()) {
                         return;
                     }
                 }
@@ -368,56 +535,149 @@ public class SampleChunkIoHelper implements Handler.Callback {
                 return;
             }
             SampleHolder sample = mReadIoStates[index].read();
-            if (sample != null) {
-                mHandlerReadSampleBuffers[index].offer(sample);
-            } else {
-                // Read reached write but write is not finished yet --- wait a few moments to
-                // see if another sample is written.
-                mIoHandler.sendMessageDelayed(
-                        mIoHandler.obtainMessage(MSG_READ, index), READ_RESCHEDULING_DELAY_MS);
+            if (sample == null) {
+                if (mReadIoStates[index].isReadFinished()) {
+                    continue;
+                }
+                // Read reached write but write is not finished yet. The writer wakes this up
+                // when it writes samples of the track.
+                mReadWaitingForWriter[index] = !mWriteEnded;
+                return;
             }
+            queue.queue(sample);
+            ++mReadSampleCount;
+        }
+        mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_READ, index));
+    }
+
+    private void notifySamplesWritten(int index) {
+        if (mReadWaitingForWriter[index]) {
+            mReadWaitingForWriter[index] = false;
+            mIoHandler.sendMessage(mIoHandler.obtainMessage(MSG_READ, index));
         }
     }
 
-    private void doWrite(IoParams params) throws IOException {
+    private void doWrite() throws IOException {
+        if (mErrorNotified) {
+            // The samples are not written after the storage failed.
+            releaseWriteQueue();
+            return;
+        }
+        int count;
+        synchronized (mWriteQueueLock) {
+            count = Math.min(mWriteQueueSize, MAX_WRITE_BATCH_SAMPLES);
+            for (int i = 0; i < count; ++i) {
+                int position = (mWriteQueueHead + i) % MAX_WRITE_QUEUE_SAMPLES;
+                mWriteBatchSamples[i] = mWriteQueueSamples[position];
+                mWriteBatchTracks[i] = mWriteQueueTracks[position];
+                mWriteQueueSamples[position] = null;
+                mWriteQueueBytes -= mWriteBatchSamples[i].size;
+            }
+            mWriteQueueHead = (mWriteQueueHead + count) % MAX_WRITE_QUEUE_SAMPLES;
+            mWriteQueueSize -= count;
+            // The rest is written after the messages which are already queued, e.g. reads.
+            mWriteScheduled = mWriteQueueSize > 0;
+            if (mWriteScheduled) {
+                mIoHandler.sendEmptyMessage(MSG_WRITE);
+            }
+            mWriteQueueLock.notifyAll();
+        }
+        if (count == 0) {
+            return;
+        }
+        long startTimeNs = SystemClock.elapsedRealtimeNanos();
         try {
-            if (mWriteEnded) {
-                SoftPreconditions.checkState(false);
-                return;
+            long batchSize = 0;
+            for (int i = 0; i < count; ++i) {
+                writeQueuedSample(mWriteBatchTracks[i], mWriteBatchSamples[i]);
+                batchSize += mWriteBatchSamples[i].size;
+            }
+            for (int i = 0; i < mTrackCount; ++i) {
+                flushWriteRun(i);
+            }
+            long commitTimeNs = SystemClock.elapsedRealtimeNanos() - startTimeNs;
+            mCommitLatency.record(commitTimeNs);
+            for (int i = 0; i < count && batchSize > 0; ++i) {
+                // Attributes the time of the whole batch to the samples by their sizes.
+                long size = mWriteBatchSamples[i].size;
+                mBufferManager.addWriteStat(size, commitTimeNs * size / batchSize);
             }
-            int index = params.index;
-            SampleHolder sample = params.sample;
-            SampleChunk nextChunk = null;
-            if ((sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
-                if (sample.timeUs > mBufferDurationUs) {
-                    mBufferDurationUs = sample.timeUs;
+        } finally {
+            for (int i = 0; i < count; ++i) {
+                mSamplePool.releaseSample(mWriteBatchSamples[i]);
+                mWriteBatchSamples[i] = null;
+            }
+            for (int i = 0; i < mTrackCount; ++i) {
+                Arrays.fill(mWriteRuns[i], 0, mWriteRunSizes[i], null);
+                mWriteRunSizes[i] = 0;
+            }
+        }
+    }
+
+    private void writeQueuedSample(int index, SampleHolder sample) throws IOException {
+        if (mWriteEnded) {
+            SoftPreconditions.checkState(false);
+            return;
+        }
+        SampleChunk nextChunk = null;
+        if ((sample.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0) {
+            if (sample.timeUs > mBufferDurationUs) {
+                mBufferDurationUs = sample.timeUs;
+            }
+            if (sample.timeUs >= mWriteIndexEndPositionUs[index]) {
+                // The index needs the offset where the sample will be written.
+                flushWriteRun(index);
+                SampleChunk currentChunk =
+                        sample.timeUs >= mWriteChunkEndPositionUs[index]
+                                ? null
+                                : mWriteIoStates[index].getChunk();
+                int currentOffset = (int) mWriteIoStates[index].getOffset();
+                nextChunk =
+                        mBufferManager.createNewWriteFileIfNeeded(
+                                mIds.get(index),
+                                mWriteIndexEndPositionUs[index],
+                                mSamplePool,
+                                currentChunk,
+                                currentOffset);
+                mWriteIndexEndPositionUs[index] =
+                        ((sample.timeUs / RecordingSampleBuffer.MIN_SEEK_DURATION_US) + 1)
+                                * RecordingSampleBuffer.MIN_SEEK_DURATION_US;
+                if (nextChunk != null) {
+                    mWriteChunkEndPositionUs[index] =
+                            ((sample.timeUs / mSampleChunkDurationUs) + 1)
+                                    * mSampleChunkDurationUs;
                 }
-                if (sample.timeUs >= mWriteIndexEndPositionUs[index]) {
-                    SampleChunk currentChunk =
-                            sample.timeUs >= mWriteChunkEndPositionUs[index]
-                                    ? null
-                                    : mWriteIoStates[params.index].getChunk();
-                    int currentOffset = (int) mWriteIoStates[params.index].getOffset();
-                    nextChunk =
-                            mBufferManager.createNewWriteFileIfNeeded(
-                                    mIds.get(index),
-                                    mWriteIndexEndPositionUs[index],
-                                    mSamplePool,
-                                    currentChunk,
-                                    currentOffset);
-                    mWriteIndexEndPositionUs[index] =
-                            ((sample.timeUs / RecordingSampleBuffer.MIN_SEEK_DURATION_US) + 1)
-                                    * RecordingSampleBuffer.MIN_SEEK_DURATION_US;
-                    if (nextChunk != null) {
-                        mWriteChunkEndPositionUs[index] =
-                                ((sample.timeUs / mSampleChunkDurationUs) + 1)
-                                        * mSampleChunkDurationUs;
-                    }
+            }
+        }
+        if (nextChunk != null) {
+            if (mBufferReason == RecordingSampleBuffer.BUFFER_REASON_RECORDING) {
+                // A finished chunk of a recording is committed before it is reported as written.
+                mWriteIoStates[index].sync();
+            }
+            mWriteIoStates[index].write(sample, nextChunk);
+            notifySamplesWritten(index);
+        } else {
+            mWriteRuns[index][mWriteRunSizes[index]++] = sample;
+        }
+    }
+
+    private void flushWriteRun(int index) throws IOException {
+        if (mWriteRunSizes[index] > 0) {
+            mWriteIoStates[index].write(mWriteRuns[index], mWriteRunSizes[index]);
+            Arrays.fill(mWriteRuns[index], 0, mWriteRunSizes[index], null);
+            mWriteRunSizes[index] = 0;
+            notifySamplesWritten(index);
+        }
+    }
+
+    private void drainWriteQueue() throws IOException {
+        while (true) {
+            synchronized (mWriteQueueLock) {
+                if (mWriteQueueSize == 0) {
+                    return;
                 }
             }
-            mWriteIoStates[params.index].write(params.sample, nextChunk);
-        } finally {
-            params.conditionVariable.open();
+            doWrite();
         }
     }
 
@@ -425,20 +685,75 @@ public class SampleChunkIoHelper implements Handler.Callback {
         if (mWriteEnded) {
             return;
         }
+        drainWriteQueue();
         mWriteEnded = true;
         boolean readFinished = true;
         for (int i = 0; i < mTrackCount; ++i) {
             readFinished = readFinished && mReadIoStates[i].isReadFinished();
+            if (mBufferReason == RecordingSampleBuffer.BUFFER_REASON_RECORDING) {
+                mWriteIoStates[i].sync();
+            }
             mWriteIoStates[i].closeWrite();
+            // The reads which wait for the writer can reach the end now.
+            notifySamplesWritten(i);
         }
         if (readFinished) {
             mIoCallback.onIoReachedEos();
         }
     }
 
+    private void releaseWriteQueue() {
+        synchronized (mWriteQueueLock) {
+            for (int i = 0; i < mWriteQueueSize; ++i) {
+                int position = (mWriteQueueHead + i) % MAX_WRITE_QUEUE_SAMPLES;
+                mSamplePool.releaseSample(mWriteQueueSamples[position]);
+                mWriteQueueSamples[position] = null;
+            }
+            mWriteQueueSize = 0;
+            mWriteQueueBytes = 0;
+            mWriteScheduled = false;
+            mWriteQueueLock.notifyAll();
+        }
+    }
+
     private void doRelease(ConditionVariable conditionVariable) {
+        // Only a recording keeps the queued samples. The samples of a playback would not be read,
+        // and writing them would delay the release by up to the size of the queue.
+        if (mBufferReason == RecordingSampleBuffer.BUFFER_REASON_RECORDING
+                && !mWriteEnded
+                && !mErrorNotified) {
+            try {
+                drainWriteQueue();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to write the queued samples", e);
+            }
+        }
+        synchronized (mWriteQueueLock) {
+            mFinished = true;
+            releaseWriteQueue();
+        }
+        if (DEBUG) {
+            Log.d(
+                    TAG,
+                    "Read " + mReadSampleCount + " samples in " + mReadMessageCount + " wakeups");
+            Log.d(TAG, mQueueLatency.toString());
+            Log.d(TAG, mCommitLatency.toString());
+            Log.d(TAG, mSamplePool.toString());
+            for (int i = 0; i < mTrackCount; ++i) {
+                Log.d(
+                        TAG,
+                        "System calls per sample of "
+                                + mIds.get(i)
+                                + ", read: "
+                                + mReadIoStates[i].getCallsPerSample()
+                                + ", write: "
+                                + mWriteIoStates[i].getCallsPerSample());
+            }
+        }
+        for (int i = 0; i < mTrackCount; ++i) {
+            mReadIoStates[i].releaseReadWindow();
+        }
         mIoHandler.removeCallbacksAndMessages(null);
-        mFinished = true;
         conditionVariable.open();
         mSelectedTracks.clear();
     }
@@ -17,51 +17,159 @@
 package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.exoplayer.buffer;
 
 import com.google.android.exoplayer.SampleHolder;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
 
-/** Pool of samples to recycle ByteBuffers as much as possible. */
+/**
+ * Pool of samples to recycle ByteBuffers as much as possible. The buffers are allocated in power of
+ * two size classes, and each class has its own free list, so that a sample is acquired in a
+ * constant time. The bytes retained by the free lists of all the pools are bounded, and the free
+ * buffers of the larger classes are trimmed first when a released buffer exceeds the bound.
+ */
 public class SamplePool {
-    private final LinkedList<SampleHolder> mSamplePool = new LinkedList<>();
+    private static final int MIN_CLASS_SIZE_SHIFT = 10; // 1KB
+    private static final int MAX_CLASS_SIZE_SHIFT = 22; // 4MB
+    private static final int CLASS_COUNT = MAX_CLASS_SIZE_SHIFT - MIN_CLASS_SIZE_SHIFT + 1;
+    // The maximum number of bytes retained by the free lists of all the pools.
+    private static final long MAX_RETAINED_BYTES = 32 * 1024 * 1024;
+
+    private static final AtomicLong sRetainedBytes = new AtomicLong();
+
+    private final boolean mDirect;
+    private final ArrayDeque<SampleHolder>[] mFreeLists;
+    private long mRetainedBytes;
+    private long mHitCount;
+    private long mMissCount;
+
+    /** Creates a pool whose buffers are allocated on the Java heap. */
+    public SamplePool() {
+        this(false);
+    }
 
     /**
-     * Acquires a sample with a buffer larger than size from the pool. Allocate new one or resize an
-     * existing buffer if necessary.
+     * Creates a pool.
+     *
+     * @param direct {@code true} when the buffers should be direct, e.g. to be read from or written
+     *     to files without an intermediate copy
      */
-    public synchronized SampleHolder acquireSample(int size) {
-        if (mSamplePool.isEmpty()) {
-            SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
-            //sample.ensureSpaceForWrite(size);
-            return sample;
+    @SuppressWarnings("unchecked")
+    public SamplePool(boolean direct) {
+        mDirect = direct;
+        mFreeLists = new ArrayDeque[CLASS_COUNT];
+        for (int i = 0; i < CLASS_COUNT; ++i) {
+            mFreeLists[i] = new ArrayDeque<>();
         }
-        SampleHolder smallestSufficientSample = null;
-        SampleHolder maxSample = mSamplePool.getFirst();
-        for (SampleHolder sample : mSamplePool) {
-            // Grab the smallest sufficient sample.
-            if (sample.data.capacity() >= size
-                    && (smallestSufficientSample == null
-                            || smallestSufficientSample.data.capacity() > sample.data.capacity())) {
-                smallestSufficientSample = sample;
-            }
+    }
 
-            // Grab the max size sample.
-            if (maxSample.data.capacity() < sample.data.capacity()) {
-                maxSample = sample;
+    /**
+     * Acquires a sample with a buffer larger than size from the pool. Allocate new one if
+     * necessary. A buffer larger than the largest class is allocated with the exact size and is
+     * not retained when released.
+     */
+    public synchronized SampleHolder acquireSample(int size) {
+        int sizeClass = getClassForSize(size);
+        if (sizeClass < CLASS_COUNT) {
+            SampleHolder sample = mFreeLists[sizeClass].pollLast();
+            if (sample != null) {
+                ++mHitCount;
+                updateRetainedBytes(-sample.data.capacity());
+                return sample;
             }
         }
-        SampleHolder sampleFromPool = smallestSufficientSample;
-
-        // If there's no sufficient sample, grab the maximum sample and resize it to size.
-        if (sampleFromPool == null) {
-            sampleFromPool = maxSample;
-            //sampleFromPool.ensureSpaceForWrite(size);
-        }
-        mSamplePool.remove(sampleFromPool);
-        return sampleFromPool;
+        ++mMissCount;
+        SampleHolder sample = new SampleHolder(SampleHolder.BUFFER_REPLACEMENT_MODE_NORMAL);
+        int capacity = sizeClass < CLASS_COUNT ? 1 << (sizeClass + MIN_CLASS_SIZE_SHIFT) : size;
+        sample.data = mDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        return sample;
     }
 
     /** Releases the sample back to the pool. */
     public synchronized void releaseSample(SampleHolder sample) {
+        if (sample.data == null) {
+            return;
+        }
         sample.data.clear(); //sample.clearData();
-        mSamplePool.offerLast(sample);
+        int capacity = sample.data.capacity();
+        if (capacity > 1 << MAX_CLASS_SIZE_SHIFT || sample.data.isDirect() != mDirect) {
+            return;
+        }
+        // A sample which is not allocated by this pool is kept in the largest class it fits.
+        int sizeClass = getClassForSize(capacity + 1) - 1;
+        if (sizeClass < 0) {
+            return;
+        }
+        if (sRetainedBytes.get() + capacity > MAX_RETAINED_BYTES) {
+            trimLocked(MAX_RETAINED_BYTES - capacity);
+            if (sRetainedBytes.get() + capacity > MAX_RETAINED_BYTES) {
+                // The other pools retain the bytes.
+                return;
+            }
+        }
+        mFreeLists[sizeClass].offerLast(sample);
+        updateRetainedBytes(capacity);
+    }
+
+    /** Drops all the free buffers of this pool. */
+    public synchronized void trim() {
+        trimLocked(0);
+    }
+
+    /** Returns the number of samples acquired from the free lists. */
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /** Returns the number of samples acquired by allocating a new buffer. */
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /** Returns the number of bytes retained by the free lists of this pool. */
+    public synchronized long getRetainedBytes() {
+        return mRetainedBytes;
+    }
+
+    /** Returns the number of bytes retained by the free lists of all the pools. */
+    public static long getTotalRetainedBytes() {
+        return sRetainedBytes.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "SamplePool{hits="
+                + mHitCount
+                + ", misses="
+                + mMissCount
+                + ", retainedBytes="
+                + mRetainedBytes
+                + ", totalRetainedBytes="
+                + sRetainedBytes.get()
+                + "}";
+    }
+
+    // Drops the free buffers from the largest class until the bytes retained by all the pools are
+    // not more than the given bytes, or this pool retains nothing.
+    private void trimLocked(long maxRetainedBytes) {
+        for (int i = CLASS_COUNT - 1; i >= 0; --i) {
+            while (sRetainedBytes.get() > maxRetainedBytes && !mFreeLists[i].isEmpty()) {
+                updateRetainedBytes(-mFreeLists[i].pollFirst().data.capacity());
+            }
+        }
+    }
+
+    private void updateRetainedBytes(long delta) {
+        mRetainedBytes += delta;
+        sRetainedBytes.addAndGet(delta);
+    }
+
+    // Returns the smallest class whose buffers can hold the given size, which is CLASS_COUNT if
+    // there is no such class.
+    private static int getClassForSize(int size) {
+        if (size <= 1 << MIN_CLASS_SIZE_SHIFT) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return Math.min(shift - MIN_CLASS_SIZE_SHIFT, CLASS_COUNT);
     }
 }
@@ -0,0 +1,252 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.exoplayer.buffer;
+
+import com.google.android.exoplayer.SampleHolder;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads and writes the sample records of a {@link SampleChunk}. A record is a header followed by
+ * the sample data. A record is written by one gathering write. A record is read by one scattering
+ * read, which also fetches the header of the following record, so reading a chunk sequentially
+ * costs one system call per sample. The previous path used six calls per written sample and
+ * eighteen per read sample, since {@link java.io.RandomAccessFile#readInt} reads byte by byte.
+ * Records which are far enough from the end of the written data are copied from a {@link
+ * PooledReadWindow} instead, which costs a call per window rather than a call per sample.
+ * Consecutive records can also be written together by one gathering write.
+ *
+ * <p>A channel must only be accessed through one instance, which keeps track of its position in
+ * order to skip redundant seeks. The instance is not thread-safe.
+ */
+final class SampleRecordIo {
+    // Header = sample size : int, sample flag : int, sample PTS in micro second : long
+    static final int HEADER_LENGTH = 16;
+    // The maximum number of records which are written by a call.
+    private static final int MAX_RECORDS_PER_WRITE = 64;
+
+    private final ByteBuffer mHeader = ByteBuffer.allocateDirect(HEADER_LENGTH);
+    private final ByteBuffer[] mBuffers = new ByteBuffer[MAX_RECORDS_PER_WRITE * 2];
+    // The headers of the records to write, which are allocated on the first write.
+    private ByteBuffer[] mWriteHeaders;
+    private final PooledReadWindow mWindow = new PooledReadWindow();
+    private FileChannel mChannel;
+    private long mPosition = -1;
+    // The offset of the record whose header is held in mHeader, or -1 if there is none.
+    private long mHeaderOffset = -1;
+    private long mCallCount;
+    private long mRecordCount;
+
+    /**
+     * Reads the record at {@code offset} into a sample acquired from {@code samplePool}.
+     *
+     * @param channel the channel of the chunk
+     * @param offset the offset of the record
+     * @param endOffset the end of the written records. The header of the following record is read
+     *     ahead only when it is before this offset.
+     * @param samplePool the allocator of the sample
+     * @return the sample whose data is filled up to its position
+     * @throws IOException
+     */
+    SampleHolder read(FileChannel channel, long offset, long endOffset, SamplePool samplePool)
+            throws IOException {
+        setChannel(channel);
+        if (mHeaderOffset != offset) {
+            SampleHolder sample = readFromWindow(offset, endOffset, samplePool);
+            if (sample != null) {
+                return sample;
+            }
+            mHeader.clear();
+            mBuffers[0] = mHeader;
+            transfer(1, offset, false);
+        }
+        mHeaderOffset = -1;
+        int size = mHeader.getInt(0);
+        SampleHolder sample = samplePool.acquireSample(size);
+        sample.size = size;
+        sample.flags = mHeader.getInt(4);
+        sample.timeUs = mHeader.getLong(8);
+        sample.data.clear();
+        sample.data.limit(size);
+        long nextOffset = offset + HEADER_LENGTH + size;
+        boolean readAhead = nextOffset + HEADER_LENGTH <= endOffset;
+        mBuffers[0] = sample.data;
+        if (readAhead) {
+            mHeader.clear();
+            mBuffers[1] = mHeader;
+        }
+        try {
+            transfer(readAhead ? 2 : 1, offset + HEADER_LENGTH, false);
+        } catch (IOException e) {
+            samplePool.releaseSample(sample);
+            throw e;
+        }
+        if (readAhead) {
+            mHeaderOffset = nextOffset;
+        }
+        sample.data.limit(sample.data.capacity());
+        ++mRecordCount;
+        return sample;
+    }
+
+    /**
+     * Writes {@code sample} as a record at {@code offset}.
+     *
+     * @param channel the channel of the chunk
+     * @param offset the offset of the record
+     * @param sample the sample to write
+     * @throws IOException
+     */
+    void write(FileChannel channel, long offset, SampleHolder sample) throws IOException {
+        setChannel(channel);
+        addRecord(0, sample);
+        transfer(2, offset, true);
+        ++mRecordCount;
+    }
+
+    /**
+     * Writes {@code count} samples as consecutive records from {@code offset}.
+     *
+     * @param channel the channel of the chunk
+     * @param offset the offset of the first record
+     * @param samples the samples to write
+     * @param count the number of the samples to write
+     * @return the number of bytes written
+     * @throws IOException
+     */
+    long write(FileChannel channel, long offset, SampleHolder[] samples, int count)
+            throws IOException {
+        setChannel(channel);
+        long bytesWritten = 0;
+        for (int i = 0; i < count; i += MAX_RECORDS_PER_WRITE) {
+            int recordCount = Math.min(count - i, MAX_RECORDS_PER_WRITE);
+            long length = 0;
+            for (int j = 0; j < recordCount; ++j) {
+                addRecord(j, samples[i + j]);
+                length += HEADER_LENGTH + samples[i + j].size;
+            }
+            transfer(recordCount * 2, offset + bytesWritten, true);
+            bytesWritten += length;
+        }
+        mRecordCount += count;
+        return bytesWritten;
+    }
+
+    /** Returns the average number of system calls per record which is read or written. */
+    float getCallsPerRecord() {
+        long callCount = mCallCount + mWindow.getReadCount();
+        return mRecordCount == 0 ? 0 : (float) callCount / mRecordCount;
+    }
+
+    /** Returns the buffer of the read window to its pool. */
+    void releaseWindow() {
+        mWindow.release();
+    }
+
+    private void addRecord(int index, SampleHolder sample) {
+        if (mWriteHeaders == null) {
+            ByteBuffer headers = ByteBuffer.allocateDirect(HEADER_LENGTH * MAX_RECORDS_PER_WRITE);
+            mWriteHeaders = new ByteBuffer[MAX_RECORDS_PER_WRITE];
+            for (int i = 0; i < MAX_RECORDS_PER_WRITE; ++i) {
+                headers.limit((i + 1) * HEADER_LENGTH).position(i * HEADER_LENGTH);
+                mWriteHeaders[i] = headers.slice();
+            }
+        }
+        ByteBuffer header = mWriteHeaders[index];
+        header.clear();
+        header.putInt(sample.size).putInt(sample.flags).putLong(sample.timeUs).flip();
+        sample.data.position(0).limit(sample.size);
+        mBuffers[index * 2] = header;
+        mBuffers[index * 2 + 1] = sample.data;
+    }
+
+    private SampleHolder readFromWindow(long offset, long endOffset, SamplePool samplePool)
+            throws IOException {
+        ByteBuffer window = mWindow.fill(mChannel, offset, HEADER_LENGTH, endOffset);
+        if (window == null) {
+            return null;
+        }
+        int index = (int) (offset - mWindow.getStart());
+        int size = window.getInt(index);
+        if (index + HEADER_LENGTH + size > window.limit()) {
+            window = mWindow.fill(mChannel, offset, HEADER_LENGTH + size, endOffset);
+            if (window == null) {
+                return null;
+            }
+            index = 0;
+        }
+        SampleHolder sample = samplePool.acquireSample(size);
+        sample.size = size;
+        sample.flags = window.getInt(index + 4);
+        sample.timeUs = window.getLong(index + 8);
+        sample.data.clear();
+        int windowEnd = window.limit();
+        window.limit(index + HEADER_LENGTH + size);
+        window.position(index + HEADER_LENGTH);
+        sample.data.put(window);
+        // Absolute reads of the window are checked against its limit.
+        window.limit(windowEnd);
+        window.position(0);
+        ++mRecordCount;
+        return sample;
+    }
+
+    private void setChannel(FileChannel channel) {
+        if (mChannel != channel) {
+            mWindow.release();
+            mChannel = channel;
+            mPosition = -1;
+            mHeaderOffset = -1;
+        }
+    }
+
+    private void transfer(int count, long offset, boolean write) throws IOException {
+        long remaining = 0;
+        for (int i = 0; i < count; ++i) {
+            remaining += mBuffers[i].remaining();
+        }
+        try {
+            if (mPosition != offset) {
+                mChannel.position(offset);
+                ++mCallCount;
+                mPosition = offset;
+            }
+            while (remaining > 0) {
+                long transferred =
+                        write
+                                ? mChannel.write(mBuffers, 0, count)
+                                : mChannel.read(mBuffers, 0, count);
+                ++mCallCount;
+                if (transferred < 0) {
+                    throw new EOFException("Record at " + offset + " is truncated");
+                }
+                remaining -= transferred;
+                mPosition += transferred;
+            }
+        } catch (IOException e) {
+            mPosition = -1;
+            mHeaderOffset = -1;
+            throw e;
+        } finally {
+            Arrays.fill(mBuffers, 0, count, null);
+        }
+    }
+}
@@ -172,6 +172,7 @@ public class SimpleSampleBuffer implements BufferManager.SampleBuffer {
 
     @Override
     public void release() {
-        // Not used.
+        // The free buffers count toward the bound of all the pools.
+        mSamplePool.trim();
     }
 }
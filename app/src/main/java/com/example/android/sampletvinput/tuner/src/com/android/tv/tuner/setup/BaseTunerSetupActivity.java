@@ -394,6 +394,7 @@ public class BaseTunerSetupActivity extends SetupActivity {
         int contentTextId = 0;
         switch (tunerType) {
             case TunerHal.TUNER_TYPE_BUILT_IN:
+            case TunerHal.TUNER_TYPE_SIMULATED:
                 contentTextId = R.string.bt_setup_notification_content_text;
                 break;
             case TunerHal.TUNER_TYPE_USB:
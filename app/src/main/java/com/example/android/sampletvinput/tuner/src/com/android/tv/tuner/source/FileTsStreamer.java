@@ -18,12 +18,13 @@ package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source;
 
 import android.content.Context;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.util.Log;
-import android.util.SparseBooleanArray;
 import android.net.Uri;
 import com.android.tv.common.SoftPreconditions;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ChannelScanFileParser.ScanChannel;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.TunerFeatures;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.TunerPreferences;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.TunerChannel;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts.TsParser;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.tvinput.EventDetector;
@@ -31,11 +32,11 @@ import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.tvinput.
 import com.google.android.exoplayer.C;
 import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.TransferListener;
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicLong;
 
 /**
@@ -46,11 +47,17 @@ public class FileTsStreamer implements TsStreamer {
     private static final String TAG = "FileTsStreamer";
 
     private static final int TS_PACKET_SIZE = 188;
-    private static final int TS_SYNC_BYTE = 0x47;
     private static final int MIN_READ_UNIT = TS_PACKET_SIZE * 10;
     private static final int READ_BUFFER_SIZE = MIN_READ_UNIT * 10; // ~20KB
-    private static final int CIRCULAR_BUFFER_SIZE = MIN_READ_UNIT * 4000; // ~ 8MB
-    private static final int PADDING_SIZE = MIN_READ_UNIT * 1000; // ~2MB
+    private static final int MIN_CIRCULAR_BUFFER_SIZE = MIN_READ_UNIT * 400; // ~750KB
+    // The circular buffer is sized to hold this duration of the stream.
+    private static final int TARGET_BUFFERED_DURATION_MS = 4000; // 4 secs.
+    // The bitrate assumed for a file which was not streamed yet, that of an ATSC stream.
+    private static final int DEFAULT_BYTES_PER_SECOND = 19392658 / 8;
+    // The bitrate is measured only from a stream longer than this.
+    private static final long MIN_BITRATE_MEASUREMENT_MS = 2000;
+    // The part of the circular buffer which is kept free for the data being read.
+    private static final int PADDING_RATIO = 4;
     private static final int READ_TIMEOUT_MS = 10000; // 10 secs.
     private static final int BUFFER_UNDERRUN_SLEEP_MS = 10;
     private static final String FILE_DIR =
@@ -59,17 +66,27 @@ public class FileTsStreamer implements TsStreamer {
     // Virtual frequency base used for file-based source
     public static final int FREQ_BASE = 100;
 
+    // The bitrates measured for the files in bytes per second, which size the buffers of the
+    // following streams of the files.
+    private static final Map<String, Integer> sMeasuredBytesPerSecond = new HashMap<>();
+
     private final Object mCircularBufferMonitor = new Object();
-    private final byte[] mCircularBuffer = new byte[CIRCULAR_BUFFER_SIZE];
     private final FileSourceEventDetector mEventDetector;
     private final Context mContext;
 
+    private TsBufferStorage mCircularBuffer;
+    // The storage of the circular buffer, which is reused across the streams.
+    private TsBufferStorage mStorage;
+    private int mPaddingSize;
+    private long mStreamingStartTimeMs;
     private long mBytesFetched;
     private long mLastReadPosition;
     private boolean mStreaming;
 
     private Thread mStreamingThread;
     private StreamProvider mSource;
+    // Set when the file is streamed at the rate of the broadcast instead of as fast as possible.
+    private TsPacer mPacer;
 
     public static class FileDataSource extends TsDataSource {
         private final FileTsStreamer mTsStreamer;
@@ -159,6 +176,7 @@ public class FileTsStreamer implements TsStreamer {
                 return true;
             }
             mStreaming = true;
+            allocateCircularBuffer();
         }
 
         mStreamingThread = new StreamingThread();
@@ -175,6 +193,12 @@ public class FileTsStreamer implements TsStreamer {
             return false;
         }
         mEventDetector.start(mSource, channel.getProgramNumber());
+        mPacer =
+                mContext != null && TunerPreferences.getFileStreamPacing(mContext)
+                        ? new TsPacer(
+                                channel.getPcrPid(),
+                                TunerPreferences.getFileStreamBitrate(mContext))
+                        : null;
         mSource.addPidFilter(channel.getVideoPid());
         for (Integer i : channel.getAudioPids()) {
             mSource.addPidFilter(i);
@@ -191,6 +215,7 @@ public class FileTsStreamer implements TsStreamer {
                 return true;
             }
             mStreaming = true;
+            allocateCircularBuffer();
         }
 
         mStreamingThread = new StreamingThread();
@@ -206,6 +231,9 @@ public class FileTsStreamer implements TsStreamer {
     @Override
     public void stopStream() {
         synchronized (mCircularBufferMonitor) {
+            if (mStreaming) {
+                measureBitrate();
+            }
             mStreaming = false;
             mCircularBufferMonitor.notify();
         }
@@ -217,6 +245,57 @@ public class FileTsStreamer implements TsStreamer {
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
+        synchronized (mCircularBufferMonitor) {
+            if (!mStreaming) {
+                mCircularBuffer = null;
+            }
+        }
+    }
+
+    /**
+     * Sets up a circular buffer which holds {@link #TARGET_BUFFERED_DURATION_MS} of the stream of
+     * the file, estimated from the bitrate measured for the file before. The storage of the
+     * previous stream is reused if it is large enough.
+     */
+    private void allocateCircularBuffer() {
+        String filepath = mSource.getFilepath();
+        Integer bytesPerSecond;
+        synchronized (sMeasuredBytesPerSecond) {
+            bytesPerSecond = sMeasuredBytesPerSecond.get(filepath);
+        }
+        if (bytesPerSecond == null) {
+            bytesPerSecond = DEFAULT_BYTES_PER_SECOND;
+        }
+        int maxSize =
+                mContext != null
+                        ? TunerPreferences.getTsBufferCeilingMb(mContext) * 1024 * 1024
+                        : TunerPreferences.TS_BUFFER_CEILING_MB_DEFAULT * 1024 * 1024;
+        int size =
+                TsBufferStorage.computeCapacity(
+                        bytesPerSecond,
+                        TARGET_BUFFERED_DURATION_MS,
+                        MIN_CIRCULAR_BUFFER_SIZE,
+                        Math.max(MIN_CIRCULAR_BUFFER_SIZE, maxSize));
+        mStorage =
+                TsBufferStorage.reuseOrAllocate(
+                        mStorage, size, mContext != null ? mContext.getCacheDir() : null);
+        mCircularBuffer = mStorage;
+        mPaddingSize = mCircularBuffer.getCapacity() / PADDING_RATIO;
+        mStreamingStartTimeMs = SystemClock.elapsedRealtime();
+        Log.i(TAG, "Circular buffer for " + bytesPerSecond + " bytes/sec: " + mCircularBuffer);
+    }
+
+    private void measureBitrate() {
+        long durationMs = SystemClock.elapsedRealtime() - mStreamingStartTimeMs;
+        if (mSource == null || durationMs < MIN_BITRATE_MEASUREMENT_MS) {
+            return;
+        }
+        int bytesPerSecond = (int) (mBytesFetched * 1000 / durationMs);
+        if (bytesPerSecond > 0) {
+            synchronized (sMeasuredBytesPerSecond) {
+                sMeasuredBytesPerSecond.put(mSource.getFilepath(), bytesPerSecond);
+            }
+        }
     }
 
     @Override
@@ -238,27 +317,22 @@ public class FileTsStreamer implements TsStreamer {
     /** Provides MPEG-2 transport stream from a local file. Stream can be filtered by PID. */
     public static class StreamProvider {
         private final String mFilepath;
-        private final SparseBooleanArray mPids = new SparseBooleanArray();
-        private final byte[] mPreBuffer = new byte[READ_BUFFER_SIZE];
+        private final TsPidFilter mPidFilter = new TsPidFilter();
 
-        private BufferedInputStream mInputStream;
+        private TsFileReader mFile;
 
         private StreamProvider(String filepath) {
             mFilepath = filepath;
-            open(filepath);
-        }
-
-        private void open(String filepath) {
             try {
-                mInputStream = new BufferedInputStream(new FileInputStream(filepath));
+                mFile = TsFileReader.open(filepath);
             } catch (IOException e) {
-                Log.e(TAG, "Error opening input stream", e);
-                mInputStream = null;
+                Log.e(TAG, "Error opening input file", e);
+                mFile = null;
             }
         }
 
         private boolean isReady() {
-            return mInputStream != null;
+            return mFile != null;
         }
 
         /** Returns the file path of the MPEG-2 TS file. */
@@ -268,17 +342,17 @@ public class FileTsStreamer implements TsStreamer {
 
         /** Adds a pid for filtering from the MPEG-2 TS file. */
         public void addPidFilter(int pid) {
-            mPids.put(pid, true);
+            mPidFilter.add(pid);
         }
 
         /** Returns whether the current pid filter is empty or not. */
         public boolean isFilterEmpty() {
-            return mPids.size() == 0;
+            return mPidFilter.isEmpty();
         }
 
         /** Clears the current pid filter. */
         public void clearPidFilter() {
-            mPids.clear();
+            mPidFilter.clear();
         }
 
         /**
@@ -287,7 +361,12 @@ public class FileTsStreamer implements TsStreamer {
          * @param pid the pid to check
          */
         public boolean isInFilter(int pid) {
-            return mPids.get(pid);
+            return mPidFilter.contains(pid);
+        }
+
+        /** Returns the number of bytes read from the file before the filtering. */
+        private long getBytesScanned() {
+            return mFile.getBytesScanned();
         }
 
         /**
@@ -297,53 +376,26 @@ public class FileTsStreamer implements TsStreamer {
          * @return the number of read bytes
          */
         private int read(byte[] inputBuffer) {
-            int readSize = readInternal();
-            if (readSize <= 0) {
-                // Reached the end of stream. Restart from the beginning.
-                close();
-                open(mFilepath);
-                if (mInputStream == null) {
-                    return -1;
-                }
-                readSize = readInternal();
-            }
-
-            if (mPreBuffer[0] != TS_SYNC_BYTE) {
-                Log.e(TAG, "Error reading input stream - no TS sync found");
-                return -1;
-            }
-            int filteredSize = 0;
-            for (int i = 0, destPos = 0; i < readSize; i += TS_PACKET_SIZE) {
-                if (mPreBuffer[i] == TS_SYNC_BYTE) {
-                    int pid = ((mPreBuffer[i + 1] & 0x1f) << 8) + (mPreBuffer[i + 2] & 0xff);
-                    if (mPids.get(pid)) {
-                        System.arraycopy(mPreBuffer, i, inputBuffer, destPos, TS_PACKET_SIZE);
-                        destPos += TS_PACKET_SIZE;
-                        filteredSize += TS_PACKET_SIZE;
-                    }
-                }
-            }
-            return filteredSize;
-        }
-
-        private int readInternal() {
-            int readSize;
             try {
-                readSize = mInputStream.read(mPreBuffer, 0, mPreBuffer.length);
+                int readSize = mFile.read(mPidFilter, inputBuffer, 0, inputBuffer.length);
+                if (readSize < 0) {
+                    // Reached the end of stream. Restart from the beginning.
+                    mFile.rewind();
+                    readSize = mFile.read(mPidFilter, inputBuffer, 0, inputBuffer.length);
+                }
+                return readSize;
             } catch (IOException e) {
-                Log.e(TAG, "Error reading input stream", e);
+                Log.e(TAG, "Error reading input file", e);
                 return -1;
             }
-            return readSize;
         }
 
         private void close() {
             try {
-                mInputStream.close();
+                mFile.close();
             } catch (IOException e) {
-                Log.e(TAG, "Error closing input stream:", e);
+                Log.e(TAG, "Error closing input file:", e);
             }
-            mInputStream = null;
         }
     }
 
@@ -379,24 +431,11 @@ public class FileTsStreamer implements TsStreamer {
                 Log.w(TAG, "Stream is already stopped.");
                 return -1;
             }
-            if (mBytesFetched - CIRCULAR_BUFFER_SIZE > pos) {
+            if (mBytesFetched - mCircularBuffer.getCapacity() > pos) {
                 Log.e(TAG, "Demux is requesting the data which is already overwritten.");
                 return -1;
             }
-            int posInBuffer = (int) (pos % CIRCULAR_BUFFER_SIZE);
-            int bytesToCopyInFirstPass = amount;
-            if (posInBuffer + bytesToCopyInFirstPass > mCircularBuffer.length) {
-                bytesToCopyInFirstPass = mCircularBuffer.length - posInBuffer;
-            }
-            System.arraycopy(mCircularBuffer, posInBuffer, buffer, offset, bytesToCopyInFirstPass);
-            if (bytesToCopyInFirstPass < amount) {
-                System.arraycopy(
-                        mCircularBuffer,
-                        0,
-                        buffer,
-                        offset + bytesToCopyInFirstPass,
-                        amount - bytesToCopyInFirstPass);
-            }
+            mCircularBuffer.read(pos, buffer, offset, amount);
             mLastReadPosition = pos + amount;
             mCircularBufferMonitor.notify();
             return amount;
@@ -431,6 +470,7 @@ public class FileTsStreamer implements TsStreamer {
         @Override
         public void run() {
             byte[] dataBuffer = new byte[READ_BUFFER_SIZE];
+            long bytesScanned = mSource.getBytesScanned();
 
             synchronized (mCircularBufferMonitor) {
                 mBytesFetched = 0;
@@ -439,7 +479,8 @@ public class FileTsStreamer implements TsStreamer {
 
             while (true) {
                 synchronized (mCircularBufferMonitor) {
-                    while ((mBytesFetched - mLastReadPosition + PADDING_SIZE) > CIRCULAR_BUFFER_SIZE
+                    while ((mBytesFetched - mLastReadPosition + mPaddingSize)
+                                    > mCircularBuffer.getCapacity()
                             && mStreaming) {
                         try {
                             mCircularBufferMonitor.wait();
@@ -454,6 +495,15 @@ public class FileTsStreamer implements TsStreamer {
                 }
 
                 int bytesWritten = mSource.read(dataBuffer);
+                if (mPacer != null && bytesWritten >= 0) {
+                    long newBytesScanned = mSource.getBytesScanned();
+                    try {
+                        mPacer.pace(dataBuffer, 0, bytesWritten, newBytesScanned - bytesScanned);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    bytesScanned = newBytesScanned;
+                }
                 if (bytesWritten <= 0) {
                     try {
                         // When buffer is underrun, we sleep for short time to prevent
@@ -468,27 +518,16 @@ public class FileTsStreamer implements TsStreamer {
                 mEventDetector.feedTSStream(dataBuffer, 0, bytesWritten);
 
                 synchronized (mCircularBufferMonitor) {
-                    int posInBuffer = (int) (mBytesFetched % CIRCULAR_BUFFER_SIZE);
-                    int bytesToCopyInFirstPass = bytesWritten;
-                    if (posInBuffer + bytesToCopyInFirstPass > mCircularBuffer.length) {
-                        bytesToCopyInFirstPass = mCircularBuffer.length - posInBuffer;
-                    }
-                    System.arraycopy(
-                            dataBuffer, 0, mCircularBuffer, posInBuffer, bytesToCopyInFirstPass);
-                    if (bytesToCopyInFirstPass < bytesWritten) {
-                        System.arraycopy(
-                                dataBuffer,
-                                bytesToCopyInFirstPass,
-                                mCircularBuffer,
-                                0,
-                                bytesWritten - bytesToCopyInFirstPass);
-                    }
+                    mCircularBuffer.write(mBytesFetched, dataBuffer, 0, bytesWritten);
                     mBytesFetched += bytesWritten;
                     mCircularBufferMonitor.notify();
                 }
             }
 
             Log.i(TAG, "Streaming stopped");
+            if (mPacer != null) {
+                Log.i(TAG, "Pacing " + mPacer.getStats());
+            }
             mSource.close();
         }
     }
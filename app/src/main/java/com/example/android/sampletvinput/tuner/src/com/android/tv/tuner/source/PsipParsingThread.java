@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source;
+
+import android.os.SystemClock;
+import android.support.annotation.IntDef;
+import android.util.Log;
+import android.util.Pair;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.tvinput.EventDetector;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.tvinput.EventDetector.EventListener;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Feeds TS data to an {@link EventDetector} on its own thread, so that parsing PSI/PSIP sections
+ * does not delay the thread which reads the TS data.
+ *
+ * <p>The data is handed off through a bounded queue of chunks. When the queue is full, either the
+ * oldest chunk is dropped ({@link #OVERFLOW_POLICY_DROP_OLDEST}) or the feeding thread waits until
+ * a chunk is parsed ({@link #OVERFLOW_POLICY_BACKPRESSURE}). A dropped chunk breaks the continuity
+ * counters of the PIDs in it, so the parser discards the sections which were partly dropped and
+ * picks up again from the next section start.
+ */
+public class PsipParsingThread extends Thread {
+    private static final String TAG = "PsipParsingThread";
+    private static final boolean DEBUG = false;
+
+    @IntDef({OVERFLOW_POLICY_DROP_OLDEST, OVERFLOW_POLICY_BACKPRESSURE})
+    @Retention(RetentionPolicy.SOURCE)
+    public @interface OverflowPolicy {}
+
+    /** Drops the oldest queued chunk, so that feeding never waits. */
+    public static final int OVERFLOW_POLICY_DROP_OLDEST = 0;
+
+    /** Makes the feeding thread wait until there is room in the queue. */
+    public static final int OVERFLOW_POLICY_BACKPRESSURE = 1;
+
+    private static final long NANOS_PER_MS = 1000000;
+
+    private final EventDetector mEventDetector;
+    private final List<Pair<EventListener, Boolean>> mEventListenerActions;
+    private final int mChunkSize;
+    private final int mCapacity;
+    @OverflowPolicy private final int mOverflowPolicy;
+
+    // Guarded by mLock.
+    private final Object mLock = new Object();
+    private final ArrayDeque<Chunk> mQueue;
+    private final ArrayDeque<Chunk> mFreeChunks;
+    private boolean mRunning = true;
+    private int mMaxQueueDepth;
+    private long mFedChunkCount;
+    private long mDroppedChunkCount;
+    private long mParsedChunkCount;
+    private long mTotalParseTimeNs;
+    private long mMaxParseTimeNs;
+    private long mTotalLatencyNs;
+    private long mMaxLatencyNs;
+
+    private static class Chunk {
+        private final byte[] mData;
+        private int mLength;
+        private long mFedTimeNs;
+
+        private Chunk(int size) {
+            mData = new byte[size];
+        }
+    }
+
+    /**
+     * Creates a thread for parsing PSI/PSIP sections.
+     *
+     * @param eventDetector the detector which parses the TS data
+     * @param eventListenerActions the pending registrations ({@code true}) and unregistrations
+     *     ({@code false}) of event listeners, which are applied on this thread. Accesses to the
+     *     list should be synchronized on the list.
+     * @param chunkSize the maximum number of bytes fed at a time
+     * @param capacity the maximum number of chunks which can be queued
+     * @param overflowPolicy what to do when the queue is full
+     */
+    public PsipParsingThread(
+            EventDetector eventDetector,
+            List<Pair<EventListener, Boolean>> eventListenerActions,
+            int chunkSize,
+            int capacity,
+            @OverflowPolicy int overflowPolicy) {
+        super(TAG);
+        mEventDetector = eventDetector;
+        mEventListenerActions = eventListenerActions;
+        mChunkSize = chunkSize;
+        mCapacity = capacity;
+        mOverflowPolicy = overflowPolicy;
+        mQueue = new ArrayDeque<>(capacity);
+        mFreeChunks = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Queues TS data to parse. The data is copied, so the buffer can be reused once this method
+     * returns.
+     *
+     * @param data buffer for TS stream
+     * @param length the length of available data, which is at most the chunk size
+     */
+    public void feed(byte[] data, int length) {
+        synchronized (mLock) {
+            if (!mRunning) {
+                return;
+            }
+            while (mQueue.size() >= mCapacity) {
+                if (mOverflowPolicy == OVERFLOW_POLICY_DROP_OLDEST) {
+                    mFreeChunks.add(mQueue.poll());
+                    mDroppedChunkCount++;
+                    break;
+                }
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                if (!mRunning) {
+                    return;
+                }
+            }
+            Chunk chunk = mFreeChunks.isEmpty() ? new Chunk(mChunkSize) : mFreeChunks.poll();
+            System.arraycopy(data, 0, chunk.mData, 0, length);
+            chunk.mLength = length;
+            chunk.mFedTimeNs = SystemClock.elapsedRealtimeNanos();
+            mQueue.add(chunk);
+            mFedChunkCount++;
+            mMaxQueueDepth = Math.max(mMaxQueueDepth, mQueue.size());
+            mLock.notifyAll();
+        }
+    }
+
+    /** Stops the thread after the chunk being parsed. The queued chunks are discarded. */
+    public void quit() {
+        synchronized (mLock) {
+            mRunning = false;
+            mQueue.clear();
+            mLock.notifyAll();
+        }
+    }
+
+    /** Returns the number of chunks waiting to be parsed. */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mQueue.size();
+        }
+    }
+
+    /** Returns the number of chunks dropped because the queue was full. */
+    public long getDroppedChunkCount() {
+        synchronized (mLock) {
+            return mDroppedChunkCount;
+        }
+    }
+
+    /** Returns the queue depth and the parse latency statistics. */
+    public String getStats() {
+        synchronized (mLock) {
+            long parsedCount = Math.max(mParsedChunkCount, 1);
+            return String.format(
+                    Locale.US,
+                    "queue depth: %d (max %d/%d), chunks fed: %d, parsed: %d, dropped: %d, "
+                            + "parse time: %.2fms avg %.2fms max, "
+                            + "latency: %.2fms avg %.2fms max",
+                    mQueue.size(),
+                    mMaxQueueDepth,
+                    mCapacity,
+                    mFedChunkCount,
+                    mParsedChunkCount,
+                    mDroppedChunkCount,
+                    (double) mTotalParseTimeNs / parsedCount / NANOS_PER_MS,
+                    (double) mMaxParseTimeNs / NANOS_PER_MS,
+                    (double) mTotalLatencyNs / parsedCount / NANOS_PER_MS,
+                    (double) mMaxLatencyNs / NANOS_PER_MS);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            Chunk chunk;
+            synchronized (mLock) {
+                while (mRunning && mQueue.isEmpty()) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        mRunning = false;
+                    }
+                }
+                if (!mRunning) {
+                    break;
+                }
+                chunk = mQueue.poll();
+                // Wakes up the feeding thread waiting for room in the queue.
+                mLock.notifyAll();
+            }
+
+            applyEventListenerActions();
+            long startTimeNs = SystemClock.elapsedRealtimeNanos();
+            mEventDetector.feedTSStream(chunk.mData, 0, chunk.mLength);
+            long endTimeNs = SystemClock.elapsedRealtimeNanos();
+
+            synchronized (mLock) {
+                long parseTimeNs = endTimeNs - startTimeNs;
+                long latencyNs = endTimeNs - chunk.mFedTimeNs;
+                mParsedChunkCount++;
+                mTotalParseTimeNs += parseTimeNs;
+                mMaxParseTimeNs = Math.max(mMaxParseTimeNs, parseTimeNs);
+                mTotalLatencyNs += latencyNs;
+                mMaxLatencyNs = Math.max(mMaxLatencyNs, latencyNs);
+                mFreeChunks.add(chunk);
+            }
+        }
+        if (DEBUG) Log.d(TAG, "PSIP parsing stopped, " + getStats());
+    }
+
+    private void applyEventListenerActions() {
+        synchronized (mEventListenerActions) {
+            for (Pair<EventListener, Boolean> listenerAction : mEventListenerActions) {
+                if (listenerAction.second) {
+                    mEventDetector.registerListener(listenerAction.first);
+                } else {
+                    mEventDetector.unregisterListener(listenerAction.first);
+                }
+            }
+            mEventListenerActions.clear();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source;
+
+/**
+ * Decides what happens when a reader of a {@link TsRingBuffer} falls a whole capacity behind the
+ * writer, so that the data it has not read yet is about to be overwritten.
+ *
+ * <p>The writer may wait for the reader for a while, may hand the data to the policy before
+ * overwriting it, and the reader may get the overwritten data back from the policy. A reader whose
+ * data is lost anyway skips to the live position.
+ */
+abstract class SlowReaderPolicy {
+    /** Skips to the live position as soon as the data of the reader is overwritten. */
+    static final SlowReaderPolicy SKIP_TO_LIVE = new SlowReaderPolicy() {};
+
+    /**
+     * Returns a policy which makes the writer wait up to the given time for the reader before
+     * overwriting its data. Once the writer gave up, it does not wait again until the reader
+     * catches up with the buffer, so that a stalled reader delays the stream only once.
+     */
+    static SlowReaderPolicy blockWriter(final long maxBlockTimeMs) {
+        return new SlowReaderPolicy() {
+            @Override
+            long getWriterBlockTimeMs() {
+                return maxBlockTimeMs;
+            }
+
+            @Override
+            public String toString() {
+                return "block writer " + maxBlockTimeMs + "ms";
+            }
+        };
+    }
+
+    /**
+     * Returns how long the writer may wait for the reader to read data which is about to be
+     * overwritten. Called on the writer thread.
+     */
+    long getWriterBlockTimeMs() {
+        return 0;
+    }
+
+    /**
+     * Called on the writer thread right before the data in {@code [from, to)}, which the reader has
+     * not read, is overwritten. The data can still be read from {@code storage} meanwhile.
+     */
+    void onOverwrite(TsBufferStorage storage, long from, long to) {}
+
+    /**
+     * Reads data which was overwritten in the ring buffer. Called on the reader thread.
+     *
+     * @return the number of bytes read, or {@link TsRingBuffer#RESULT_OVERWRITTEN} if the data at
+     *     {@code pos} is not kept by the policy
+     */
+    int readOverwritten(long pos, byte[] buffer, int offset, int amount) {
+        return TsRingBuffer.RESULT_OVERWRITTEN;
+    }
+
+    /** Releases the resources held for the reader when the reader is closed. */
+    void release() {}
+
+    @Override
+    public String toString() {
+        return "skip to live";
+    }
+}
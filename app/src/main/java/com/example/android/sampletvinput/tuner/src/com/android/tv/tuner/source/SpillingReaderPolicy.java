@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source;
+
+import android.os.SystemClock;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link SlowReaderPolicy} which spills the data a reader has not read to a file before the
+ * data is overwritten in the ring buffer, and serves the data back to the reader in order. A
+ * recording can thereby ride out a slow disk for a while instead of losing content.
+ *
+ * <p>The spilled data is a contiguous range of the stream, which starts at the read position of
+ * the reader and is kept in a circular file of a bounded size. When the file is full, nothing is
+ * spilled any more, so that the reader reads the whole range before it skips to the live position
+ * and spilling starts over.
+ *
+ * <p>The writer of the ring buffer never waits for the reader or the disk. It only copies the
+ * data into a staging buffer, which is mapped from a file like {@link TsBufferStorage} so that it
+ * stays out of the Java heap, and a spill thread writes the staged data to the spill file. If the
+ * staged data does not fit because the spill thread falls behind, the data is dropped and counted
+ * the same as when the file is full. The reader reads the staged data from memory, and the file
+ * without holding the lock which the writer takes.
+ */
+final class SpillingReaderPolicy extends SlowReaderPolicy {
+    private static final String TAG = "SpillingReaderPolicy";
+    private static final boolean DEBUG = false;
+
+    // ~3 secs of ATSC, which the spill thread may fall behind the writer by.
+    private static final int MAX_STAGING_SIZE = 8 * 1024 * 1024;
+
+    private final File mSpillDir;
+    private final int mMaxSpillSize;
+    private final int mStagingSize;
+
+    // Guards the staging buffer and the spilled range, which the writer extends, the spill thread
+    // moves to the file and the reader consumes. No I/O is done while holding it.
+    private final Object mLock = new Object();
+    private final ByteBuffer mStaging;
+    // Used only by the writer.
+    private final ByteBuffer mStagingWriteView;
+    private SpillThread mSpillThread;
+    private FileChannel mChannel;
+    private boolean mReleased;
+    private boolean mFailed;
+    // Changed whenever the spilled range starts over, so that the I/O which was done outside the
+    // lock for the previous range is discarded.
+    private int mGeneration;
+    // The range of stream positions which is kept. [mSpillStart, mFileEnd) is in the file, and
+    // [mFileEnd, mSpillEnd) is in the staging buffer.
+    private long mSpillStart;
+    private long mFileEnd;
+    private long mSpillEnd;
+    // Set when the file or the staging buffer got full, until the reader skips over the rest of
+    // the stream.
+    private boolean mOverflowed;
+
+    private int mSpillCount;
+    private long mSpilledBytes;
+    private long mServedBytes;
+    private long mDroppedBytes;
+    private long mStagingDroppedBytes;
+    private long mMaxSpilledSize;
+    private long mSpillTimeMs;
+
+    /**
+     * Creates a policy, and maps its staging buffer. The pages of the buffer are only allocated
+     * once data is spilled.
+     *
+     * @param spillDir the directory for the spill file and the staging buffer
+     * @param maxSpillSize the largest amount of data to keep in the spill file
+     */
+    SpillingReaderPolicy(File spillDir, int maxSpillSize) {
+        mSpillDir = spillDir;
+        mMaxSpillSize = maxSpillSize;
+        mStagingSize = Math.min(maxSpillSize, MAX_STAGING_SIZE);
+        mStaging = TsBufferStorage.allocateBuffer(mStagingSize, spillDir);
+        mStagingWriteView = mStaging.duplicate();
+    }
+
+    @Override
+    void onOverwrite(TsBufferStorage storage, long from, long to) {
+        synchronized (mLock) {
+            if (mReleased || mFailed) {
+                return;
+            }
+            if (mOverflowed) {
+                mDroppedBytes += to - from;
+                return;
+            }
+            if (from != mSpillEnd) {
+                // The reader has read past the spilled data, or nothing was spilled yet.
+                if (DEBUG) Log.d(TAG, "Starts spilling at " + from);
+                mSpillStart = from;
+                mFileEnd = from;
+                mSpillEnd = from;
+                mGeneration++;
+                mSpillCount++;
+            }
+            int length = (int) (to - from);
+            if (mSpillEnd - mSpillStart + length > mMaxSpillSize) {
+                Log.w(TAG, "Spill file is full, the reader will skip " + (to - mSpillStart));
+                mOverflowed = true;
+                mDroppedBytes += length;
+                return;
+            }
+            if (mSpillEnd - mFileEnd + length > mStagingSize) {
+                Log.w(TAG, "Spilling falls behind, the reader will skip " + (to - mSpillStart));
+                mOverflowed = true;
+                mDroppedBytes += length;
+                mStagingDroppedBytes += length;
+                return;
+            }
+            if (mSpillThread == null) {
+                mSpillThread = new SpillThread();
+                mSpillThread.start();
+            }
+            // The staging buffer is circular as well.
+            int stagingPos = (int) (from % mStagingSize);
+            int firstLength = Math.min(length, mStagingSize - stagingPos);
+            mStagingWriteView.limit(stagingPos + firstLength).position(stagingPos);
+            storage.copyTo(from, mStagingWriteView);
+            if (firstLength < length) {
+                mStagingWriteView.limit(length - firstLength).position(0);
+                storage.copyTo(from + firstLength, mStagingWriteView);
+            }
+            mSpillEnd = to;
+            mMaxSpilledSize = Math.max(mMaxSpilledSize, mSpillEnd - mSpillStart);
+            mLock.notifyAll();
+        }
+    }
+
+    @Override
+    int readOverwritten(long pos, byte[] buffer, int offset, int amount) {
+        FileChannel channel;
+        int generation;
+        int length;
+        synchronized (mLock) {
+            if (mFailed || pos < mSpillStart || pos >= mSpillEnd) {
+                // The data is lost, and the reader skips to the live position.
+                mOverflowed = false;
+                mSpillStart = mSpillEnd;
+                return TsRingBuffer.RESULT_OVERWRITTEN;
+            }
+            if (pos >= mFileEnd) {
+                // Not written to the file yet.
+                length = (int) Math.min(amount, mSpillEnd - pos);
+                int stagingPos = (int) (pos % mStagingSize);
+                length = Math.min(length, mStagingSize - stagingPos);
+                ByteBuffer view = mStaging.duplicate();
+                view.position(stagingPos);
+                view.get(buffer, offset, length);
+                return consumeLocked(pos, length);
+            }
+            channel = mChannel;
+            generation = mGeneration;
+            length = (int) Math.min(amount, mFileEnd - pos);
+        }
+        int filePos = (int) (pos % mMaxSpillSize);
+        length = Math.min(length, mMaxSpillSize - filePos);
+        ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+        boolean failed = false;
+        try {
+            while (target.hasRemaining()) {
+                int read = channel.read(target, filePos + target.position() - offset);
+                if (read < 0) {
+                    throw new IOException("Unexpected end of the spill file");
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to read spilled data, the reader will skip", e);
+            failed = true;
+        }
+        synchronized (mLock) {
+            if (failed) {
+                mFailed = true;
+            }
+            if (failed || generation != mGeneration || pos < mSpillStart) {
+                mSpillStart = mSpillEnd;
+                return TsRingBuffer.RESULT_OVERWRITTEN;
+            }
+            return consumeLocked(pos, length);
+        }
+    }
+
+    @Override
+    void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            // The spill thread closes the file.
+            mLock.notifyAll();
+        }
+    }
+
+    private int consumeLocked(long pos, int length) {
+        // The space of the data read can be spilled to again.
+        mSpillStart = pos + length;
+        mServedBytes += length;
+        return length;
+    }
+
+    private FileChannel openSpillFile() throws IOException {
+        File file = File.createTempFile("ts_spill", null, mSpillDir);
+        try {
+            return new RandomAccessFile(file, "rw").getChannel();
+        } finally {
+            // The file stays accessible through the channel until the channel is closed.
+            if (!file.delete()) {
+                Log.w(TAG, "Failed to delete " + file);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (mLock) {
+            return "spill: "
+                    + (mSpillEnd - mSpillStart) / 1024
+                    + "KB pending ("
+                    + (mSpillEnd - mFileEnd) / 1024
+                    + "KB staged, max "
+                    + mMaxSpilledSize / 1024
+                    + "KB of "
+                    + mMaxSpillSize / 1024
+                    + "KB), spilled "
+                    + mSpilledBytes / 1024
+                    + "KB in "
+                    + mSpillCount
+                    + " times and "
+                    + mSpillTimeMs
+                    + "ms, served "
+                    + mServedBytes / 1024
+                    + "KB, dropped "
+                    + mDroppedBytes / 1024
+                    + "KB ("
+                    + mStagingDroppedBytes / 1024
+                    + "KB behind the disk)"
+                    + (mFailed ? ", failed" : "");
+        }
+    }
+
+    /** Writes the staged data to the spill file. */
+    private class SpillThread extends Thread {
+        // Used only by this thread.
+        private final ByteBuffer mStagingReadView;
+
+        private SpillThread() {
+            super(TAG);
+            mStagingReadView = mStaging.duplicate();
+        }
+
+        @Override
+        public void run() {
+            FileChannel channel = null;
+            try {
+                while (true) {
+                    long start;
+                    int length;
+                    int generation;
+                    synchronized (mLock) {
+                        while (!mReleased && !mFailed && mFileEnd == mSpillEnd) {
+                            mLock.wait();
+                        }
+                        if (mReleased || mFailed) {
+                            break;
+                        }
+                        start = mFileEnd;
+                        generation = mGeneration;
+                        // A range is written up to the end of the staging buffer or the file.
+                        int stagingPos = (int) (start % mStagingSize);
+                        int filePos = (int) (start % mMaxSpillSize);
+                        length = (int) Math.min(mSpillEnd - start, mStagingSize - stagingPos);
+                        length = Math.min(length, mMaxSpillSize - filePos);
+                        // The writer does not touch the staged range until it is moved to the
+                        // file, unless the range starts over.
+                        mStagingReadView.limit(stagingPos + length).position(stagingPos);
+                    }
+                    long startTimeMs = SystemClock.elapsedRealtime();
+                    if (channel == null) {
+                        channel = openSpillFile();
+                        synchronized (mLock) {
+                            mChannel = channel;
+                        }
+                    }
+                    long filePos = start % mMaxSpillSize;
+                    while (mStagingReadView.hasRemaining()) {
+                        filePos += channel.write(mStagingReadView, filePos);
+                    }
+                    synchronized (mLock) {
+                        mSpillTimeMs += SystemClock.elapsedRealtime() - startTimeMs;
+                        if (generation == mGeneration && start == mFileEnd) {
+                            mFileEnd = start + length;
+                            mSpilledBytes += length;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to spill, the reader will skip", e);
+                synchronized (mLock) {
+                    mFailed = true;
+                }
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Spill thread is interrupted", e);
+            } finally {
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        Log.w(TAG, "Failed to close the spill file", e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source;
+
+import android.support.annotation.Nullable;
+import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The storage of a circular buffer of TS data, kept out of the Java heap. The buffer is mapped
+ * from a temporary file in the given directory, so that its pages belong to the page cache, which
+ * the kernel can write back and reclaim. A direct buffer is only the fallback when there is no
+ * directory or the mapping fails, since on Android it is backed by a non-movable array which
+ * counts against the heap limit like any other.
+ *
+ * <p>A storage is meant to be reused by its streamer for every stream, since a dropped mapping or
+ * direct buffer is only freed when it is garbage collected.
+ *
+ * <p>Positions are absolute stream positions, which are wrapped around the capacity. Only one
+ * thread should write, but any number of threads may read at the same time.
+ */
+final class TsBufferStorage {
+    private static final String TAG = "TsBufferStorage";
+
+    private static final int TS_PACKET_SIZE = 188;
+
+    private final ByteBuffer mBuffer;
+    private final ByteBuffer mWriteView;
+    private final int mCapacity;
+    private final boolean mMapped;
+
+    private TsBufferStorage(ByteBuffer buffer, boolean mapped) {
+        mBuffer = buffer;
+        mWriteView = buffer.duplicate();
+        mCapacity = buffer.capacity();
+        mMapped = mapped;
+    }
+
+    /**
+     * Returns the capacity which holds the given duration of a stream, rounded down to whole TS
+     * packets.
+     *
+     * @param bytesPerSecond the bitrate of the stream in bytes per second
+     * @param durationMs the duration to hold
+     * @param minCapacity the smallest capacity to return
+     * @param maxCapacity the largest capacity to return
+     */
+    static int computeCapacity(
+            long bytesPerSecond, long durationMs, int minCapacity, int maxCapacity) {
+        long capacity = bytesPerSecond * durationMs / 1000;
+        capacity = Math.max(minCapacity, Math.min(maxCapacity, capacity));
+        return (int) (capacity - capacity % TS_PACKET_SIZE);
+    }
+
+    /**
+     * Returns {@code storage} if it holds at least the given capacity, or allocates a new storage
+     * of the capacity otherwise.
+     *
+     * @param storage the storage to reuse, or {@code null}
+     * @param capacity the capacity in bytes
+     * @param mappingDir the directory for a temporary file to map the buffer from, or {@code null}
+     *     to use direct memory
+     */
+    static TsBufferStorage reuseOrAllocate(
+            @Nullable TsBufferStorage storage, int capacity, @Nullable File mappingDir) {
+        if (storage != null && storage.mCapacity >= capacity) {
+            return storage;
+        }
+        return allocate(capacity, mappingDir);
+    }
+
+    /**
+     * Allocates a storage of the given capacity.
+     *
+     * @param capacity the capacity in bytes
+     * @param mappingDir the directory for a temporary file to map the buffer from, or {@code null}
+     *     to use direct memory
+     */
+    static TsBufferStorage allocate(int capacity, @Nullable File mappingDir) {
+        ByteBuffer buffer = allocateBuffer(capacity, mappingDir);
+        return new TsBufferStorage(buffer, buffer instanceof MappedByteBuffer);
+    }
+
+    /**
+     * Allocates a buffer which is mapped from a temporary file in {@code mappingDir}, or a direct
+     * buffer if there is no directory or the mapping fails.
+     */
+    static ByteBuffer allocateBuffer(int capacity, @Nullable File mappingDir) {
+        if (mappingDir != null) {
+            try {
+                return map(capacity, mappingDir);
+            } catch (IOException e) {
+                Log.w(TAG, "Failed to map a buffer file, falling back to direct memory", e);
+            }
+        }
+        return ByteBuffer.allocateDirect(capacity);
+    }
+
+    private static MappedByteBuffer map(int capacity, File dir) throws IOException {
+        File file = File.createTempFile("ts_buffer", null, dir);
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(capacity);
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        } finally {
+            // The mapping stays valid after the file is closed and deleted.
+            if (!file.delete()) {
+                Log.w(TAG, "Failed to delete " + file);
+            }
+        }
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    boolean isMapped() {
+        return mMapped;
+    }
+
+    /** Writes data at the given stream position. Should be called only from the writer thread. */
+    void write(long pos, byte[] data, int offset, int length) {
+        int posInBuffer = (int) (pos % mCapacity);
+        int firstLength = Math.min(length, mCapacity - posInBuffer);
+        mWriteView.position(posInBuffer);
+        mWriteView.put(data, offset, firstLength);
+        if (firstLength < length) {
+            mWriteView.position(0);
+            mWriteView.put(data, offset + firstLength, length - firstLength);
+        }
+    }
+
+    /** Reads data at the given stream position. */
+    void read(long pos, byte[] buffer, int offset, int length) {
+        // Each read uses its own view, so that readers do not share a position.
+        ByteBuffer view = mBuffer.duplicate();
+        int posInBuffer = (int) (pos % mCapacity);
+        int firstLength = Math.min(length, mCapacity - posInBuffer);
+        view.position(posInBuffer);
+        view.get(buffer, offset, firstLength);
+        if (firstLength < length) {
+            view.position(0);
+            view.get(buffer, offset + firstLength, length - firstLength);
+        }
+    }
+
+    /**
+     * Copies data at the given stream position into {@code target}, without copying it to the Java
+     * heap. As many bytes as remain in {@code target} are copied.
+     */
+    void copyTo(long pos, ByteBuffer target) {
+        ByteBuffer view = mBuffer.duplicate();
+        int length = target.remaining();
+        int posInBuffer = (int) (pos % mCapacity);
+        int firstLength = Math.min(length, mCapacity - posInBuffer);
+        view.limit(posInBuffer + firstLength).position(posInBuffer);
+        target.put(view);
+        if (firstLength < length) {
+            view.limit(length - firstLength).position(0);
+            target.put(view);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return (mMapped ? "mapped " : "direct ") + (mCapacity / 1024) + "KB";
+    }
+}
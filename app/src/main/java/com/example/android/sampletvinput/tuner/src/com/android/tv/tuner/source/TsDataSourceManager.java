@@ -32,6 +32,12 @@ import java.util.concurrent.ConcurrentHashMap;
  * for per session.
  */
 public class TsDataSourceManager {
+    // A recording spills the data which the stream overwrites to a file, so that the stream, which
+    // is shared with the live session, never waits for it. Without a context, the stream waits
+    // for a while instead. Playback skips to the live position at once.
+    private static final long RECORDING_WRITER_BLOCK_MS = 200;
+    private static final int RECORDING_MAX_SPILL_SIZE = 64 * 1024 * 1024; // ~26 secs of ATSC.
+
     private static final Object sLock = new Object();
     private static final Map<TsDataSource, TsStreamer> sTsStreamers = new ConcurrentHashMap<>();
 
@@ -89,7 +95,22 @@ public class TsDataSourceManager {
             return null;
         }
         return mTunerStreamerManager.createDataSource(
-                context, channel, eventListener, mId, !mIsRecording && mKeepTuneStatus);
+                context,
+                channel,
+                eventListener,
+                mId,
+                !mIsRecording && mKeepTuneStatus,
+                createSlowReaderPolicy(context));
+    }
+
+    private SlowReaderPolicy createSlowReaderPolicy(Context context) {
+        if (!mIsRecording) {
+            return SlowReaderPolicy.SKIP_TO_LIVE;
+        }
+        if (context == null) {
+            return SlowReaderPolicy.blockWriter(RECORDING_WRITER_BLOCK_MS);
+        }
+        return new SpillingReaderPolicy(context.getCacheDir(), RECORDING_MAX_SPILL_SIZE);
     }
 
     /**
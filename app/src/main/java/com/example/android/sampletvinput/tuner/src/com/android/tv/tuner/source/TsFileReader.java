@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads the TS packets of a file which pass a {@link TsPidFilter}. The file is read a window at a
+ * time into a direct buffer, which is reused for every window, and the packets are filtered from
+ * the buffer. Each window costs a positional read rather than a mapping, since a dropped mapping
+ * stays mapped until it is garbage collected.
+ */
+public final class TsFileReader implements Closeable {
+    // A whole number of TS packets, so that every window starts on a packet boundary.
+    private static final int WINDOW_SIZE = TsPidFilter.TS_PACKET_SIZE * 2048; // ~376KB
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mSize;
+    // Holds the current window between its position and its limit.
+    private final ByteBuffer mWindow = ByteBuffer.allocateDirect(WINDOW_SIZE);
+    private boolean mHasWindow;
+    // The file position where the current window starts.
+    private long mWindowStart;
+    private long mBytesScanned;
+
+    private TsFileReader(RandomAccessFile file) throws IOException {
+        mFile = file;
+        mChannel = file.getChannel();
+        mSize = mChannel.size();
+    }
+
+    /** Opens the file at the given path for reading. */
+    public static TsFileReader open(String filepath) throws IOException {
+        return new TsFileReader(new RandomAccessFile(filepath, "r"));
+    }
+
+    /** Returns the size of the file in bytes. */
+    public long size() {
+        return mSize;
+    }
+
+    /** Returns the number of bytes checked by the filter so far. */
+    public long getBytesScanned() {
+        return mBytesScanned;
+    }
+
+    /**
+     * Reads the packets which pass the filter, until the buffer is full or the end of the current
+     * window is reached. At most a window is checked in a call, so that a call returns in a bounded
+     * time even when few packets pass.
+     *
+     * @param filter the filter for the packets
+     * @param buffer the buffer to read into
+     * @param offset the offset in {@code buffer} to read into
+     * @param length the room in {@code buffer}
+     * @return the number of bytes read, which may be {@code 0}, or {@code -1} if the end of the
+     *     file is reached
+     */
+    public int read(TsPidFilter filter, byte[] buffer, int offset, int length) throws IOException {
+        return read(filter, buffer, offset, length, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads the packets which pass the filter like {@link #read(TsPidFilter, byte[], int, int)},
+     * but checks at most {@code maxScanSize} bytes of the file, so that the file can be read at a
+     * given rate of the whole stream rather than of the packets which pass.
+     */
+    public int read(TsPidFilter filter, byte[] buffer, int offset, int length, int maxScanSize)
+            throws IOException {
+        if (!mHasWindow || mWindow.remaining() < TsPidFilter.TS_PACKET_SIZE) {
+            if (!readNextWindow()) {
+                return -1;
+            }
+        }
+        int start = mWindow.position();
+        int limit = mWindow.limit();
+        mWindow.limit((int) Math.min(limit, (long) start + maxScanSize));
+        int bytesRead = filter.filter(mWindow, buffer, offset, length);
+        mWindow.limit(limit);
+        mBytesScanned += mWindow.position() - start;
+        return bytesRead;
+    }
+
+    /**
+     * Skips the packets in the given number of bytes, rounded up to whole packets, without
+     * checking them.
+     *
+     * @return the number of bytes skipped, which is less than asked at the end of the file
+     */
+    public long skip(long bytes) {
+        long packets = (bytes + TsPidFilter.TS_PACKET_SIZE - 1) / TsPidFilter.TS_PACKET_SIZE;
+        long position = mHasWindow ? mWindowStart + mWindow.position() : mWindowStart;
+        long end = mSize - mSize % TsPidFilter.TS_PACKET_SIZE;
+        long target = Math.min(position + packets * TsPidFilter.TS_PACKET_SIZE, end);
+        if (mHasWindow && target <= mWindowStart + mWindow.limit()) {
+            mWindow.position((int) (target - mWindowStart));
+        } else {
+            // Both the start of a window and the target are on a packet boundary.
+            mHasWindow = false;
+            mWindowStart = target;
+        }
+        return target - position;
+    }
+
+    /** Moves back to the start of the file. */
+    public void rewind() {
+        mHasWindow = false;
+        mWindowStart = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mHasWindow = false;
+        mFile.close();
+    }
+
+    private boolean readNextWindow() throws IOException {
+        long start = mHasWindow ? mWindowStart + mWindow.limit() : mWindowStart;
+        // A partial packet at the end of the file is dropped.
+        int size = (int) Math.min(WINDOW_SIZE, mSize - start);
+        if (size < TsPidFilter.TS_PACKET_SIZE) {
+            return false;
+        }
+        mHasWindow = false;
+        mWindow.clear();
+        mWindow.limit(size);
+        while (mWindow.hasRemaining()) {
+            if (mChannel.read(mWindow, start + mWindow.position()) < 0) {
+                throw new EOFException("The file is truncated at " + (start + mWindow.position()));
+            }
+        }
+        mWindow.flip();
+        mWindowStart = start;
+        mHasWindow = true;
+        return true;
+    }
+}
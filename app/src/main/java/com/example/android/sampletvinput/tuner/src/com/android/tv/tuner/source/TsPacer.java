@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Releases TS data at the rate of the broadcast, so that a stream read from a file is timed like
+ * a stream from a tuner. The rate follows the PCR of the stream. When no PCR is found, e.g. since
+ * the PCR PID is filtered out, the rate falls back to a given bitrate.
+ *
+ * <p>The PCR is unwrapped across its 2^33 * 300 wrap-around. A PCR flagged as discontinuous or
+ * jumping by more than {@link #MAX_PCR_GAP} starts a new timeline from the time the preceding
+ * data is released, as does being late by more than {@link #MAX_LATENESS_NS}, so that the data
+ * is never released in a burst.
+ */
+final class TsPacer {
+    private static final String TAG = "TsPacer";
+    private static final boolean DEBUG = false;
+
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int TS_SYNC_BYTE = 0x47;
+    private static final long PCR_CLOCK_HZ = 27000000L;
+    private static final long PCR_WRAP = (1L << 33) * 300;
+    // The PCR should be sent at least every 100ms, so a larger gap is taken as a discontinuity.
+    private static final long MAX_PCR_GAP = PCR_CLOCK_HZ;
+    private static final long MAX_LATENESS_NS = 1000000000L; // 1 sec.
+    // The amount of data without a PCR after which the fallback bitrate is used.
+    private static final long MAX_BYTES_WITHOUT_PCR = TS_PACKET_SIZE * 10000;
+
+    private final long mFallbackBytesPerSecond;
+    private int mPcrPid;
+
+    // The timeline of the PCR: the release time of the data up to the anchor PCR, and the PCR
+    // ticks elapsed since then.
+    private long mAnchorTimeNs;
+    private long mPcrTicksSinceAnchor;
+    private long mLastPcr = -1;
+    private long mLastPcrTimeNs = -1;
+    private long mBytesSincePcr;
+    // The time when the data paced last is released.
+    private long mReleaseTimeNs = -1;
+
+    private long mPcrCount;
+    private long mDiscontinuityCount;
+    private long mWrapCount;
+    private long mFallbackCount;
+    private long mResyncCount;
+    private long mReleaseCount;
+    private long mTotalLatenessNs;
+    private long mMaxLatenessNs;
+
+    /**
+     * @param pcrPid the PID which carries the PCR, or {@code -1} to follow the first PID found to
+     *     carry a PCR
+     * @param fallbackBitrate the bitrate in bits per second to use while no PCR is found
+     */
+    TsPacer(int pcrPid, int fallbackBitrate) {
+        mPcrPid = pcrPid;
+        mFallbackBytesPerSecond = Math.max(1, fallbackBitrate / 8);
+    }
+
+    /**
+     * Waits until the given data should be released.
+     *
+     * @param data the packets to release, which start on a packet boundary
+     * @param offset the offset where the packets start
+     * @param length the length of the packets
+     * @param streamLength the length of the stream which the packets were taken from, which can
+     *     be longer than the packets if the stream was filtered
+     */
+    void pace(byte[] data, int offset, int length, long streamLength) throws InterruptedException {
+        long now = SystemClock.elapsedRealtimeNanos();
+        if (mReleaseTimeNs < 0) {
+            mReleaseTimeNs = now;
+        }
+        long releaseTimeNs = -1;
+        for (int pos = offset; pos + TS_PACKET_SIZE <= offset + length; pos += TS_PACKET_SIZE) {
+            long pcrTimeNs = onPacket(data, pos);
+            if (pcrTimeNs >= 0) {
+                releaseTimeNs = pcrTimeNs;
+            }
+        }
+        if (releaseTimeNs < 0) {
+            mBytesSincePcr += streamLength;
+            if (mLastPcr >= 0 && mBytesSincePcr <= MAX_BYTES_WITHOUT_PCR) {
+                // The next PCR is likely to come soon, and times the data meanwhile.
+                return;
+            }
+            if (mLastPcr >= 0) {
+                if (DEBUG) Log.d(TAG, "No PCR for " + mBytesSincePcr + " bytes");
+                // The next PCR starts a new timeline.
+                mLastPcr = -1;
+            }
+            mFallbackCount++;
+            releaseTimeNs = mReleaseTimeNs + streamLength * 1000000000L / mFallbackBytesPerSecond;
+        }
+        mReleaseTimeNs = releaseTimeNs;
+        long waitNs = releaseTimeNs - now;
+        if (waitNs > 0) {
+            Thread.sleep(waitNs / 1000000, (int) (waitNs % 1000000));
+            now = SystemClock.elapsedRealtimeNanos();
+        }
+        long latenessNs = Math.max(0, now - releaseTimeNs);
+        mReleaseCount++;
+        mTotalLatenessNs += latenessNs;
+        mMaxLatenessNs = Math.max(mMaxLatenessNs, latenessNs);
+        if (latenessNs > MAX_LATENESS_NS) {
+            // The reader or the file stalled. Continues from now instead of catching up.
+            Log.w(TAG, "Late by " + latenessNs / 1000000 + "ms, restarting the timeline");
+            mResyncCount++;
+            mAnchorTimeNs += latenessNs;
+            mReleaseTimeNs = now;
+        }
+    }
+
+    /** Returns the statistics of the pacing, including the lateness of the released data. */
+    String getStats() {
+        return "PCRs: "
+                + mPcrCount
+                + " on PID "
+                + mPcrPid
+                + ", discontinuities: "
+                + mDiscontinuityCount
+                + ", wraps: "
+                + mWrapCount
+                + ", fallbacks: "
+                + mFallbackCount
+                + ", resyncs: "
+                + mResyncCount
+                + ", lateness avg: "
+                + (mReleaseCount > 0 ? mTotalLatenessNs / mReleaseCount / 1000 : 0)
+                + "us, max: "
+                + mMaxLatenessNs / 1000
+                + "us";
+    }
+
+    /** Returns the release time of the data up to the PCR of the packet, or -1 if it has none. */
+    private long onPacket(byte[] data, int pos) {
+        if (data[pos] != TS_SYNC_BYTE
+                || (data[pos + 3] & 0x20) == 0 // No adaptation field.
+                || (data[pos + 4] & 0xff) < 7 // Too short for a PCR.
+                || (data[pos + 5] & 0x10) == 0) { // No PCR.
+            return -1;
+        }
+        int pid = ((data[pos + 1] & 0x1f) << 8) | (data[pos + 2] & 0xff);
+        if (mPcrPid < 0) {
+            mPcrPid = pid;
+        } else if (pid != mPcrPid) {
+            return -1;
+        }
+        boolean discontinuity = (data[pos + 5] & 0x80) != 0;
+        long pcrBase =
+                ((data[pos + 6] & 0xffL) << 25)
+                        | ((data[pos + 7] & 0xffL) << 17)
+                        | ((data[pos + 8] & 0xffL) << 9)
+                        | ((data[pos + 9] & 0xffL) << 1)
+                        | ((data[pos + 10] & 0xffL) >> 7);
+        int pcrExtension = ((data[pos + 10] & 0x01) << 8) | (data[pos + 11] & 0xff);
+        long pcr = pcrBase * 300 + pcrExtension;
+        mPcrCount++;
+        if (mLastPcr < 0) {
+            startTimeline();
+        } else {
+            long delta = (pcr - mLastPcr + PCR_WRAP) % PCR_WRAP;
+            if (discontinuity || delta > MAX_PCR_GAP) {
+                if (DEBUG) Log.d(TAG, "PCR discontinuity from " + mLastPcr + " to " + pcr);
+                mDiscontinuityCount++;
+                startTimeline();
+            } else {
+                if (pcr < mLastPcr) {
+                    mWrapCount++;
+                }
+                mPcrTicksSinceAnchor += delta;
+            }
+        }
+        mLastPcr = pcr;
+        mBytesSincePcr = 0;
+        mLastPcrTimeNs = mAnchorTimeNs + mPcrTicksSinceAnchor * 1000 / 27;
+        return mLastPcrTimeNs;
+    }
+
+    private void startTimeline() {
+        // The data before the PCR may be timed by an earlier PCR in the same chunk.
+        mAnchorTimeNs = Math.max(mReleaseTimeNs, mLastPcrTimeNs);
+        mPcrTicksSinceAnchor = 0;
+    }
+}
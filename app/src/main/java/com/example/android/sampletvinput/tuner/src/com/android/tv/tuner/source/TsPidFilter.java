@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Selects TS packets by PID. The PIDs are kept in a bitmap of all the 8192 PIDs, so that a packet
+ * is checked with a shift and a mask, and the packets which pass are copied in runs: consecutive
+ * packets which pass are copied with a single bulk copy.
+ */
+public final class TsPidFilter {
+    public static final int TS_PACKET_SIZE = 188;
+    private static final int TS_SYNC_BYTE = 0x47;
+    private static final int NUM_PIDS = 0x2000;
+
+    private final long[] mBitmap = new long[NUM_PIDS / 64];
+    private int mSize;
+    private long mSkippedPacketCount;
+
+    /** Adds a PID to pass. PIDs out of the 13-bit range are ignored. */
+    public void add(int pid) {
+        if (pid >= 0 && pid < NUM_PIDS && !contains(pid)) {
+            mBitmap[pid >>> 6] |= 1L << pid;
+            mSize++;
+        }
+    }
+
+    /** Returns whether packets of the PID pass. */
+    public boolean contains(int pid) {
+        return pid >= 0 && pid < NUM_PIDS && (mBitmap[pid >>> 6] & (1L << pid)) != 0;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mBitmap.length; ++i) {
+            mBitmap[i] = 0;
+        }
+        mSize = 0;
+    }
+
+    /** Returns the number of packets which were skipped for a missing sync byte. */
+    public long getSkippedPacketCount() {
+        return mSkippedPacketCount;
+    }
+
+    /**
+     * Copies the packets which pass from the source to the destination. The whole packets from
+     * the position of the source are checked until the destination is full, and the position of
+     * the source is advanced past the checked packets. A partial packet at the end of the source
+     * is left.
+     *
+     * @param src the packets, which should start on a packet boundary
+     * @param dest the buffer to copy the packets into
+     * @param offset the offset in {@code dest} to copy into
+     * @param length the room in {@code dest}
+     * @return the number of bytes copied, which is a multiple of the packet size
+     */
+    public int filter(ByteBuffer src, byte[] dest, int offset, int length) {
+        int pos = src.position();
+        int limit = src.limit();
+        int destPos = offset;
+        int destLimit = offset + length;
+        // The start of the run of consecutive packets which pass.
+        int runStart = pos;
+        while (pos + TS_PACKET_SIZE <= limit) {
+            boolean pass;
+            if (src.get(pos) != TS_SYNC_BYTE) {
+                mSkippedPacketCount++;
+                pass = false;
+            } else {
+                int pid = ((src.get(pos + 1) & 0x1f) << 8) | (src.get(pos + 2) & 0xff);
+                pass = (mBitmap[pid >>> 6] & (1L << pid)) != 0;
+            }
+            if (pass) {
+                if (destPos + (pos - runStart) + TS_PACKET_SIZE > destLimit) {
+                    break;
+                }
+                pos += TS_PACKET_SIZE;
+                continue;
+            }
+            destPos = copyRun(src, runStart, pos, dest, destPos);
+            pos += TS_PACKET_SIZE;
+            runStart = pos;
+        }
+        destPos = copyRun(src, runStart, pos, dest, destPos);
+        src.position(pos);
+        return destPos - offset;
+    }
+
+    private static int copyRun(ByteBuffer src, int start, int end, byte[] dest, int destPos) {
+        if (start < end) {
+            src.position(start);
+            src.get(dest, destPos, end - start);
+        }
+        return destPos + end - start;
+    }
+}
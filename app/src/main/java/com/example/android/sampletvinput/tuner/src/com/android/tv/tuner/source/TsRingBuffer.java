@@ -0,0 +1,460 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source;
+
+import android.os.SystemClock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A ring buffer of TS data which is written by a single thread, and read at any position by any
+ * number of threads without taking a lock. The data is kept in a {@link TsBufferStorage} out of
+ * the Java heap, which is given when the buffer is opened and dropped when it is closed.
+ *
+ * <p>The writer publishes two sequence counters. The claim position is raised before a range is
+ * written, and the write position after the range is written. A reader copies a range only once
+ * the write position covers it, and checks the claim position before and after the copy: if the
+ * writer claimed the bytes a capacity ahead meanwhile, they were overwritten while being copied
+ * and the read fails with {@link #RESULT_OVERWRITTEN}. The copy races the writer, so the claim is
+ * fenced before the bytes are written and the copy is fenced before the claim is checked again.
+ * The fences are emulated with volatile accesses, and a reader only writes a field of its own.
+ * Only a reader which waits for data which is not written yet takes a monitor, and the writer
+ * notifies it only when there is a waiter.
+ *
+ * <p>Readers which share the stream read through their own {@link Cursor}. The writer checks the
+ * cursors before overwriting data, and applies the {@link SlowReaderPolicy} of a cursor which
+ * has not read the data yet.
+ */
+final class TsRingBuffer {
+    static final int RESULT_CLOSED = -1;
+    static final int RESULT_OVERWRITTEN = -2;
+
+    private volatile TsBufferStorage mStorage;
+
+    // The end of the range which the writer is writing or has written. Raised with a release
+    // write, followed by storeStoreFence(), before the range is written.
+    private final AtomicLong mClaimPosition = new AtomicLong();
+    // The end of the range which is written completely. Raised with a release write after the
+    // range is written, and read with an acquire read before reading the range.
+    private final AtomicLong mWritePosition = new AtomicLong();
+    private volatile boolean mClosed = true;
+    // Read only by the writer and never written, for the ordering of the accesses around it. See
+    // storeStoreFence().
+    private volatile int mWriterFence;
+    // The fences of the reads which are not made through a cursor.
+    private static final ThreadLocal<ReadFence> sThreadReadFences =
+            new ThreadLocal<ReadFence>() {
+                @Override
+                protected ReadFence initialValue() {
+                    return new ReadFence();
+                }
+            };
+
+    private final Object mWaitMonitor = new Object();
+    private final AtomicInteger mWaitingReaderCount = new AtomicInteger();
+
+    // Copied on change, so that the writer iterates the cursors without a lock.
+    private final Object mCursorLock = new Object();
+    private volatile Cursor[] mCursors = new Cursor[0];
+    private final Object mWriterWaitMonitor = new Object();
+    private volatile boolean mWriterWaiting;
+
+    private final AtomicLong mOverwrittenReadCount = new AtomicLong();
+    private final AtomicLong mOverwrittenWhileCopyingCount = new AtomicLong();
+
+    /**
+     * Starts accepting data from position {@code 0} into the given storage. Should not be called
+     * while writing.
+     */
+    void open(TsBufferStorage storage) {
+        mClaimPosition.set(0);
+        mWritePosition.set(0);
+        mOverwrittenReadCount.set(0);
+        mOverwrittenWhileCopyingCount.set(0);
+        mStorage = storage;
+        mClosed = false;
+    }
+
+    /**
+     * Stops the buffer and drops its storage. Pending and following reads return {@link
+     * #RESULT_CLOSED}.
+     */
+    void close() {
+        mClosed = true;
+        mStorage = null;
+        synchronized (mWaitMonitor) {
+            mWaitMonitor.notifyAll();
+        }
+        notifyWriter();
+    }
+
+    boolean isClosed() {
+        return mClosed;
+    }
+
+    /**
+     * Opens a cursor which reads from the given position, and applies the given policy when it
+     * falls behind. The cursor should be closed with {@link #closeCursor}.
+     */
+    Cursor openCursor(long position, SlowReaderPolicy policy) {
+        Cursor cursor = new Cursor(this, position, policy);
+        synchronized (mCursorLock) {
+            Cursor[] cursors = Arrays.copyOf(mCursors, mCursors.length + 1);
+            cursors[cursors.length - 1] = cursor;
+            mCursors = cursors;
+        }
+        return cursor;
+    }
+
+    void closeCursor(Cursor cursor) {
+        synchronized (mCursorLock) {
+            List<Cursor> cursors = new ArrayList<>(Arrays.asList(mCursors));
+            if (!cursors.remove(cursor)) {
+                return;
+            }
+            mCursors = cursors.toArray(new Cursor[cursors.size()]);
+        }
+        cursor.mPolicy.release();
+        // The writer may be waiting for the cursor.
+        notifyWriter();
+    }
+
+    /** Returns the number of bytes written since the buffer was opened. */
+    long getWritePosition() {
+        return mWritePosition.get();
+    }
+
+    /**
+     * Appends data to the buffer, overwriting the oldest data. Should be called only from the
+     * writer thread.
+     *
+     * @param data the buffer which holds the data
+     * @param offset the offset where the data starts
+     * @param length the length of the data, which should not exceed the capacity
+     */
+    void write(byte[] data, int offset, int length) {
+        TsBufferStorage storage = mStorage;
+        if (storage == null) {
+            return;
+        }
+        if (length > storage.getCapacity()) {
+            throw new IllegalArgumentException("Too long data: " + length);
+        }
+        long start = mWritePosition.get();
+        long end = start + length;
+        for (Cursor cursor : mCursors) {
+            checkSlowReader(cursor, storage, start, end);
+        }
+        mClaimPosition.set(end);
+        // A reader which sees any byte of the range should see the claim as well.
+        storeStoreFence();
+        storage.write(start, data, offset, length);
+        mWritePosition.set(end);
+        if (mWaitingReaderCount.get() > 0) {
+            synchronized (mWaitMonitor) {
+                mWaitMonitor.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Reads data at the given position, and waits until the data is written if needed.
+     *
+     * @param pos the position to read from
+     * @param buffer the buffer to read into
+     * @param offset the offset in {@code buffer} to read into
+     * @param amount the number of bytes to read
+     * @param waitSliceMs the longest time to wait before checking the buffer again
+     * @return {@code amount} when successful, {@link #RESULT_CLOSED} if the buffer is closed,
+     *     or {@link #RESULT_OVERWRITTEN} if the data at {@code pos} is overwritten already
+     */
+    int read(long pos, byte[] buffer, int offset, int amount, long waitSliceMs) {
+        return read(pos, buffer, offset, amount, waitSliceMs, sThreadReadFences.get());
+    }
+
+    private int read(
+            long pos, byte[] buffer, int offset, int amount, long waitSliceMs, ReadFence fence) {
+        long end = pos + amount;
+        while (true) {
+            // A reader which got the storage keeps using it even if the buffer is closed.
+            TsBufferStorage storage = mStorage;
+            if (mClosed || storage == null) {
+                return RESULT_CLOSED;
+            }
+            if (isOverwritten(pos, storage.getCapacity())) {
+                mOverwrittenReadCount.incrementAndGet();
+                return RESULT_OVERWRITTEN;
+            }
+            if (mWritePosition.get() < end) {
+                awaitWritePosition(end, waitSliceMs);
+                continue;
+            }
+            storage.read(pos, buffer, offset, amount);
+            // The copy should be complete before the claim is checked again.
+            fence.loadLoadFence();
+            if (isOverwritten(pos, storage.getCapacity())) {
+                // The writer wrapped around onto the range while it was copied.
+                mOverwrittenReadCount.incrementAndGet();
+                mOverwrittenWhileCopyingCount.incrementAndGet();
+                return RESULT_OVERWRITTEN;
+            }
+            return amount;
+        }
+    }
+
+    /**
+     * Reads data at the position of the cursor, and advances the cursor. If the data is
+     * overwritten, it is read from the policy of the cursor if the policy kept it.
+     *
+     * @return {@code amount} when successful, {@link #RESULT_CLOSED} if the buffer is closed,
+     *     or {@link #RESULT_OVERWRITTEN} if the data at the cursor is lost
+     */
+    int read(Cursor cursor, byte[] buffer, int offset, int amount, long waitSliceMs) {
+        long pos = cursor.mPosition;
+        cursor.updateLag(mWritePosition.get() - pos);
+        int result = read(pos, buffer, offset, amount, waitSliceMs, cursor.mReadFence);
+        if (result == RESULT_OVERWRITTEN) {
+            result = cursor.mPolicy.readOverwritten(pos, buffer, offset, amount);
+        }
+        if (result > 0) {
+            cursor.mPosition = pos + result;
+            if (mWriterWaiting) {
+                notifyWriter();
+            }
+        }
+        return result;
+    }
+
+    /** Returns a summary of the reads which failed because the data was overwritten. */
+    String getStats() {
+        TsBufferStorage storage = mStorage;
+        StringBuilder sb =
+                new StringBuilder("ring: ")
+                        .append(storage != null ? storage : "released")
+                        .append(", overwritten reads: ")
+                        .append(mOverwrittenReadCount.get())
+                        .append(" (")
+                        .append(mOverwrittenWhileCopyingCount.get())
+                        .append(" while copying)");
+        long writePosition = mWritePosition.get();
+        for (Cursor cursor : mCursors) {
+            sb.append(", ").append(cursor.getStats(writePosition));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Applies the policy of the cursor if the data in {@code [start, end)} would overwrite data
+     * which the cursor has not read.
+     */
+    private void checkSlowReader(Cursor cursor, TsBufferStorage storage, long start, long end) {
+        int capacity = storage.getCapacity();
+        // The data before this position is overwritten by the write.
+        long overwriteEnd = end - capacity;
+        if (cursor.mPosition >= overwriteEnd) {
+            cursor.mWriterGaveUp = false;
+            return;
+        }
+        long blockTimeMs = cursor.mPolicy.getWriterBlockTimeMs();
+        if (blockTimeMs > 0 && !cursor.mWriterGaveUp) {
+            long startTimeMs = SystemClock.elapsedRealtime();
+            long deadlineMs = startTimeMs + blockTimeMs;
+            long remainingMs = blockTimeMs;
+            synchronized (mWriterWaitMonitor) {
+                mWriterWaiting = true;
+                try {
+                    // A reader checks the flag after advancing its cursor, so either the writer
+                    // sees the new position or the reader sees the flag and notifies the writer.
+                    while (cursor.mPosition < overwriteEnd
+                            && !cursor.mClosed
+                            && !mClosed
+                            && remainingMs > 0) {
+                        mWriterWaitMonitor.wait(remainingMs);
+                        remainingMs = deadlineMs - SystemClock.elapsedRealtime();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    mWriterWaiting = false;
+                }
+            }
+            cursor.mWriterBlockedTimeMs += SystemClock.elapsedRealtime() - startTimeMs;
+            if (cursor.mPosition >= overwriteEnd) {
+                return;
+            }
+            cursor.mWriterGaveUp = true;
+        }
+        // Positions before start - capacity were overwritten by the previous writes already.
+        long from = Math.max(cursor.mPosition, start - capacity);
+        if (from < overwriteEnd && !cursor.mClosed) {
+            cursor.mPolicy.onOverwrite(storage, from, overwriteEnd);
+        }
+    }
+
+    private void notifyWriter() {
+        synchronized (mWriterWaitMonitor) {
+            mWriterWaitMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Orders the preceding volatile write of the claim before the following writes of the data.
+     * {@code VarHandle.storeStoreFence()} is not available at the API levels which this app
+     * supports, and the fences of {@code Unsafe} are not public there, so the fence is emulated
+     * with a volatile read. Volatile accesses are totally ordered among themselves (JLS 17.4.4),
+     * so the read is not moved before the write, and no access which follows a volatile read in
+     * program order is moved before it, which the JSR-133 cookbook implements as a LoadLoad and
+     * LoadStore barrier after the read. Since no thread writes the field, its cache line is not
+     * shared with the readers.
+     */
+    private void storeStoreFence() {
+        int unused = mWriterFence;
+    }
+
+    private boolean isOverwritten(long pos, int capacity) {
+        return mClaimPosition.get() - capacity > pos;
+    }
+
+    private void awaitWritePosition(long position, long waitSliceMs) {
+        synchronized (mWaitMonitor) {
+            // The writer checks the count after raising the write position, so either this
+            // reader sees the new position or the writer sees the waiter and notifies it.
+            mWaitingReaderCount.incrementAndGet();
+            try {
+                if (!mClosed && mWritePosition.get() < position) {
+                    mWaitMonitor.wait(waitSliceMs);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                mWaitingReaderCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A volatile field which only one reader writes, to fence its copies. The copy of a reader
+     * races the writer like the read side of a seqlock, whose plain reads of the data may be moved
+     * after an acquire read of the sequence (H. Boehm, "Can Seqlocks Get Along with Programming
+     * Language Memory Models?", MSPC 2012). A volatile write orders them instead. No access which
+     * precedes a volatile write in program order is moved after it, which the JSR-133 cookbook
+     * implements as a LoadStore and StoreStore barrier before the write, and the write is not
+     * reordered with the following volatile read of the claim (JLS 17.4.4). Each reader writes
+     * its own field, so that the readers and the writer do not contend on a cache line.
+     */
+    private static final class ReadFence {
+        private volatile int mValue;
+
+        /** Orders the preceding reads of the data before the following volatile read. */
+        void loadLoadFence() {
+            mValue = 0;
+        }
+    }
+
+    /**
+     * The read position of a reader of the buffer. A cursor is advanced only by its reader, and
+     * the writer reads it to find out whether the reader falls behind.
+     */
+    static final class Cursor {
+        private final TsRingBuffer mRingBuffer;
+        private final SlowReaderPolicy mPolicy;
+        private final ReadFence mReadFence = new ReadFence();
+        private volatile long mPosition;
+        private volatile boolean mClosed;
+
+        // Updated by the reader.
+        private volatile long mMaxLag;
+        private volatile int mSkipCount;
+        private volatile long mSkippedBytes;
+
+        // Updated by the writer.
+        private boolean mWriterGaveUp;
+        private volatile long mWriterBlockedTimeMs;
+
+        private Cursor(TsRingBuffer ringBuffer, long position, SlowReaderPolicy policy) {
+            mRingBuffer = ringBuffer;
+            mPosition = position;
+            mPolicy = policy;
+        }
+
+        /** Returns the position which is read next. */
+        long getPosition() {
+            return mPosition;
+        }
+
+        /** Moves the cursor to the given position. Should be called only by the reader. */
+        void setPosition(long position) {
+            mPosition = position;
+        }
+
+        /** Returns the number of bytes written but not read by the cursor yet. */
+        long getLag() {
+            return Math.max(0, mRingBuffer.getWritePosition() - mPosition);
+        }
+
+        long getMaxLag() {
+            return mMaxLag;
+        }
+
+        /**
+         * Moves the cursor to the live position, aligned to a TS packet from the current
+         * position, after its data is lost.
+         *
+         * @return the number of bytes skipped
+         */
+        long skipToLive(int packetSize) {
+            long position = mPosition;
+            long diff =
+                    ((mRingBuffer.getWritePosition() - position + packetSize - 1) / packetSize)
+                            * packetSize;
+            mPosition = position + diff;
+            mSkipCount++;
+            mSkippedBytes += diff;
+            return diff;
+        }
+
+        void close() {
+            mClosed = true;
+            mRingBuffer.closeCursor(this);
+        }
+
+        private void updateLag(long lag) {
+            if (lag > mMaxLag) {
+                mMaxLag = lag;
+            }
+        }
+
+        private String getStats(long writePosition) {
+            return "reader ("
+                    + mPolicy
+                    + "): lag "
+                    + Math.max(0, writePosition - mPosition) / 1024
+                    + "KB (max "
+                    + mMaxLag / 1024
+                    + "KB), skipped "
+                    + mSkippedBytes / 1024
+                    + "KB in "
+                    + mSkipCount
+                    + " times, writer blocked "
+                    + mWriterBlockedTimeMs
+                    + "ms";
+        }
+    }
+}
@@ -17,34 +17,63 @@
 package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.TunerChannel;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 
-/** Stores TS files to the disk for debugging. */
+/**
+ * Stores TS files to the disk for debugging.
+ *
+ * <p>The data is copied into large batches on the streaming thread, and the batches are written
+ * by a dedicated writer thread, so that a slow disk never stalls the stream. When all the batches
+ * are waiting to be written, the data is dropped and counted instead. The writer starts a new
+ * file every {@link #TIME_LIMIT_MS} or {@link #SIZE_LIMIT_BYTES}, and keeps only the most recent
+ * files, which it remembers instead of listing the directory.
+ */
 public class TsStreamWriter {
     private static final String TAG = "TsStreamWriter";
     private static final boolean DEBUG = true;
 
     private static final long TIME_LIMIT_MS = 10000; // 10s
+    private static final long SIZE_LIMIT_BYTES = 64 * 1024 * 1024;
+    // The file being written and the one before it are kept.
+    private static final int RETAINED_FILE_COUNT = 2;
+    // A multiple of the page size, so that the full batches are written at aligned offsets.
+    private static final int BATCH_SIZE = 512 * 1024;
+    // ~1.7 secs of a 19.39Mbps ATSC stream.
+    private static final int BATCH_COUNT = 8;
     private static final int NO_INSTANCE_ID = 0;
     private static final int MAX_GET_ID_RETRY_COUNT = 5;
     private static final int MAX_INSTANCE_ID = 10000;
     private static final String SEPARATOR = "_";
 
-    private FileOutputStream mFileOutputStream;
-    private long mFileStartTimeMs;
-    private String mFileName = null;
     private final String mDirectoryPath;
     private final File mDirectory;
     private final int mInstanceId;
     private TunerChannel mChannel;
 
+    // The batches which are free to be filled. Allocated when a file is opened first.
+    private final BlockingQueue<Batch> mFreeBatches = new ArrayBlockingQueue<>(BATCH_COUNT);
+    private boolean mBatchesAllocated;
+    private WriterThread mWriterThread;
+    // The batch being filled on the streaming thread.
+    private Batch mBatch;
+    private boolean mFileOpened;
+
+    private volatile long mDroppedBytes;
+    private volatile int mDroppedCount;
+
     public TsStreamWriter(Context context) {
         File externalFilesDir = context.getExternalFilesDir(null);
         if (externalFilesDir == null || !externalFilesDir.isDirectory()) {
@@ -81,20 +110,18 @@ public class TsStreamWriter {
         if (mChannel == null || mDirectoryPath == null) {
             return;
         }
-        mFileStartTimeMs = System.currentTimeMillis();
-        mFileName =
-                mChannel.getDisplayNumber()
-                        + SEPARATOR
-                        + mFileStartTimeMs
-                        + SEPARATOR
-                        + mInstanceId
-                        + ".ts";
-        String filePath = mDirectoryPath + "/" + mFileName;
-        try {
-            mFileOutputStream = new FileOutputStream(filePath, false);
-        } catch (FileNotFoundException e) {
-            Log.w(TAG, "Cannot open file: " + filePath, e);
+        if (!mBatchesAllocated) {
+            for (int i = 0; i < BATCH_COUNT; ++i) {
+                mFreeBatches.add(new Batch());
+            }
+            mBatchesAllocated = true;
+        }
+        if (mWriterThread == null) {
+            mWriterThread = new WriterThread();
+            mWriterThread.start();
         }
+        mWriterThread.mQueue.add(Batch.command(Batch.COMMAND_OPEN, mChannel.getDisplayNumber()));
+        mFileOpened = true;
     }
 
     /**
@@ -104,62 +131,226 @@ public class TsStreamWriter {
      *     {@code false} otherwise
      */
     public void closeFile(boolean calledWhenStopStream) {
-        if (mFileOutputStream == null) {
+        if (!mFileOpened) {
             return;
         }
-        try {
-            mFileOutputStream.close();
-            deleteOutdatedFiles(calledWhenStopStream);
-            mFileName = null;
-            mFileOutputStream = null;
-        } catch (IOException e) {
-            Log.w(TAG, "Error on closing file.", e);
+        mFileOpened = false;
+        submitBatch();
+        mWriterThread.mQueue.add(
+                Batch.command(
+                        calledWhenStopStream ? Batch.COMMAND_CLOSE_AND_DELETE : Batch.COMMAND_CLOSE,
+                        null));
+        if (calledWhenStopStream) {
+            // The writer thread finishes the pending writes and quits by itself, so that
+            // stopping the stream does not wait for the disk.
+            mWriterThread.mQueue.add(Batch.command(Batch.COMMAND_QUIT, null));
+            mWriterThread = null;
         }
     }
 
     /**
-     * Writes the data to the file.
+     * Writes the data to the file. The data is copied and written later on another thread, or
+     * dropped if the writing falls behind.
      *
      * @param buffer the data to be written
      * @param bytesWritten number of bytes written
      */
     public void writeToFile(byte[] buffer, int bytesWritten) {
-        if (mFileOutputStream == null) {
+        if (!mFileOpened) {
             return;
         }
-        if (System.currentTimeMillis() - mFileStartTimeMs > TIME_LIMIT_MS) {
-            closeFile(false);
-            openFile();
+        int offset = 0;
+        while (offset < bytesWritten) {
+            if (mBatch == null) {
+                mBatch = mFreeBatches.poll();
+                if (mBatch == null) {
+                    mDroppedBytes += bytesWritten - offset;
+                    mDroppedCount++;
+                    return;
+                }
+                mBatch.mData.clear();
+            }
+            int length = Math.min(bytesWritten - offset, mBatch.mData.remaining());
+            mBatch.mData.put(buffer, offset, length);
+            offset += length;
+            if (!mBatch.mData.hasRemaining()) {
+                submitBatch();
+            }
         }
-        try {
-            mFileOutputStream.write(buffer, 0, bytesWritten);
-        } catch (IOException e) {
-            Log.w(TAG, "Error on writing TS stream.", e);
+    }
+
+    /** Returns the statistics of the writing, including the data dropped. */
+    public String getStats() {
+        WriterThread writerThread = mWriterThread;
+        return "capture: "
+                + (writerThread != null ? writerThread.getStats() : "stopped")
+                + ", dropped "
+                + mDroppedBytes / 1024
+                + "KB in "
+                + mDroppedCount
+                + " times";
+    }
+
+    private void submitBatch() {
+        if (mBatch != null) {
+            mBatch.mData.flip();
+            mWriterThread.mQueue.add(mBatch);
+            mBatch = null;
         }
     }
 
-    /**
-     * Deletes outdated files to save storage.
-     *
-     * @param deleteAll {@code true} if all the files with the relative ID should be deleted {@code
-     *     false} if the most recent file should not be deleted
-     */
-    private void deleteOutdatedFiles(boolean deleteAll) {
-        if (mFileName == null) {
-            return;
+    /** A batch of data to write, or a command to the writer thread. */
+    private static class Batch {
+        private static final int COMMAND_NONE = 0;
+        private static final int COMMAND_OPEN = 1;
+        private static final int COMMAND_CLOSE = 2;
+        private static final int COMMAND_CLOSE_AND_DELETE = 3;
+        private static final int COMMAND_QUIT = 4;
+
+        private final ByteBuffer mData;
+        private final int mCommand;
+        private final String mChannelNumber;
+
+        private Batch() {
+            mData = ByteBuffer.allocateDirect(BATCH_SIZE);
+            mCommand = COMMAND_NONE;
+            mChannelNumber = null;
         }
-        if (mDirectory == null || !mDirectory.isDirectory()) {
-            Log.e(TAG, "Error. The folder doesn't exist!");
-            return;
+
+        private Batch(int command, String channelNumber) {
+            mData = null;
+            mCommand = command;
+            mChannelNumber = channelNumber;
         }
-        if (mFileName == null) {
-            Log.e(TAG, "Error. The current file name is null!");
-            return;
+
+        private static Batch command(int command, String channelNumber) {
+            return new Batch(command, channelNumber);
         }
-        for (File file : mDirectory.listFiles()) {
-            if (file.isFile()
-                    && getFileId(file) == mInstanceId
-                    && (deleteAll || !mFileName.equals(file.getName()))) {
+    }
+
+    private class WriterThread extends Thread {
+        // The batches and the commands to write, in order.
+        private final BlockingQueue<Batch> mQueue = new LinkedBlockingQueue<>();
+        // The files of this instance which are kept, from the oldest.
+        private final ArrayDeque<File> mRetainedFiles = new ArrayDeque<>();
+        private FileChannel mFileChannel;
+        private String mChannelNumber;
+        private long mFileStartTimeMs;
+        private long mFileSize;
+
+        private volatile long mWrittenBytes;
+        private volatile int mFileCount;
+        private volatile long mMaxWriteTimeMs;
+
+        private WriterThread() {
+            super(TAG);
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Batch batch;
+                try {
+                    batch = mQueue.take();
+                } catch (InterruptedException e) {
+                    Log.w(TAG, "Writer thread is interrupted", e);
+                    break;
+                }
+                switch (batch.mCommand) {
+                    case Batch.COMMAND_NONE:
+                        write(batch);
+                        mFreeBatches.add(batch);
+                        break;
+                    case Batch.COMMAND_OPEN:
+                        mChannelNumber = batch.mChannelNumber;
+                        openFile();
+                        break;
+                    case Batch.COMMAND_CLOSE:
+                        closeFile();
+                        break;
+                    case Batch.COMMAND_CLOSE_AND_DELETE:
+                        closeFile();
+                        deleteFiles(0);
+                        break;
+                    case Batch.COMMAND_QUIT:
+                        if (DEBUG) Log.d(TAG, "Writer thread stopped, " + getStats());
+                        return;
+                }
+            }
+        }
+
+        private String getStats() {
+            return "written "
+                    + mWrittenBytes / 1024
+                    + "KB to "
+                    + mFileCount
+                    + " files, longest write "
+                    + mMaxWriteTimeMs
+                    + "ms";
+        }
+
+        private void write(Batch batch) {
+            if (mFileChannel == null) {
+                return;
+            }
+            if (System.currentTimeMillis() - mFileStartTimeMs > TIME_LIMIT_MS
+                    || mFileSize + batch.mData.remaining() > SIZE_LIMIT_BYTES) {
+                closeFile();
+                openFile();
+                if (mFileChannel == null) {
+                    return;
+                }
+            }
+            long startTimeMs = SystemClock.elapsedRealtime();
+            try {
+                while (batch.mData.hasRemaining()) {
+                    mFileSize += mFileChannel.write(batch.mData);
+                }
+            } catch (IOException e) {
+                Log.w(TAG, "Error on writing TS stream.", e);
+            }
+            mWrittenBytes += batch.mData.limit();
+            mMaxWriteTimeMs =
+                    Math.max(mMaxWriteTimeMs, SystemClock.elapsedRealtime() - startTimeMs);
+        }
+
+        private void openFile() {
+            mFileStartTimeMs = System.currentTimeMillis();
+            mFileSize = 0;
+            String fileName =
+                    mChannelNumber
+                            + SEPARATOR
+                            + mFileStartTimeMs
+                            + SEPARATOR
+                            + mInstanceId
+                            + ".ts";
+            File file = new File(mDirectoryPath, fileName);
+            try {
+                mFileChannel = new FileOutputStream(file, false).getChannel();
+                mRetainedFiles.add(file);
+                mFileCount++;
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot open file: " + file, e);
+            }
+        }
+
+        private void closeFile() {
+            if (mFileChannel == null) {
+                return;
+            }
+            try {
+                mFileChannel.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error on closing file.", e);
+            }
+            mFileChannel = null;
+            deleteFiles(RETAINED_FILE_COUNT - 1);
+        }
+
+        /** Deletes the oldest files, keeping the given number of the most recent files. */
+        private void deleteFiles(int keepCount) {
+            while (mRetainedFiles.size() > keepCount) {
+                File file = mRetainedFiles.poll();
                 boolean deleted = file.delete();
                 if (DEBUG && !deleted) {
                     Log.w(TAG, "Failed to delete " + file.getName());
@@ -17,8 +17,10 @@
 package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 import android.util.Pair;
+import android.util.SparseIntArray;
 import android.net.Uri;
 import com.android.tv.common.SoftPreconditions;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ChannelScanFileParser;
@@ -30,6 +32,7 @@ import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.tvinput.
 import com.google.android.exoplayer.C;
 import com.google.android.exoplayer2.upstream.DataSpec;
 import com.google.android.exoplayer2.upstream.TransferListener;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
@@ -41,23 +44,43 @@ public class TunerTsStreamer implements TsStreamer {
 
     private static final int MIN_READ_UNIT = 1500;
     private static final int READ_BUFFER_SIZE = MIN_READ_UNIT * 10; // ~15KB
-    private static final int CIRCULAR_BUFFER_SIZE = MIN_READ_UNIT * 20000; // ~ 30MB
+    private static final int MIN_CIRCULAR_BUFFER_SIZE = MIN_READ_UNIT * 2000; // ~3MB
+    // The circular buffer is sized to hold this duration of the stream.
+    private static final int TARGET_BUFFERED_DURATION_MS = 12000; // 12 secs.
+    // The bitrate assumed for a frequency which was not streamed yet, that of an ATSC stream.
+    private static final int DEFAULT_BYTES_PER_SECOND = 19392658 / 8;
+    // The bitrate is measured only from a stream longer than this.
+    private static final long MIN_BITRATE_MEASUREMENT_MS = 2000;
     private static final int TS_PACKET_SIZE = 188;
 
     private static final int READ_TIMEOUT_MS = 5000; // 5 secs.
-    private static final int BUFFER_UNDERRUN_SLEEP_MS = 10;
+    // How long the streaming thread waits for the tuner, which bounds the time to stop it.
+    private static final int TUNER_READ_TIMEOUT_MS = 100;
     private static final int READ_ERROR_STREAMING_ENDED = -1;
     private static final int READ_ERROR_BUFFER_OVERWRITTEN = -2;
-
-    private final Object mCircularBufferMonitor = new Object();
-    private final byte[] mCircularBuffer = new byte[CIRCULAR_BUFFER_SIZE];
-    private long mBytesFetched;
+    // ~1MB, which holds about 0.4 secs of a 19.39Mbps ATSC stream.
+    private static final int PSIP_QUEUE_CAPACITY = 64;
+
+    // The bitrates measured for the frequencies in bytes per second, which size the buffers of
+    // the following streams of the frequencies.
+    private static final SparseIntArray sMeasuredBytesPerSecond = new SparseIntArray();
+
+    // Written by the streaming thread and read by the data sources without a lock.
+    private final TsRingBuffer mCircularBuffer = new TsRingBuffer();
+    private final int mMaxCircularBufferSize;
+    private final File mBufferMappingDir;
+    // The storage of the ring buffer, which is reused across the streams.
+    private TsBufferStorage mStorage;
+    private int mStreamingFrequency = -1;
+    private long mStreamingStartTimeMs;
+    private final Object mStreamingStateLock = new Object();
     private final AtomicLong mLastReadPosition = new AtomicLong();
-    private boolean mStreaming;
+    private volatile boolean mStreaming;
 
     private final TunerHal mTunerHal;
     private TunerChannel mChannel;
     private Thread mStreamingThread;
+    private PsipParsingThread mPsipParsingThread;
     private final EventDetector mEventDetector;
     private final List<Pair<EventListener, Boolean>> mEventListenerActions = new ArrayList<>();
 
@@ -66,12 +89,14 @@ public class TunerTsStreamer implements TsStreamer {
 
     public static class TunerDataSource extends TsDataSource {
         private final TunerTsStreamer mTsStreamer;
+        private final TsRingBuffer.Cursor mCursor;
         private final AtomicLong mLastReadPosition = new AtomicLong(0);
         private long mStartBufferedPosition;
 
-        private TunerDataSource(TunerTsStreamer tsStreamer) {
+        private TunerDataSource(TunerTsStreamer tsStreamer, SlowReaderPolicy policy) {
             mTsStreamer = tsStreamer;
             mStartBufferedPosition = tsStreamer.getBufferedPosition();
+            mCursor = tsStreamer.mCircularBuffer.openCursor(mStartBufferedPosition, policy);
         }
 
         @Override
@@ -84,11 +109,17 @@ public class TunerTsStreamer implements TsStreamer {
             return mLastReadPosition.get();
         }
 
+        /** Returns the number of bytes which are streamed but not read by this source yet. */
+        public long getReadLag() {
+            return mCursor.getLag();
+        }
+
         @Override
         public void shiftStartPosition(long offset) {
             SoftPreconditions.checkState(mLastReadPosition.get() == 0);
             SoftPreconditions.checkArgument(0 <= offset && offset <= getBufferedPosition());
             mStartBufferedPosition += offset;
+            mCursor.setPosition(mStartBufferedPosition);
         }
 
         @Override
@@ -100,6 +131,7 @@ public class TunerTsStreamer implements TsStreamer {
         @Override
         public long open(DataSpec dataSpec) throws IOException {
             mLastReadPosition.set(0);
+            mCursor.setPosition(mStartBufferedPosition);
             return C.LENGTH_UNBOUNDED;
         }
 
@@ -108,28 +140,20 @@ public class TunerTsStreamer implements TsStreamer {
 
         @Override
         public int read(byte[] buffer, int offset, int readLength) throws IOException {
-            int ret =
-                    mTsStreamer.readAt(
-                            mStartBufferedPosition + mLastReadPosition.get(),
-                            buffer,
-                            offset,
-                            readLength);
+            int ret = mTsStreamer.readAt(mCursor, buffer, offset, readLength);
             if (ret > 0) {
                 mLastReadPosition.addAndGet(ret);
             } else if (ret == READ_ERROR_BUFFER_OVERWRITTEN) {
-                long currentPosition = mStartBufferedPosition + mLastReadPosition.get();
-                long endPosition = mTsStreamer.getBufferedPosition();
-                long diff =
-                        ((endPosition - currentPosition + TS_PACKET_SIZE - 1) / TS_PACKET_SIZE)
-                                * TS_PACKET_SIZE;
+                long diff = mCursor.skipToLive(TS_PACKET_SIZE);
                 Log.w(TAG, "Demux position jump by overwritten buffer: " + diff);
-                mStartBufferedPosition = currentPosition + diff;
+                mStartBufferedPosition = mCursor.getPosition();
                 mLastReadPosition.set(0);
                 return 0;
             }
             return ret;
         }
     }
+
     /**
      * Creates {@link TsStreamer} for playing or recording the specified channel.
      *
@@ -146,6 +170,13 @@ public class TunerTsStreamer implements TsStreamer {
                 context != null && TunerPreferences.getStoreTsStream(context)
                         ? new TsStreamWriter(context)
                         : null;
+        mMaxCircularBufferSize =
+                (context != null
+                                ? TunerPreferences.getTsBufferCeilingMb(context)
+                                : TunerPreferences.TS_BUFFER_CEILING_MB_DEFAULT)
+                        * 1024
+                        * 1024;
+        mBufferMappingDir = context != null ? context.getCacheDir() : null;
     }
 
     public TunerTsStreamer(TunerHal tunerHal, EventListener eventListener) {
@@ -179,19 +210,24 @@ public class TunerTsStreamer implements TsStreamer {
             }
             mChannel = channel;
             mChannelNumber = channel.getDisplayNumber();
-            synchronized (mCircularBufferMonitor) {
+            synchronized (mStreamingStateLock) {
                 if (mStreaming) {
                     Log.w(TAG, "Streaming should be stopped before start streaming");
                     return true;
                 }
                 mStreaming = true;
-                mBytesFetched = 0;
+                mCircularBuffer.open(obtainStorage(channel.getFrequency()));
+                mStreamingFrequency = channel.getFrequency();
+                mStreamingStartTimeMs = SystemClock.elapsedRealtime();
                 mLastReadPosition.set(0L);
             }
             if (mTsStreamWriter != null) {
                 mTsStreamWriter.setChannel(mChannel);
                 mTsStreamWriter.openFile();
             }
+            // Playback should not wait for EPG parsing, so PSIP data is dropped when the parsing
+            // falls behind.
+            startPsipParsing(PsipParsingThread.OVERFLOW_POLICY_DROP_OLDEST);
             mStreamingThread = new StreamingThread();
             mStreamingThread.start();
             Log.i(TAG, "Streaming started");
@@ -205,15 +241,23 @@ public class TunerTsStreamer implements TsStreamer {
         if (mTunerHal.tune(channel.frequency, channel.modulation, null)) {
             mEventDetector.startDetecting(
                     channel.frequency, channel.modulation, EventDetector.ALL_PROGRAM_NUMBERS);
-            synchronized (mCircularBufferMonitor) {
+            synchronized (mStreamingStateLock) {
                 if (mStreaming) {
                     Log.w(TAG, "Streaming should be stopped before start streaming");
                     return true;
                 }
                 mStreaming = true;
-                mBytesFetched = 0;
+                // Nothing plays while scanning, so the smallest buffer is enough.
+                mStorage =
+                        TsBufferStorage.reuseOrAllocate(
+                                mStorage, MIN_CIRCULAR_BUFFER_SIZE, mBufferMappingDir);
+                mCircularBuffer.open(mStorage);
+                mStreamingFrequency = -1;
                 mLastReadPosition.set(0L);
             }
+            // Scanning depends on every PSIP section and nothing plays meanwhile, so the
+            // streaming waits for the parsing instead of dropping data.
+            startPsipParsing(PsipParsingThread.OVERFLOW_POLICY_BACKPRESSURE);
             mStreamingThread = new StreamingThread();
             mStreamingThread.start();
             Log.i(TAG, "Streaming started");
@@ -229,15 +273,26 @@ public class TunerTsStreamer implements TsStreamer {
     @Override
     public void stopStream() {
         mChannel = null;
-        synchronized (mCircularBufferMonitor) {
+        synchronized (mStreamingStateLock) {
+            if (mStreaming) {
+                measureBitrate();
+            }
             mStreaming = false;
-            mCircularBufferMonitor.notifyAll();
+            // Also releases the readers waiting for data.
+            mCircularBuffer.close();
         }
 
+        if (mPsipParsingThread != null) {
+            // Also releases the streaming thread if it waits for room in the PSIP queue.
+            mPsipParsingThread.quit();
+        }
         try {
             if (mStreamingThread != null) {
                 mStreamingThread.join();
             }
+            if (mPsipParsingThread != null) {
+                mPsipParsingThread.join();
+            }
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
@@ -249,7 +304,22 @@ public class TunerTsStreamer implements TsStreamer {
 
     @Override
     public TsDataSource createDataSource() {
-        return new TunerDataSource(this);
+        return createDataSource(SlowReaderPolicy.SKIP_TO_LIVE);
+    }
+
+    /**
+     * Creates {@link TsDataSource} which reads the stream at its own pace, and falls behind the
+     * stream according to the given policy.
+     */
+    TsDataSource createDataSource(SlowReaderPolicy policy) {
+        return new TunerDataSource(this, policy);
+    }
+
+    /** Stops tracking the read position of a data source which is not used any more. */
+    void releaseDataSource(TsDataSource source) {
+        if (source instanceof TunerDataSource) {
+            ((TunerDataSource) source).mCursor.close();
+        }
     }
 
     /**
@@ -286,13 +356,21 @@ public class TunerTsStreamer implements TsStreamer {
      * @return the current buffered position
      */
     public long getBufferedPosition() {
-        synchronized (mCircularBufferMonitor) {
-            return mBytesFetched;
-        }
+        return mCircularBuffer.getWritePosition();
     }
 
     public String getStreamerInfo() {
-        return "Channel: " + mChannelNumber + ", Streaming: " + mStreaming;
+        PsipParsingThread psipParsingThread = mPsipParsingThread;
+        return "Channel: "
+                + mChannelNumber
+                + ", Streaming: "
+                + mStreaming
+                + ", "
+                + mCircularBuffer.getStats()
+                + (psipParsingThread != null ? ", PSIP " + psipParsingThread.getStats() : "")
+                + (mTsStreamWriter != null ? ", " + mTsStreamWriter.getStats() : "")
+                + ", "
+                + mTunerHal.getReadStats();
     }
 
     public void registerListener(EventListener listener) {
@@ -306,47 +384,68 @@ public class TunerTsStreamer implements TsStreamer {
     public void unregisterListener(EventListener listener) {
         if (mEventDetector != null) {
             synchronized (mEventListenerActions) {
-                mEventListenerActions.add(new Pair(listener, false));
+                mEventListenerActions.add(new Pair<>(listener, false));
+            }
+        }
+    }
+
+    /**
+     * Returns a storage which holds {@link #TARGET_BUFFERED_DURATION_MS} of the stream of the
+     * frequency, estimated from the bitrate measured for the frequency before. The storage of the
+     * previous stream is reused if it is large enough.
+     */
+    private TsBufferStorage obtainStorage(int frequency) {
+        int bytesPerSecond;
+        synchronized (sMeasuredBytesPerSecond) {
+            bytesPerSecond = sMeasuredBytesPerSecond.get(frequency, DEFAULT_BYTES_PER_SECOND);
+        }
+        int size =
+                TsBufferStorage.computeCapacity(
+                        bytesPerSecond,
+                        TARGET_BUFFERED_DURATION_MS,
+                        MIN_CIRCULAR_BUFFER_SIZE,
+                        Math.max(MIN_CIRCULAR_BUFFER_SIZE, mMaxCircularBufferSize));
+        mStorage = TsBufferStorage.reuseOrAllocate(mStorage, size, mBufferMappingDir);
+        Log.i(TAG, "Circular buffer for " + bytesPerSecond + " bytes/sec: " + mStorage);
+        return mStorage;
+    }
+
+    private void measureBitrate() {
+        long durationMs = SystemClock.elapsedRealtime() - mStreamingStartTimeMs;
+        if (mStreamingFrequency < 0 || durationMs < MIN_BITRATE_MEASUREMENT_MS) {
+            return;
+        }
+        int bytesPerSecond = (int) (mCircularBuffer.getWritePosition() * 1000 / durationMs);
+        if (bytesPerSecond > 0) {
+            synchronized (sMeasuredBytesPerSecond) {
+                sMeasuredBytesPerSecond.put(mStreamingFrequency, bytesPerSecond);
             }
         }
     }
 
+    private void startPsipParsing(@PsipParsingThread.OverflowPolicy int overflowPolicy) {
+        mPsipParsingThread =
+                new PsipParsingThread(
+                        mEventDetector,
+                        mEventListenerActions,
+                        READ_BUFFER_SIZE,
+                        PSIP_QUEUE_CAPACITY,
+                        overflowPolicy);
+        mPsipParsingThread.start();
+    }
+
     private class StreamingThread extends Thread {
         @Override
         public void run() {
             // Buffers for streaming data from the tuner and the internal buffer.
             byte[] dataBuffer = new byte[READ_BUFFER_SIZE];
 
-            while (true) {
-                synchronized (mCircularBufferMonitor) {
-                    if (!mStreaming) {
-                        break;
-                    }
-                }
-
-                if (mEventDetector != null) {
-                    synchronized (mEventListenerActions) {
-                        for (Pair listenerAction : mEventListenerActions) {
-                            EventListener listener = (EventListener) listenerAction.first;
-                            if ((boolean) listenerAction.second) {
-                                mEventDetector.registerListener(listener);
-                            } else {
-                                mEventDetector.unregisterListener(listener);
-                            }
-                        }
-                        mEventListenerActions.clear();
-                    }
-                }
-
-                int bytesWritten = mTunerHal.readTsStream(dataBuffer, dataBuffer.length);
+            while (mStreaming) {
+                // Returns as soon as the tuner has data, rather than after a fixed sleep.
+                int bytesWritten =
+                        mTunerHal.readTsStream(
+                                dataBuffer, dataBuffer.length, TUNER_READ_TIMEOUT_MS);
                 if (bytesWritten <= 0) {
-                    try {
-                        // When buffer is underrun, we sleep for short time to prevent
-                        // unnecessary CPU draining.
-                        sleep(BUFFER_UNDERRUN_SLEEP_MS);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
                     continue;
                 }
 
@@ -354,28 +453,10 @@ public class TunerTsStreamer implements TsStreamer {
                     mTsStreamWriter.writeToFile(dataBuffer, bytesWritten);
                 }
 
-                if (mEventDetector != null) {
-                    mEventDetector.feedTSStream(dataBuffer, 0, bytesWritten);
-                }
-                synchronized (mCircularBufferMonitor) {
-                    int posInBuffer = (int) (mBytesFetched % CIRCULAR_BUFFER_SIZE);
-                    int bytesToCopyInFirstPass = bytesWritten;
-                    if (posInBuffer + bytesToCopyInFirstPass > mCircularBuffer.length) {
-                        bytesToCopyInFirstPass = mCircularBuffer.length - posInBuffer;
-                    }
-                    System.arraycopy(
-                            dataBuffer, 0, mCircularBuffer, posInBuffer, bytesToCopyInFirstPass);
-                    if (bytesToCopyInFirstPass < bytesWritten) {
-                        System.arraycopy(
-                                dataBuffer,
-                                bytesToCopyInFirstPass,
-                                mCircularBuffer,
-                                0,
-                                bytesWritten - bytesToCopyInFirstPass);
-                    }
-                    mBytesFetched += bytesWritten;
-                    mCircularBufferMonitor.notifyAll();
-                }
+                mCircularBuffer.write(dataBuffer, 0, bytesWritten);
+
+                // The PSIP sections are parsed on another thread after the A/V data is delivered.
+                mPsipParsingThread.feed(dataBuffer, bytesWritten);
             }
 
             Log.i(TAG, "Streaming stopped");
@@ -393,36 +474,22 @@ public class TunerTsStreamer implements TsStreamer {
      * @throws IOException
      */
     public int readAt(long pos, byte[] buffer, int offset, int amount) throws IOException {
-        while (true) {
-            synchronized (mCircularBufferMonitor) {
-                if (!mStreaming) {
-                    return READ_ERROR_STREAMING_ENDED;
-                }
-                if (mBytesFetched - CIRCULAR_BUFFER_SIZE > pos) {
-                    Log.w(TAG, "Demux is requesting the data which is already overwritten.");
-                    return READ_ERROR_BUFFER_OVERWRITTEN;
-                }
-                if (mBytesFetched < pos + amount) {
-                    try {
-                        mCircularBufferMonitor.wait(READ_TIMEOUT_MS);
-                    } catch (InterruptedException e) {
-                        Thread.currentThread().interrupt();
-                    }
-                    // Try again to prevent starvation.
-                    // Give chances to read from other threads.
-                    continue;
-                }
-                int startPos = (int) (pos % CIRCULAR_BUFFER_SIZE);
-                int endPos = (int) ((pos + amount) % CIRCULAR_BUFFER_SIZE);
-                int firstLength = (startPos > endPos ? CIRCULAR_BUFFER_SIZE : endPos) - startPos;
-                System.arraycopy(mCircularBuffer, startPos, buffer, offset, firstLength);
-                if (firstLength < amount) {
-                    System.arraycopy(
-                            mCircularBuffer, 0, buffer, offset + firstLength, amount - firstLength);
-                }
-                mCircularBufferMonitor.notifyAll();
-                return amount;
-            }
+        return toReadResult(mCircularBuffer.read(pos, buffer, offset, amount, READ_TIMEOUT_MS));
+    }
+
+    private int readAt(TsRingBuffer.Cursor cursor, byte[] buffer, int offset, int amount) {
+        return toReadResult(mCircularBuffer.read(cursor, buffer, offset, amount, READ_TIMEOUT_MS));
+    }
+
+    private static int toReadResult(int result) {
+        switch (result) {
+            case TsRingBuffer.RESULT_CLOSED:
+                return READ_ERROR_STREAMING_ENDED;
+            case TsRingBuffer.RESULT_OVERWRITTEN:
+                Log.w(TAG, "Demux is requesting the data which is already overwritten.");
+                return READ_ERROR_BUFFER_OVERWRITTEN;
+            default:
+                return result;
         }
     }
 }
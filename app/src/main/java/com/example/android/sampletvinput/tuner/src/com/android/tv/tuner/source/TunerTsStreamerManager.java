@@ -64,13 +64,14 @@ class TunerTsStreamerManager {
             TunerChannel channel,
             EventDetector.EventListener listener,
             int sessionId,
-            boolean reuse) {
+            boolean reuse,
+            SlowReaderPolicy policy) {
         TsStreamerCreator creator;
         synchronized (mCancelLock) {
             if (mStreamerFinder.containsLocked(channel)) {
                 mStreamerFinder.appendSessionLocked(channel, sessionId);
                 TunerTsStreamer streamer = mStreamerFinder.getStreamerLocked(channel);
-                TsDataSource source = streamer.createDataSource();
+                TsDataSource source = streamer.createDataSource(policy);
                 mListeners.put(sessionId, listener);
                 streamer.registerListener(listener);
                 mSourceToStreamerMap.put(source, streamer);
@@ -87,7 +88,7 @@ class TunerTsStreamerManager {
             }
             if (!creator.isCancelledLocked()) {
                 mStreamerFinder.putLocked(channel, sessionId, streamer);
-                TsDataSource source = streamer.createDataSource();
+                TsDataSource source = streamer.createDataSource(policy);
                 mListeners.put(sessionId, listener);
                 mSourceToStreamerMap.put(source, streamer);
                 return source;
@@ -109,6 +110,7 @@ class TunerTsStreamerManager {
             if (streamer == null) {
                 return;
             }
+            streamer.releaseDataSource(source);
             EventDetector.EventListener listener = mListeners.remove(sessionId);
             streamer.unregisterListener(listener);
             TunerChannel channel = streamer.getChannel();
@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts;
+
+import android.support.annotation.Nullable;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.Ac3AudioDescriptor;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.CaptionServiceDescriptor;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.ContentAdvisoryDescriptor;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.ExtendedChannelNameDescriptor;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.GenreDescriptor;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.Iso639LanguageDescriptor;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.ParentalRatingDescriptor;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.ServiceDescriptor;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.ShortEventDescriptor;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.TsDescriptor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A view of a descriptor loop in a section. The descriptors are located on the first access, and
+ * each descriptor is decoded into a {@link TsDescriptor} only when it is accessed. The decoded
+ * descriptors are kept, so each descriptor is decoded at most once.
+ *
+ * <p>The view refers to the section bytes without copying them, so it is only used while the
+ * section is parsed, and is not kept by the parsed items. This class is not thread-safe.
+ */
+final class DescriptorLoop {
+    private static final int[] NO_POSITIONS = new int[0];
+
+    private final byte[] mData;
+    private final int mOffset;
+    private final int mLimit;
+    private int[] mPositions;
+    private TsDescriptor[] mDescriptors;
+    private boolean[] mDecoded;
+
+    /**
+     * Creates a view of the descriptor loop in the given range.
+     *
+     * @param data the section which holds the descriptor loop
+     * @param offset the offset where the descriptor loop starts
+     * @param limit the offset where the descriptor loop ends
+     */
+    public DescriptorLoop(byte[] data, int offset, int limit) {
+        mData = data;
+        mOffset = offset;
+        mLimit = limit;
+    }
+
+    /** Returns the number of descriptors in the loop, including the unsupported ones. */
+    public int size() {
+        return getPositions().length;
+    }
+
+    /** Returns the tag of the descriptor at the given index. */
+    public int getTag(int index) {
+        return mData[getPositions()[index]] & 0xff;
+    }
+
+    /**
+     * Returns the descriptor at the given index, decoding it if needed.
+     *
+     * @return the decoded descriptor, or {@code null} if the descriptor is unsupported or broken
+     */
+    @Nullable
+    public TsDescriptor get(int index) {
+        int[] positions = getPositions();
+        if (mDescriptors == null) {
+            mDescriptors = new TsDescriptor[positions.length];
+            mDecoded = new boolean[positions.length];
+        }
+        if (!mDecoded[index]) {
+            int pos = positions[index];
+            int limit = pos + (mData[pos + 1] & 0xff) + 2;
+            mDescriptors[index] = SectionParser.parseDescriptor(mData, pos, limit);
+            mDecoded[index] = true;
+        }
+        return mDescriptors[index];
+    }
+
+    /** Decodes all the descriptors, and returns the supported and well-formed ones in order. */
+    public List<TsDescriptor> getAll() {
+        List<TsDescriptor> descriptors = new ArrayList<>();
+        for (int i = 0; i < size(); ++i) {
+            TsDescriptor descriptor = get(i);
+            if (descriptor != null) {
+                descriptors.add(descriptor);
+            }
+        }
+        return descriptors;
+    }
+
+    public List<Iso639LanguageDescriptor> getIso639LanguageDescriptors() {
+        return getDescriptors(
+                SectionParser.DESCRIPTOR_TAG_ISO639LANGUAGE, Iso639LanguageDescriptor.class);
+    }
+
+    public List<CaptionServiceDescriptor> getCaptionServiceDescriptors() {
+        return getDescriptors(
+                SectionParser.DESCRIPTOR_TAG_CAPTION_SERVICE, CaptionServiceDescriptor.class);
+    }
+
+    public List<ContentAdvisoryDescriptor> getContentAdvisoryDescriptors() {
+        return getDescriptors(
+                SectionParser.DESCRIPTOR_TAG_CONTENT_ADVISORY, ContentAdvisoryDescriptor.class);
+    }
+
+    public List<Ac3AudioDescriptor> getAc3AudioDescriptors() {
+        return getDescriptors(
+                SectionParser.DESCRIPTOR_TAG_AC3_AUDIO_STREAM, Ac3AudioDescriptor.class);
+    }
+
+    @Nullable
+    public ExtendedChannelNameDescriptor getExtendedChannelNameDescriptor() {
+        return getFirstDescriptor(
+                SectionParser.DESCRIPTOR_TAG_EXTENDED_CHANNEL_NAME,
+                ExtendedChannelNameDescriptor.class);
+    }
+
+    @Nullable
+    public GenreDescriptor getGenreDescriptor() {
+        return getFirstDescriptor(SectionParser.DESCRIPTOR_TAG_GENRE, GenreDescriptor.class);
+    }
+
+    public List<ServiceDescriptor> getServiceDescriptors() {
+        return getDescriptors(SectionParser.DVB_DESCRIPTOR_TAG_SERVICE, ServiceDescriptor.class);
+    }
+
+    @Nullable
+    public ShortEventDescriptor getShortEventDescriptor() {
+        return getFirstDescriptor(
+                SectionParser.DVB_DESCRIPTOR_TAG_SHORT_EVENT, ShortEventDescriptor.class);
+    }
+
+    public List<ParentalRatingDescriptor> getParentalRatingDescriptors() {
+        return getDescriptors(
+                SectionParser.DVB_DESCRIPTOR_TAG_PARENTAL_RATING, ParentalRatingDescriptor.class);
+    }
+
+    private <T extends TsDescriptor> List<T> getDescriptors(int tag, Class<T> type) {
+        List<T> descriptors = null;
+        for (int i = 0; i < size(); ++i) {
+            if (getTag(i) == tag) {
+                TsDescriptor descriptor = get(i);
+                if (type.isInstance(descriptor)) {
+                    if (descriptors == null) {
+                        descriptors = new ArrayList<>();
+                    }
+                    descriptors.add(type.cast(descriptor));
+                }
+            }
+        }
+        return descriptors != null ? descriptors : Collections.<T>emptyList();
+    }
+
+    private <T extends TsDescriptor> T getFirstDescriptor(int tag, Class<T> type) {
+        for (int i = 0; i < size(); ++i) {
+            if (getTag(i) == tag) {
+                TsDescriptor descriptor = get(i);
+                if (type.isInstance(descriptor)) {
+                    return type.cast(descriptor);
+                }
+            }
+        }
+        return null;
+    }
+
+    private int[] getPositions() {
+        if (mPositions != null) {
+            return mPositions;
+        }
+        // For details of the structure for descriptors, see ATSC A/65 Section 6.9.
+        if (mData.length < mLimit) {
+            mPositions = NO_POSITIONS;
+            return mPositions;
+        }
+        int count = 0;
+        int[] positions = new int[4];
+        int pos = mOffset;
+        while (pos + 1 < mLimit) {
+            int length = mData[pos + 1] & 0xff;
+            if (length <= 0 || mLimit < pos + length + 2) {
+                break;
+            }
+            if (count == positions.length) {
+                int[] newPositions = new int[count * 2];
+                System.arraycopy(positions, 0, newPositions, 0, count);
+                positions = newPositions;
+            }
+            positions[count++] = pos;
+            pos += length + 2;
+        }
+        if (count == 0) {
+            mPositions = NO_POSITIONS;
+        } else if (count < positions.length) {
+            mPositions = new int[count];
+            System.arraycopy(positions, 0, mPositions, 0, count);
+        } else {
+            mPositions = positions;
+        }
+        return mPositions;
+    }
+}
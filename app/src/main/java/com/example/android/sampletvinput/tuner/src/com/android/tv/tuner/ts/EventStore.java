@@ -0,0 +1,254 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts;
+
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.EitItem;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.EttItem;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.util.IntObjectHashMap;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.util.LongIntHashMap;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Keeps the current events of each source, keyed by (source id, event id), and merges the EIT and
+ * ETT items into them as they arrive. Each update reports only the events which were added or
+ * changed by it.
+ *
+ * <p>As before, the events of a source carried on an EIT PID are replaced by the latest EIT items
+ * of the PID, and an event carried on several EIT PIDs is taken from the highest PID. The ETT
+ * texts are kept per event, so a description stays with its event until a new text arrives. The
+ * text is dropped when its event leaves the EIT window or is replaced by another event with the
+ * same id, since event ids are reused.
+ *
+ * <p>An EIT section only updates the events of its items and of the items it replaces, and the
+ * list of all the events of a source is built only when it is asked for, i.e. when the events
+ * changed.
+ */
+class EventStore {
+    private final BitSet mEitPids;
+    private final IntObjectHashMap<SourceEvents> mSourceMap = new IntObjectHashMap<>();
+    private final List<SourceEvents> mSources = new ArrayList<>();
+    private int mGeneration;
+
+    private static class SourceEvents {
+        // The latest EIT items of the source on each EIT PID.
+        private final IntObjectHashMap<List<EitItem>> mEitMap = new IntObjectHashMap<>();
+        private final IntObjectHashMap<String> mDescriptionMap = new IntObjectHashMap<>();
+        // The current event of each event id, and the PID which it is taken from.
+        private final IntObjectHashMap<EitItem> mEventMap = new IntObjectHashMap<>();
+        private final LongIntHashMap mEventPidMap = new LongIntHashMap();
+        // The list of the current events, or null if it should be built again.
+        private List<EitItem> mEvents;
+        private int mGeneration;
+    }
+
+    /**
+     * Creates an event store.
+     *
+     * @param eitPids the EIT PIDs, which are looked up in ascending order when merging the events
+     */
+    EventStore(BitSet eitPids) {
+        mEitPids = eitPids;
+    }
+
+    /**
+     * Replaces the events of a source carried on an EIT PID. The current events of the source are
+     * updated in place for the items of the PID, and the list of the events is only built again
+     * when it is asked for.
+     *
+     * @return the events which were added or changed, or {@code null} if the current events of the
+     *     source did not change at all
+     */
+    List<EitItem> putEitItems(int pid, int sourceId, List<EitItem> items) {
+        SourceEvents source = getSourceEvents(sourceId);
+        // Events which were reported before the last reset are reported again.
+        boolean isReported = source.mGeneration == mGeneration;
+        source.mGeneration = mGeneration;
+        List<EitItem> previousItems = source.mEitMap.get(pid);
+        source.mEitMap.put(pid, items);
+        source.mEvents = null;
+
+        List<EitItem> changedEvents = new ArrayList<>();
+        for (EitItem item : items) {
+            if (source.mEventPidMap.get(item.getEventId(), -1) > pid) {
+                // Overridden by the item of a higher PID.
+                continue;
+            }
+            updateEvent(source, pid, item, changedEvents);
+        }
+        boolean hasRemovedEvents = false;
+        if (previousItems != null) {
+            for (EitItem previous : previousItems) {
+                int eventId = previous.getEventId();
+                if (source.mEventMap.get(eventId) != previous) {
+                    // Overridden by the item of a higher PID, or replaced by the new items.
+                    continue;
+                }
+                // The event left the PID, so it is taken from a lower PID if any.
+                if (!updateEventFromLowerPid(source, pid, eventId, changedEvents)) {
+                    source.mEventMap.remove(eventId);
+                    source.mEventPidMap.remove(eventId);
+                    source.mDescriptionMap.remove(eventId);
+                    hasRemovedEvents = true;
+                }
+            }
+        }
+        if (!isReported) {
+            List<EitItem> events = getEvents(source);
+            return events.isEmpty() ? null : events;
+        }
+        return changedEvents.isEmpty() && !hasRemovedEvents ? null : changedEvents;
+    }
+
+    /**
+     * Merges the ETT texts of a source into its events. The channel description, whose event id
+     * is {@code 0}, is not handled here.
+     *
+     * @return the events whose description changed, or {@code null} if there is none
+     */
+    List<EitItem> putEttItems(int sourceId, List<EttItem> items) {
+        SourceEvents source = getSourceEvents(sourceId);
+        List<EitItem> changedEvents = null;
+        for (EttItem ettItem : items) {
+            if (ettItem.eventId == 0) {
+                continue;
+            }
+            source.mDescriptionMap.put(ettItem.eventId, ettItem.text);
+            EitItem item = source.mEventMap.get(ettItem.eventId);
+            if (item == null || Objects.equals(item.getDescription(), ettItem.text)) {
+                continue;
+            }
+            item.setDescription(ettItem.text);
+            if (changedEvents == null) {
+                changedEvents = new ArrayList<>();
+            }
+            if (!changedEvents.contains(item)) {
+                changedEvents.add(item);
+            }
+        }
+        return changedEvents;
+    }
+
+    /**
+     * Returns the current events of a source, in the order of their PIDs and then of their items,
+     * or {@code null} if no EIT item has arrived yet. The returned list is not modified afterwards.
+     */
+    List<EitItem> getEvents(int sourceId) {
+        SourceEvents source = mSourceMap.get(sourceId);
+        return source != null && !source.mEitMap.isEmpty() ? getEvents(source) : null;
+    }
+
+    /** Makes the next EIT update of each source report all of its events as added. */
+    void resetReportedEvents() {
+        mGeneration++;
+    }
+
+    /** Returns the number of sources whose events are kept. */
+    int getSourceCount() {
+        return mSources.size();
+    }
+
+    /**
+     * Returns the approximate number of bytes held by the backing arrays of the tables of this
+     * store. The events and the texts which the tables refer to are not included.
+     */
+    long getTableSizeInBytes() {
+        long size = mSourceMap.getTableSizeInBytes();
+        for (SourceEvents source : mSources) {
+            size += source.mEitMap.getTableSizeInBytes();
+            size += source.mDescriptionMap.getTableSizeInBytes();
+            size += source.mEventMap.getTableSizeInBytes();
+            size += source.mEventPidMap.getTableSizeInBytes();
+        }
+        return size;
+    }
+
+    private SourceEvents getSourceEvents(int sourceId) {
+        SourceEvents source = mSourceMap.get(sourceId);
+        if (source == null) {
+            source = new SourceEvents();
+            source.mGeneration = mGeneration;
+            mSourceMap.put(sourceId, source);
+            mSources.add(source);
+        }
+        return source;
+    }
+
+    private List<EitItem> getEvents(SourceEvents source) {
+        if (source.mEvents == null) {
+            List<EitItem> events = new ArrayList<>(source.mEventMap.size());
+            for (int eitPid = mEitPids.nextSetBit(0);
+                    eitPid >= 0;
+                    eitPid = mEitPids.nextSetBit(eitPid + 1)) {
+                List<EitItem> eitItems = source.mEitMap.get(eitPid);
+                if (eitItems == null) {
+                    continue;
+                }
+                for (EitItem item : eitItems) {
+                    if (source.mEventMap.get(item.getEventId()) == item) {
+                        events.add(item);
+                    }
+                }
+            }
+            source.mEvents = events;
+        }
+        return source.mEvents;
+    }
+
+    /**
+     * Takes an event which left a PID from the highest lower PID which carries it.
+     *
+     * @return whether a lower PID carries the event
+     */
+    private boolean updateEventFromLowerPid(
+            SourceEvents source, int pid, int eventId, List<EitItem> changedEvents) {
+        for (int eitPid = mEitPids.previousSetBit(pid - 1);
+                eitPid >= 0;
+                eitPid = mEitPids.previousSetBit(eitPid - 1)) {
+            List<EitItem> eitItems = source.mEitMap.get(eitPid);
+            if (eitItems == null) {
+                continue;
+            }
+            for (EitItem item : eitItems) {
+                if (item.getEventId() == eventId) {
+                    updateEvent(source, eitPid, item, changedEvents);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Makes an item the current event of its id, and adds it to the changed events if so. */
+    private static void updateEvent(
+            SourceEvents source, int pid, EitItem item, List<EitItem> changedEvents) {
+        int eventId = item.getEventId();
+        EitItem previous = source.mEventMap.get(eventId);
+        if (previous != null && previous.getStartTime() != item.getStartTime()) {
+            // The event id is reused by another event.
+            source.mDescriptionMap.remove(eventId);
+        }
+        source.mEventMap.put(eventId, item);
+        source.mEventPidMap.put(eventId, pid);
+        item.setDescription(source.mDescriptionMap.get(eventId));
+        if (previous == null || previous.compareTo(item) != 0) {
+            changedEvents.add(item);
+        }
+    }
+}
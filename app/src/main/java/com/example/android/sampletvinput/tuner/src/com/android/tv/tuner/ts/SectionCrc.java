@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts;
+
+/**
+ * Computes the CRC-32/MPEG-2 checksum which protects PSI and PSIP sections. For details, see
+ * H.222.0 Annex A.
+ *
+ * <p>A section is intact when the checksum over the whole section, including its CRC_32 field, is
+ * {@code 0}.
+ */
+public abstract class SectionCrc {
+    private static final int POLYNOMIAL = 0x04c11db7;
+    private static final int INITIAL_VALUE = 0xffffffff;
+
+    // CRC_TABLES[0] is the classic byte-at-a-time table. CRC_TABLES[k][i] is the checksum of the
+    // byte i followed by k zero bytes, which allows 8 bytes to be folded in a single step.
+    private static final int[][] CRC_TABLES = new int[8][256];
+
+    static {
+        for (int i = 0; i < 256; ++i) {
+            int crc = i << 24;
+            for (int bit = 0; bit < 8; ++bit) {
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ POLYNOMIAL : crc << 1;
+            }
+            CRC_TABLES[0][i] = crc;
+        }
+        for (int k = 1; k < CRC_TABLES.length; ++k) {
+            for (int i = 0; i < 256; ++i) {
+                int crc = CRC_TABLES[k - 1][i];
+                CRC_TABLES[k][i] = (crc << 8) ^ CRC_TABLES[0][crc >>> 24];
+            }
+        }
+    }
+
+    /** Processes a byte at a time with a single 256-entry table. */
+    public static final SectionCrc BYTEWISE = new BytewiseCrc();
+
+    /** Processes 8 bytes at a time with eight 256-entry tables. */
+    public static final SectionCrc SLICING_BY_8 = new SlicingBy8Crc();
+
+    /** Returns the recommended implementation. */
+    public static SectionCrc getDefault() {
+        return SLICING_BY_8;
+    }
+
+    /**
+     * Computes the checksum of the given range.
+     *
+     * @param data the buffer which holds the data
+     * @param offset the offset where the data starts
+     * @param length the length of the data
+     * @return the checksum, which is {@code 0} for an intact section including its CRC_32 field
+     */
+    public int compute(byte[] data, int offset, int length) {
+        return update(INITIAL_VALUE, data, offset, length);
+    }
+
+    /**
+     * Continues the checksum calculation with the given range.
+     *
+     * @param crc the checksum of the preceding data
+     * @param data the buffer which holds the data
+     * @param offset the offset where the data starts
+     * @param length the length of the data
+     * @return the checksum including the given range
+     */
+    public abstract int update(int crc, byte[] data, int offset, int length);
+
+    private static class BytewiseCrc extends SectionCrc {
+        @Override
+        public int update(int crc, byte[] data, int offset, int length) {
+            int[] table = CRC_TABLES[0];
+            for (int i = offset, limit = offset + length; i < limit; ++i) {
+                crc = table[((crc >>> 24) ^ data[i]) & 0xff] ^ (crc << 8);
+            }
+            return crc;
+        }
+    }
+
+    private static class SlicingBy8Crc extends SectionCrc {
+        @Override
+        public int update(int crc, byte[] data, int offset, int length) {
+            int[] t0 = CRC_TABLES[0];
+            int[] t1 = CRC_TABLES[1];
+            int[] t2 = CRC_TABLES[2];
+            int[] t3 = CRC_TABLES[3];
+            int[] t4 = CRC_TABLES[4];
+            int[] t5 = CRC_TABLES[5];
+            int[] t6 = CRC_TABLES[6];
+            int[] t7 = CRC_TABLES[7];
+            int pos = offset;
+            int limit = offset + length;
+            for (; pos + 8 <= limit; pos += 8) {
+                crc ^=
+                        (data[pos] & 0xff) << 24
+                                | (data[pos + 1] & 0xff) << 16
+                                | (data[pos + 2] & 0xff) << 8
+                                | (data[pos + 3] & 0xff);
+                crc =
+                        t7[crc >>> 24]
+                                ^ t6[(crc >>> 16) & 0xff]
+                                ^ t5[(crc >>> 8) & 0xff]
+                                ^ t4[crc & 0xff]
+                                ^ t3[data[pos + 4] & 0xff]
+                                ^ t2[data[pos + 5] & 0xff]
+                                ^ t1[data[pos + 6] & 0xff]
+                                ^ t0[data[pos + 7] & 0xff];
+            }
+            for (; pos < limit; ++pos) {
+                crc = t0[((crc >>> 24) ^ data[pos]) & 0xff] ^ (crc << 8);
+            }
+            return crc;
+        }
+    }
+}
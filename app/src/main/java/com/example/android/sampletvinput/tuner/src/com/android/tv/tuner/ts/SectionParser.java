@@ -37,7 +37,6 @@ import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.Psi
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.Iso639LanguageDescriptor;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.MgtItem;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.ParentalRatingDescriptor;
-import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.PsipSection;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.RatingRegion;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.RegionalRating;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.SdtItem;
@@ -51,7 +50,7 @@ import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.Track.At
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.Track.AtscCaptionTrack;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.util.ByteArrayBuffer;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.util.ConvertUtils;
-import java.io.UnsupportedEncodingException;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.util.LongIntHashMap;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
@@ -158,78 +157,6 @@ public class SectionParser {
     private static final String STRING_US_TV_Y7 = "US_TV_Y7";
     private static final String STRING_US_TV_FV = "US_TV_FV";
 
-    /*
-     * The following CRC table is from the code generated by the following command.
-     * $ python pycrc.py --model crc-32-mpeg --algorithm table-driven --generate c
-     * To see the details of pycrc, visit http://www.tty1.net/pycrc/index_en.html
-     */
-    public static final int[] CRC_TABLE = {
-        0x00000000, 0x04c11db7, 0x09823b6e, 0x0d4326d9,
-        0x130476dc, 0x17c56b6b, 0x1a864db2, 0x1e475005,
-        0x2608edb8, 0x22c9f00f, 0x2f8ad6d6, 0x2b4bcb61,
-        0x350c9b64, 0x31cd86d3, 0x3c8ea00a, 0x384fbdbd,
-        0x4c11db70, 0x48d0c6c7, 0x4593e01e, 0x4152fda9,
-        0x5f15adac, 0x5bd4b01b, 0x569796c2, 0x52568b75,
-        0x6a1936c8, 0x6ed82b7f, 0x639b0da6, 0x675a1011,
-        0x791d4014, 0x7ddc5da3, 0x709f7b7a, 0x745e66cd,
-        0x9823b6e0, 0x9ce2ab57, 0x91a18d8e, 0x95609039,
-        0x8b27c03c, 0x8fe6dd8b, 0x82a5fb52, 0x8664e6e5,
-        0xbe2b5b58, 0xbaea46ef, 0xb7a96036, 0xb3687d81,
-        0xad2f2d84, 0xa9ee3033, 0xa4ad16ea, 0xa06c0b5d,
-        0xd4326d90, 0xd0f37027, 0xddb056fe, 0xd9714b49,
-        0xc7361b4c, 0xc3f706fb, 0xceb42022, 0xca753d95,
-        0xf23a8028, 0xf6fb9d9f, 0xfbb8bb46, 0xff79a6f1,
-        0xe13ef6f4, 0xe5ffeb43, 0xe8bccd9a, 0xec7dd02d,
-        0x34867077, 0x30476dc0, 0x3d044b19, 0x39c556ae,
-        0x278206ab, 0x23431b1c, 0x2e003dc5, 0x2ac12072,
-        0x128e9dcf, 0x164f8078, 0x1b0ca6a1, 0x1fcdbb16,
-        0x018aeb13, 0x054bf6a4, 0x0808d07d, 0x0cc9cdca,
-        0x7897ab07, 0x7c56b6b0, 0x71159069, 0x75d48dde,
-        0x6b93dddb, 0x6f52c06c, 0x6211e6b5, 0x66d0fb02,
-        0x5e9f46bf, 0x5a5e5b08, 0x571d7dd1, 0x53dc6066,
-        0x4d9b3063, 0x495a2dd4, 0x44190b0d, 0x40d816ba,
-        0xaca5c697, 0xa864db20, 0xa527fdf9, 0xa1e6e04e,
-        0xbfa1b04b, 0xbb60adfc, 0xb6238b25, 0xb2e29692,
-        0x8aad2b2f, 0x8e6c3698, 0x832f1041, 0x87ee0df6,
-        0x99a95df3, 0x9d684044, 0x902b669d, 0x94ea7b2a,
-        0xe0b41de7, 0xe4750050, 0xe9362689, 0xedf73b3e,
-        0xf3b06b3b, 0xf771768c, 0xfa325055, 0xfef34de2,
-        0xc6bcf05f, 0xc27dede8, 0xcf3ecb31, 0xcbffd686,
-        0xd5b88683, 0xd1799b34, 0xdc3abded, 0xd8fba05a,
-        0x690ce0ee, 0x6dcdfd59, 0x608edb80, 0x644fc637,
-        0x7a089632, 0x7ec98b85, 0x738aad5c, 0x774bb0eb,
-        0x4f040d56, 0x4bc510e1, 0x46863638, 0x42472b8f,
-        0x5c007b8a, 0x58c1663d, 0x558240e4, 0x51435d53,
-        0x251d3b9e, 0x21dc2629, 0x2c9f00f0, 0x285e1d47,
-        0x36194d42, 0x32d850f5, 0x3f9b762c, 0x3b5a6b9b,
-        0x0315d626, 0x07d4cb91, 0x0a97ed48, 0x0e56f0ff,
-        0x1011a0fa, 0x14d0bd4d, 0x19939b94, 0x1d528623,
-        0xf12f560e, 0xf5ee4bb9, 0xf8ad6d60, 0xfc6c70d7,
-        0xe22b20d2, 0xe6ea3d65, 0xeba91bbc, 0xef68060b,
-        0xd727bbb6, 0xd3e6a601, 0xdea580d8, 0xda649d6f,
-        0xc423cd6a, 0xc0e2d0dd, 0xcda1f604, 0xc960ebb3,
-        0xbd3e8d7e, 0xb9ff90c9, 0xb4bcb610, 0xb07daba7,
-        0xae3afba2, 0xaafbe615, 0xa7b8c0cc, 0xa379dd7b,
-        0x9b3660c6, 0x9ff77d71, 0x92b45ba8, 0x9675461f,
-        0x8832161a, 0x8cf30bad, 0x81b02d74, 0x857130c3,
-        0x5d8a9099, 0x594b8d2e, 0x5408abf7, 0x50c9b640,
-        0x4e8ee645, 0x4a4ffbf2, 0x470cdd2b, 0x43cdc09c,
-        0x7b827d21, 0x7f436096, 0x7200464f, 0x76c15bf8,
-        0x68860bfd, 0x6c47164a, 0x61043093, 0x65c52d24,
-        0x119b4be9, 0x155a565e, 0x18197087, 0x1cd86d30,
-        0x029f3d35, 0x065e2082, 0x0b1d065b, 0x0fdc1bec,
-        0x3793a651, 0x3352bbe6, 0x3e119d3f, 0x3ad08088,
-        0x2497d08d, 0x2056cd3a, 0x2d15ebe3, 0x29d4f654,
-        0xc5a92679, 0xc1683bce, 0xcc2b1d17, 0xc8ea00a0,
-        0xd6ad50a5, 0xd26c4d12, 0xdf2f6bcb, 0xdbee767c,
-        0xe3a1cbc1, 0xe760d676, 0xea23f0af, 0xeee2ed18,
-        0xf0a5bd1d, 0xf464a0aa, 0xf9278673, 0xfde69bc4,
-        0x89b8fd09, 0x8d79e0be, 0x803ac667, 0x84fbdbd0,
-        0x9abc8bd5, 0x9e7d9662, 0x933eb0bb, 0x97ffad0c,
-        0xafb010b1, 0xab710d06, 0xa6322bdf, 0xa2f33668,
-        0xbcb4666d, 0xb8757bda, 0xb5365d03, 0xb1f740b4
-    };
-
     // A table which maps ATSC genres to TIF genres.
     // See ATSC/65 Table 6.20.
     private static final String[] CANONICAL_GENRES_TABLE = {
@@ -621,8 +548,17 @@ public class SectionParser {
     private static final Charset SCSU_CHARSET =
             Charset.isSupported("SCSU") ? Charset.forName("SCSU") : null;
 
-    // Containers to store the last version numbers of the PSIP sections.
-    private final HashMap<PsipSection, Integer> mSectionVersionMap = new HashMap<>();
+    // Shared by all the parsers, since the same texts are carried on many PIDs and multiplexes.
+    private static final int TEXT_DECODE_CACHE_CAPACITY = 2048;
+    private static final TextDecodeCache sTextDecodeCache =
+            new TextDecodeCache(TEXT_DECODE_CACHE_CAPACITY);
+
+    // The minimum length of a section which has the extended section header.
+    private static final int MIN_SECTION_LENGTH = 9;
+
+    // Containers to store the last version numbers of the PSIP sections, keyed by
+    // getSectionKey().
+    private final LongIntHashMap mSectionVersionMap = new LongIntHashMap();
     private final SparseArray<List<EttItem>> mParsedEttItems = new SparseArray<>();
 
     public interface OutputListener {
@@ -642,29 +578,55 @@ public class SectionParser {
     }
 
     private final OutputListener mListener;
+    private final SectionCrc mSectionCrc;
 
     public SectionParser(OutputListener listener) {
+        this(listener, SectionCrc.getDefault());
+    }
+
+    public SectionParser(OutputListener listener, SectionCrc sectionCrc) {
         mListener = listener;
+        mSectionCrc = sectionCrc;
     }
 
     public void parseSections(ByteArrayBuffer data) {
-        int pos = 0;
-        while (pos + 3 <= data.length()) {
-            if ((data.byteAt(pos) & 0xff) == 0xff) {
-                // Clear stuffing bytes according to H222.0 section 2.4.4.
-                data.setLength(0);
+        if (parseSections(data.buffer(), 0, data.length()) < 0) {
+            // Clear stuffing bytes according to H222.0 section 2.4.4.
+            data.setLength(0);
+        }
+    }
+
+    /**
+     * Parses the complete sections in the given range of {@code data} without copying the range
+     * first.
+     *
+     * @param data the buffer which holds the sections
+     * @param offset the offset where the first section starts
+     * @param length the number of bytes available from {@code offset}
+     * @return the number of bytes consumed by complete sections, or -1 if stuffing bytes were
+     *     reached and the rest of the range should be discarded
+     */
+    public int parseSections(byte[] data, int offset, int length) {
+        int pos = offset;
+        int limit = offset + length;
+        int consumed = 0;
+        while (pos + 3 <= limit) {
+            if ((data[pos] & 0xff) == 0xff) {
+                consumed = -1;
                 break;
             }
-            int sectionLength =
-                    (((data.byteAt(pos + 1) & 0x0f) << 8) | (data.byteAt(pos + 2) & 0xff)) + 3;
-            if (pos + sectionLength > data.length()) {
+            int sectionLength = (((data[pos + 1] & 0x0f) << 8) | (data[pos + 2] & 0xff)) + 3;
+            if (pos + sectionLength > limit) {
                 break;
             }
             if (DEBUG) {
-                Log.d(TAG, "parseSections 0x" + Integer.toHexString(data.byteAt(pos) & 0xff));
+                Log.d(TAG, "parseSections 0x" + Integer.toHexString(data[pos] & 0xff));
+            }
+            if (isNewSection(data, pos, sectionLength)) {
+                parseSection(Arrays.copyOfRange(data, pos, pos + sectionLength));
             }
-            parseSection(Arrays.copyOfRange(data.buffer(), pos, pos + sectionLength));
             pos += sectionLength;
+            consumed = pos - offset;
         }
         if (mListener != null) {
             for (int i = 0; i < mParsedEttItems.size(); ++i) {
@@ -674,32 +636,51 @@ public class SectionParser {
             }
         }
         mParsedEttItems.clear();
+        return consumed;
     }
 
     public void resetVersionNumbers() {
         mSectionVersionMap.clear();
     }
 
-    private void parseSection(byte[] data) {
-        if (!checkSanity(data)) {
-            Log.d(TAG, "Bad CRC!");
-            return;
-        }
-        PsipSection section = PsipSection.create(data);
-        if (section == null) {
-            return;
+    /** Returns the approximate number of bytes held by the table of handled section versions. */
+    public long getVersionTableSizeInBytes() {
+        return mSectionVersionMap.getTableSizeInBytes();
+    }
+
+    /**
+     * Peeks the header of the section in place, and returns whether the section needs to be
+     * parsed. Sections which are not applicable yet or whose version was already handled are
+     * dropped before being copied or checked for the CRC.
+     */
+    private boolean isNewSection(byte[] data, int pos, int sectionLength) {
+        if (sectionLength < MIN_SECTION_LENGTH) {
+            return false;
         }
 
         // The currentNextIndicator indicates that the section sent is currently applicable.
-        if (!section.getCurrentNextIndicator()) {
-            return;
+        if ((data[pos + 5] & 0x01) == 0) {
+            return false;
         }
-        int versionNumber = (data[5] & 0x3e) >> 1;
-        Integer oldVersionNumber = mSectionVersionMap.get(section);
 
         // The versionNumber shall be incremented when a change in the information carried within
-        // the section occurs.
-        if (oldVersionNumber != null && versionNumber == oldVersionNumber) {
+        // the section occurs. A section with a known version is dropped whether it is intact or
+        // not, so the CRC check is skipped for it.
+        int versionNumber = (data[pos + 5] & 0x3e) >> 1;
+        return mSectionVersionMap.get(getSectionKey(data, pos), -1) != versionNumber;
+    }
+
+    /** Returns a key made of the table id, the table id extension and the section number. */
+    private static long getSectionKey(byte[] data, int pos) {
+        return ((long) (data[pos] & 0xff) << 24)
+                | ((data[pos + 3] & 0xff) << 16)
+                | ((data[pos + 4] & 0xff) << 8)
+                | (data[pos + 6] & 0xff);
+    }
+
+    private void parseSection(byte[] data) {
+        if (!checkSanity(data)) {
+            Log.d(TAG, "Bad CRC!");
             return;
         }
         boolean result = false;
@@ -734,7 +715,7 @@ public class SectionParser {
                 break;
         }
         if (result) {
-            mSectionVersionMap.put(section, versionNumber);
+            mSectionVersionMap.put(getSectionKey(data, 0), (data[5] & 0x3e) >> 1);
         }
     }
 
@@ -772,7 +753,7 @@ public class SectionParser {
         int pcrPid = (data[8] & 0x1f) << 8 | data[9];
         int programInfoLen = (data[10] & 0x0f) << 8 | data[11];
         int pos = 12;
-        List<TsDescriptor> descriptors = parseDescriptors(data, pos, pos + programInfoLen);
+        DescriptorLoop descriptors = parseDescriptors(data, pos, pos + programInfoLen);
         pos += programInfoLen;
         if (DEBUG) {
             Log.d(TAG, "PMT descriptors size: " + descriptors.size());
@@ -868,15 +849,9 @@ public class SectionParser {
                 Log.e(TAG, "Broken VCT.");
                 return false;
             }
-            String shortName = "";
             int shortNameSize = getShortNameSize(data, pos);
-            try {
-                shortName =
-                        new String(Arrays.copyOfRange(data, pos, pos + shortNameSize), "UTF-16");
-            } catch (UnsupportedEncodingException e) {
-                Log.e(TAG, "Broken VCT.", e);
-                return false;
-            }
+            String shortName =
+                    sTextDecodeCache.decode(data, pos, shortNameSize, StandardCharsets.UTF_16);
             if ((data[pos + 14] & 0xf0) != 0xf0) {
                 Log.e(TAG, "Broken VCT.");
                 return false;
@@ -902,17 +877,15 @@ public class SectionParser {
                 Log.e(TAG, "Broken VCT.");
                 return false;
             }
-            List<TsDescriptor> descriptors =
+            DescriptorLoop descriptors =
                     parseDescriptors(data, descriptorsPos, descriptorsPos + descriptorsLength);
-            String longName = null;
-            for (TsDescriptor descriptor : descriptors) {
-                if (descriptor instanceof ExtendedChannelNameDescriptor) {
-                    ExtendedChannelNameDescriptor extendedChannelNameDescriptor =
-                            (ExtendedChannelNameDescriptor) descriptor;
-                    longName = extendedChannelNameDescriptor.getLongChannelName();
-                    break;
-                }
-            }
+            // Only the extended channel name descriptor is decoded here.
+            ExtendedChannelNameDescriptor extendedChannelNameDescriptor =
+                    descriptors.getExtendedChannelNameDescriptor();
+            String longName =
+                    extendedChannelNameDescriptor != null
+                            ? extendedChannelNameDescriptor.getLongChannelName()
+                            : null;
             if (DEBUG) {
                 Log.d(
                         TAG,
@@ -939,7 +912,7 @@ public class SectionParser {
                                     == Channel.AtscServiceType
                                             .SERVICE_TYPE_UNASSOCIATED_SMALL_SCREEN_SERVICE_VALUE)) {
                 // Hide hidden, encrypted, or unsupported ATSC service type channels
-                results.add(
+                VctItem vctItem =
                         new VctItem(
                                 shortName,
                                 longName,
@@ -948,7 +921,8 @@ public class SectionParser {
                                 programNumber,
                                 majorNumber,
                                 minorNumber,
-                                sourceId));
+                                sourceId);
+                results.add(vctItem);
             }
         }
         // Skip the remaining descriptor part which we don't use.
@@ -1013,18 +987,19 @@ public class SectionParser {
                 Log.e(TAG, "Broken EIT.");
                 return false;
             }
-            List<TsDescriptor> descriptors =
+            DescriptorLoop descriptors =
                     parseDescriptors(data, descriptorsPos, descriptorsPos + descriptorsLength);
             if (DEBUG) {
                 Log.d(TAG, String.format("EIT descriptors size: %d", descriptors.size()));
             }
-            String contentRating = generateContentRating(descriptors);
+            String contentRating =
+                    generateContentRating(descriptors.getContentAdvisoryDescriptors());
             String broadcastGenre = generateBroadcastGenre(descriptors);
             String canonicalGenre = generateCanonicalGenre(descriptors);
             List<AtscAudioTrack> audioTracks = generateAudioTracks(descriptors); //List<AtscAudioTrack> audioTracks = generateAudioTracks(descriptors);
             List<AtscCaptionTrack> captionTracks = generateCaptionTracks(descriptors); //List<AtscCaptionTrack> captionTracks = generateCaptionTracks(descriptors);
             pos += 10 + titleLength + 2 + descriptorsLength;
-            results.add(
+            EitItem eitItem =
                     new EitItem(
                             EitItem.INVALID_PROGRAM_ID,
                             eventId,
@@ -1036,7 +1011,8 @@ public class SectionParser {
                             captionTracks,
                             broadcastGenre,
                             canonicalGenre,
-                            null));
+                            null);
+            results.add(eitItem);
         }
         if (mListener != null) {
             mListener.onEitParsed(sourceId, results);
@@ -1090,8 +1066,8 @@ public class SectionParser {
             int serviceId = ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
             int descriptorsLength = ((data[pos + 3] & 0x0f) << 8) | (data[pos + 4] & 0xff);
             pos += 5;
-            List<TsDescriptor> descriptors = parseDescriptors(data, pos, pos + descriptorsLength);
-            List<ServiceDescriptor> serviceDescriptors = generateServiceDescriptors(descriptors);
+            DescriptorLoop descriptors = parseDescriptors(data, pos, pos + descriptorsLength);
+            List<ServiceDescriptor> serviceDescriptors = descriptors.getServiceDescriptors();
             String serviceName = "";
             String serviceProviderName = "";
             int serviceType = 0;
@@ -1101,13 +1077,14 @@ public class SectionParser {
                 serviceType = serviceDescriptor.getServiceType();
             }
             if (serviceDescriptors.size() > 0) {
-                sdtItems.add(
+                SdtItem sdtItem =
                         new SdtItem(
                                 serviceName,
                                 serviceProviderName,
                                 serviceType,
                                 serviceId,
-                                originalNetworkId));
+                                originalNetworkId);
+                sdtItems.add(sdtItem);
             }
             pos += descriptorsLength;
         }
@@ -1169,14 +1146,15 @@ public class SectionParser {
                 Log.e(TAG, "Broken EIT.");
                 return false;
             }
-            List<TsDescriptor> descriptors =
+            DescriptorLoop descriptors =
                     parseDescriptors(data, descriptorsPos, descriptorsPos + descriptorsLength);
             if (DEBUG) {
                 Log.d(TAG, String.format("DVB EIT descriptors size: %d", descriptors.size()));
             }
             // TODO: Add logic to generating content rating for dvb. See DVB document 6.2.28 for
             // details. Content rating here will be null
-            String contentRating = generateContentRating(descriptors);
+            String contentRating =
+                    generateContentRating(descriptors.getContentAdvisoryDescriptors());
             // TODO: Add logic for generating genre for dvb. See DVB document 6.2.9 for details.
             // Genre here will be null here.
             String broadcastGenre = generateBroadcastGenre(descriptors);
@@ -1185,7 +1163,7 @@ public class SectionParser {
             List<AtscAudioTrack> audioTracks = generateAudioTracks(descriptors); //List<AtscAudioTrack> audioTracks = generateAudioTracks(descriptors);
             List<AtscCaptionTrack> captionTracks = generateCaptionTracks(descriptors); //List<AtscCaptionTrack> captionTracks = generateCaptionTracks(descriptors);
             pos += 12 + descriptorsLength;
-            results.add(
+            EitItem eitItem =
                     new EitItem(
                             EitItem.INVALID_PROGRAM_ID,
                             eventId,
@@ -1197,7 +1175,8 @@ public class SectionParser {
                             captionTracks,
                             broadcastGenre,
                             canonicalGenre,
-                            null));
+                            null);
+            results.add(eitItem);
         }
         if (mListener != null) {
             mListener.onEitParsed(sourceId, results);
@@ -1205,33 +1184,27 @@ public class SectionParser {
         return true;
     }
 
-    private static List<AtscAudioTrack> generateAudioTracks(List<TsDescriptor> descriptors) { //List<AtscAudioTrack> generateAudioTracks(List<TsDescriptor> descriptors)
+    private static List<AtscAudioTrack> generateAudioTracks(DescriptorLoop descriptors) { //List<AtscAudioTrack> generateAudioTracks(List<TsDescriptor> descriptors)
         // The list of audio tracks sent is located at both AC3 Audio descriptor and ISO 639
         // Language descriptor.
         List<AtscAudioTrack> ac3Tracks = new ArrayList<>(); //List<AtscAudioTrack> ac3Tracks = new ArrayList<>();
         List<AtscAudioTrack> iso639LanguageTracks = new ArrayList<>(); //List<AtscAudioTrack> iso639LanguageTracks = new ArrayList<>();
-        for (TsDescriptor descriptor : descriptors) {
-            if (descriptor instanceof Ac3AudioDescriptor) {
-                Ac3AudioDescriptor audioDescriptor = (Ac3AudioDescriptor) descriptor;
-                AtscAudioTrack.Builder audioTrack = AtscAudioTrack.newBuilder(); //AtscAudioTrack audioTrack = new AtscAudioTrack();
-                if (audioDescriptor.getLanguage() != null) {
-                    audioTrack.setLanguage(audioDescriptor.getLanguage()); //audioTrack.language = audioDescriptor.getLanguage();
-                }
-                if (audioTrack.getLanguage() == null) { //audioTrack.language == null
-                    audioTrack.setLanguage(""); //audioTrack.language = "";
-                }
-                audioTrack.setAudioType(AtscAudioTrack.AudioType.AUDIOTYPE_UNDEFINED); //audioTrack.audioType = AtscAudioTrack.AudioType.AUDIOTYPE_UNDEFINED;
-                audioTrack.setChannelCount(audioDescriptor.getNumChannels()); //audioTrack.channelCount = audioDescriptor.getNumChannels();
-                audioTrack.setSampleRate(audioDescriptor.getSampleRate()); //audioTrack.sampleRate = audioDescriptor.getSampleRate();
-                ac3Tracks.add(audioTrack.build());
+        for (Ac3AudioDescriptor audioDescriptor : descriptors.getAc3AudioDescriptors()) {
+            AtscAudioTrack.Builder audioTrack = AtscAudioTrack.newBuilder(); //AtscAudioTrack audioTrack = new AtscAudioTrack();
+            if (audioDescriptor.getLanguage() != null) {
+                audioTrack.setLanguage(audioDescriptor.getLanguage()); //audioTrack.language = audioDescriptor.getLanguage();
             }
-        }
-        for (TsDescriptor descriptor : descriptors) {
-            if (descriptor instanceof Iso639LanguageDescriptor) {
-                Iso639LanguageDescriptor iso639LanguageDescriptor =
-                        (Iso639LanguageDescriptor) descriptor;
-                iso639LanguageTracks.addAll(iso639LanguageDescriptor.getAudioTracks());
+            if (audioTrack.getLanguage() == null) { //audioTrack.language == null
+                audioTrack.setLanguage(""); //audioTrack.language = "";
             }
+            audioTrack.setAudioType(AtscAudioTrack.AudioType.AUDIOTYPE_UNDEFINED); //audioTrack.audioType = AtscAudioTrack.AudioType.AUDIOTYPE_UNDEFINED;
+            audioTrack.setChannelCount(audioDescriptor.getNumChannels()); //audioTrack.channelCount = audioDescriptor.getNumChannels();
+            audioTrack.setSampleRate(audioDescriptor.getSampleRate()); //audioTrack.sampleRate = audioDescriptor.getSampleRate();
+            ac3Tracks.add(audioTrack.build());
+        }
+        for (Iso639LanguageDescriptor iso639LanguageDescriptor :
+                descriptors.getIso639LanguageDescriptors()) {
+            iso639LanguageTracks.addAll(iso639LanguageDescriptor.getAudioTracks());
         }
 
         // An AC3 audio stream descriptor only has a audio channel count and a audio sample rate
@@ -1279,20 +1252,17 @@ public class SectionParser {
         return tracks;
     }
 
-    private static List<AtscCaptionTrack> generateCaptionTracks(List<TsDescriptor> descriptors) {
+    private static List<AtscCaptionTrack> generateCaptionTracks(DescriptorLoop descriptors) {
         List<AtscCaptionTrack> services = new ArrayList<>();
-        for (TsDescriptor descriptor : descriptors) {
-            if (descriptor instanceof CaptionServiceDescriptor) {
-                CaptionServiceDescriptor captionServiceDescriptor =
-                        (CaptionServiceDescriptor) descriptor;
-                services.addAll(captionServiceDescriptor.getCaptionTracks());
-            }
+        for (CaptionServiceDescriptor captionServiceDescriptor :
+                descriptors.getCaptionServiceDescriptors()) {
+            services.addAll(captionServiceDescriptor.getCaptionTracks());
         }
         return services;
     }
 
     @VisibleForTesting
-    static String generateContentRating(List<TsDescriptor> descriptors) {
+    static String generateContentRating(List<? extends TsDescriptor> descriptors) {
         Set<String> contentRatings = new ArraySet<>();
         List<RatingRegion> usRatingRegions = getRatingRegions(descriptors, RATING_REGION_US_TV);
         List<RatingRegion> krRatingRegions = getRatingRegions(descriptors, RATING_REGION_KR_TV);
@@ -1318,7 +1288,8 @@ public class SectionParser {
      * @param region the specific region
      * @return a list of {@link RatingRegion} in the specific region
      */
-    private static List<RatingRegion> getRatingRegions(List<TsDescriptor> descriptors, int region) {
+    private static List<RatingRegion> getRatingRegions(
+            List<? extends TsDescriptor> descriptors, int region) {
         List<RatingRegion> ratingRegions = new ArrayList<>();
         for (TsDescriptor descriptor : descriptors) {
             if (!(descriptor instanceof ContentAdvisoryDescriptor)) {
@@ -1466,120 +1437,89 @@ public class SectionParser {
                 .flattenToString();
     }
 
-    private static String generateBroadcastGenre(List<TsDescriptor> descriptors) {
-        for (TsDescriptor descriptor : descriptors) {
-            if (descriptor instanceof GenreDescriptor) {
-                GenreDescriptor genreDescriptor = (GenreDescriptor) descriptor;
-                return TextUtils.join(",", genreDescriptor.getBroadcastGenres());
-            }
-        }
-        return null;
+    private static String generateBroadcastGenre(DescriptorLoop descriptors) {
+        GenreDescriptor genreDescriptor = descriptors.getGenreDescriptor();
+        return genreDescriptor != null
+                ? TextUtils.join(",", genreDescriptor.getBroadcastGenres())
+                : null;
     }
 
-    private static String generateCanonicalGenre(List<TsDescriptor> descriptors) {
-        for (TsDescriptor descriptor : descriptors) {
-            if (descriptor instanceof GenreDescriptor) {
-                GenreDescriptor genreDescriptor = (GenreDescriptor) descriptor;
-                return Genres.encode(genreDescriptor.getCanonicalGenres());
-            }
-        }
-        return null;
+    private static String generateCanonicalGenre(DescriptorLoop descriptors) {
+        GenreDescriptor genreDescriptor = descriptors.getGenreDescriptor();
+        return genreDescriptor != null ? Genres.encode(genreDescriptor.getCanonicalGenres()) : null;
     }
 
-    private static List<ServiceDescriptor> generateServiceDescriptors(
-            List<TsDescriptor> descriptors) {
-        List<ServiceDescriptor> serviceDescriptors = new ArrayList<>();
-        for (TsDescriptor descriptor : descriptors) {
-            if (descriptor instanceof ServiceDescriptor) {
-                ServiceDescriptor serviceDescriptor = (ServiceDescriptor) descriptor;
-                serviceDescriptors.add(serviceDescriptor);
-            }
-        }
-        return serviceDescriptors;
+    private static String generateShortEventName(DescriptorLoop descriptors) {
+        ShortEventDescriptor shortEventDescriptor = descriptors.getShortEventDescriptor();
+        return shortEventDescriptor != null ? shortEventDescriptor.getEventName() : "";
     }
 
-    private static String generateShortEventName(List<TsDescriptor> descriptors) {
-        for (TsDescriptor descriptor : descriptors) {
-            if (descriptor instanceof ShortEventDescriptor) {
-                ShortEventDescriptor shortEventDescriptor = (ShortEventDescriptor) descriptor;
-                return shortEventDescriptor.getEventName();
-            }
-        }
-        return "";
+    private static DescriptorLoop parseDescriptors(byte[] data, int offset, int limit) {
+        return new DescriptorLoop(data, offset, limit);
     }
 
-    private static List<TsDescriptor> parseDescriptors(byte[] data, int offset, int limit) {
-        // For details of the structure for descriptors, see ATSC A/65 Section 6.9.
-        List<TsDescriptor> descriptors = new ArrayList<>();
-        if (data.length < limit) {
-            return descriptors;
+    /**
+     * Decodes a descriptor. Called by {@link DescriptorLoop} when the descriptor is accessed.
+     *
+     * @param data the section which holds the descriptor
+     * @param pos the offset of the descriptor tag
+     * @param limit the offset where the descriptor ends
+     * @return the decoded descriptor, or {@code null} if it is unsupported or broken
+     */
+    @Nullable
+    static TsDescriptor parseDescriptor(byte[] data, int pos, int limit) {
+        int tag = data[pos] & 0xff;
+        if (DEBUG) {
+            Log.d(TAG, String.format("Descriptor tag: %02x", tag));
         }
-        int pos = offset;
-        while (pos + 1 < limit) {
-            int tag = data[pos] & 0xff;
-            int length = data[pos + 1] & 0xff;
-            if (length <= 0) {
+        TsDescriptor descriptor = null;
+        switch (tag) {
+            case DESCRIPTOR_TAG_CONTENT_ADVISORY:
+                descriptor = parseContentAdvisory(data, pos, limit);
                 break;
-            }
-            if (limit < pos + length + 2) {
-                break;
-            }
-            if (DEBUG) {
-                Log.d(TAG, String.format("Descriptor tag: %02x", tag));
-            }
-            TsDescriptor descriptor = null;
-            switch (tag) {
-                case DESCRIPTOR_TAG_CONTENT_ADVISORY:
-                    descriptor = parseContentAdvisory(data, pos, pos + length + 2);
-                    break;
 
-                case DESCRIPTOR_TAG_CAPTION_SERVICE:
-                    descriptor = parseCaptionService(data, pos, pos + length + 2);
-                    break;
+            case DESCRIPTOR_TAG_CAPTION_SERVICE:
+                descriptor = parseCaptionService(data, pos, limit);
+                break;
 
-                case DESCRIPTOR_TAG_EXTENDED_CHANNEL_NAME:
-                    descriptor = parseLongChannelName(data, pos, pos + length + 2);
-                    break;
+            case DESCRIPTOR_TAG_EXTENDED_CHANNEL_NAME:
+                descriptor = parseLongChannelName(data, pos, limit);
+                break;
 
-                case DESCRIPTOR_TAG_GENRE:
-                    descriptor = parseGenre(data, pos, pos + length + 2);
-                    break;
+            case DESCRIPTOR_TAG_GENRE:
+                descriptor = parseGenre(data, pos, limit);
+                break;
 
-                case DESCRIPTOR_TAG_AC3_AUDIO_STREAM:
-                    descriptor = parseAc3AudioStream(data, pos, pos + length + 2);
-                    break;
+            case DESCRIPTOR_TAG_AC3_AUDIO_STREAM:
+                descriptor = parseAc3AudioStream(data, pos, limit);
+                break;
 
-                case DESCRIPTOR_TAG_ISO639LANGUAGE:
-                    descriptor = parseIso639Language(data, pos, pos + length + 2);
-                    break;
+            case DESCRIPTOR_TAG_ISO639LANGUAGE:
+                descriptor = parseIso639Language(data, pos, limit);
+                break;
 
-                case DVB_DESCRIPTOR_TAG_SERVICE:
-                    descriptor = parseDvbService(data, pos, pos + length + 2);
-                    break;
+            case DVB_DESCRIPTOR_TAG_SERVICE:
+                descriptor = parseDvbService(data, pos, limit);
+                break;
 
-                case DVB_DESCRIPTOR_TAG_SHORT_EVENT:
-                    descriptor = parseDvbShortEvent(data, pos, pos + length + 2);
-                    break;
+            case DVB_DESCRIPTOR_TAG_SHORT_EVENT:
+                descriptor = parseDvbShortEvent(data, pos, limit);
+                break;
 
-                case DVB_DESCRIPTOR_TAG_CONTENT:
-                    descriptor = parseDvbContent(data, pos, pos + length + 2);
-                    break;
+            case DVB_DESCRIPTOR_TAG_CONTENT:
+                descriptor = parseDvbContent(data, pos, limit);
+                break;
 
-                case DVB_DESCRIPTOR_TAG_PARENTAL_RATING:
-                    descriptor = parseDvbParentalRating(data, pos, pos + length + 2);
-                    break;
+            case DVB_DESCRIPTOR_TAG_PARENTAL_RATING:
+                descriptor = parseDvbParentalRating(data, pos, limit);
+                break;
 
-                default:
-            }
-            if (descriptor != null) {
-                if (DEBUG) {
-                    Log.d(TAG, "Descriptor parsed: " + descriptor);
-                }
-                descriptors.add(descriptor);
-            }
-            pos += length + 2;
+            default:
+        }
+        if (DEBUG && descriptor != null) {
+            Log.d(TAG, "Descriptor parsed: " + descriptor);
         }
-        return descriptors;
+        return descriptor;
     }
 
     private static Iso639LanguageDescriptor parseIso639Language(byte[] data, int pos, int limit) {
@@ -1933,7 +1873,8 @@ public class SectionParser {
             Log.e(TAG, "Broken short event descriptor.");
             return null;
         }
-        String eventName = new String(data, pos, eventNameLength);
+        String eventName =
+                sTextDecodeCache.decode(data, pos, eventNameLength, Charset.defaultCharset());
         pos += eventNameLength;
         int textLength = data[pos] & 0xff;
         if (pos + textLength > limit) {
@@ -1941,7 +1882,7 @@ public class SectionParser {
             return null;
         }
         pos++;
-        String text = new String(data, pos, textLength);
+        String text = sTextDecodeCache.decode(data, pos, textLength, Charset.defaultCharset());
         return new ShortEventDescriptor(language, eventName, text);
     }
 
@@ -1977,7 +1918,8 @@ public class SectionParser {
         return MAX_SHORT_NAME_BYTES;
     }
 
-    private static String extractText(byte[] data, int pos) {
+    @VisibleForTesting
+    static String extractText(byte[] data, int pos) {
         if (data.length < pos) {
             return null;
         }
@@ -2005,16 +1947,19 @@ public class SectionParser {
                 if (compressionType == COMPRESSION_TYPE_NO_COMPRESSION) {
                     switch (mode) {
                         case MODE_SELECTED_UNICODE_RANGE_1:
-                            return new String(data, pos + 3, numBytes, StandardCharsets.ISO_8859_1);
+                            return sTextDecodeCache.decode(
+                                    data, pos + 3, numBytes, StandardCharsets.ISO_8859_1);
                         case MODE_SCSU:
                             if (SCSU_CHARSET != null) {
-                                return new String(data, pos + 3, numBytes, SCSU_CHARSET);
+                                return sTextDecodeCache.decode(
+                                        data, pos + 3, numBytes, SCSU_CHARSET);
                             } else {
                                 Log.w(TAG, "SCSU not supported");
                                 return null;
                             }
                         case MODE_UTF16:
-                            return new String(data, pos + 3, numBytes, StandardCharsets.UTF_16);
+                            return sTextDecodeCache.decode(
+                                    data, pos + 3, numBytes, StandardCharsets.UTF_16);
                         default:
                             Log.w(TAG, "Unsupported text mode " + mode);
                             return null;
@@ -2026,67 +1971,77 @@ public class SectionParser {
         return null;
     }
 
-    private static String extractTextFromDvb(byte[] data, int pos, int length) {
+    @VisibleForTesting
+    static String extractTextFromDvb(byte[] data, int pos, int length) {
         // For details of DVB character set selection, see DVB Document A038 Annex A.
         if (data.length < pos + length) {
             return null;
         }
+        String charsetPrefix = "ISO-8859-";
+        String charsetName;
+        switch (data[0]) {
+            case 0x01:
+            case 0x02:
+            case 0x03:
+            case 0x04:
+            case 0x05:
+            case 0x06:
+            case 0x07:
+            case 0x09:
+            case 0x0A:
+            case 0x0B:
+                charsetName = charsetPrefix + String.valueOf(data[0] & 0xff + 4);
+                break;
+            case 0x10:
+                if (length < 3) {
+                    Log.e(TAG, "Broken DVB text");
+                    return null;
+                }
+                int codeTable = data[pos + 2] & 0xff;
+                if (data[pos + 1] == 0 && codeTable > 0 && codeTable < 15) {
+                    charsetName = charsetPrefix + String.valueOf(codeTable);
+                } else {
+                    charsetName = "ISO-8859-1";
+                }
+                break;
+            case 0x11:
+            case 0x14:
+            case 0x15:
+                charsetName = "UTF-16BE";
+                break;
+            case 0x12:
+                charsetName = "EUC-KR";
+                break;
+            case 0x13:
+                charsetName = "GB2312";
+                break;
+            default:
+                charsetName = "ISO-8859-1";
+                break;
+        }
+        Charset charset;
         try {
-            String charsetPrefix = "ISO-8859-";
-            switch (data[0]) {
-                case 0x01:
-                case 0x02:
-                case 0x03:
-                case 0x04:
-                case 0x05:
-                case 0x06:
-                case 0x07:
-                case 0x09:
-                case 0x0A:
-                case 0x0B:
-                    String charset = charsetPrefix + String.valueOf(data[0] & 0xff + 4);
-                    return new String(data, pos, length, charset);
-                case 0x10:
-                    if (length < 3) {
-                        Log.e(TAG, "Broken DVB text");
-                        return null;
-                    }
-                    int codeTable = data[pos + 2] & 0xff;
-                    if (data[pos + 1] == 0 && codeTable > 0 && codeTable < 15) {
-                        return new String(
-                                data, pos, length, charsetPrefix + String.valueOf(codeTable));
-                    } else {
-                        return new String(data, pos, length, "ISO-8859-1");
-                    }
-                case 0x11:
-                case 0x14:
-                case 0x15:
-                    return new String(data, pos, length, "UTF-16BE");
-                case 0x12:
-                    return new String(data, pos, length, "EUC-KR");
-                case 0x13:
-                    return new String(data, pos, length, "GB2312");
-                default:
-                    return new String(data, pos, length, "ISO-8859-1");
-            }
-        } catch (UnsupportedEncodingException e) {
+            charset = Charset.forName(charsetName);
+        } catch (IllegalArgumentException e) {
+            // Thrown for an illegal or unsupported charset name.
             Log.e(TAG, "Unsupported text format.", e);
+            charset = Charset.defaultCharset();
         }
-        return new String(data, pos, length);
+        return sTextDecodeCache.decode(data, pos, length, charset);
     }
 
-    private static boolean checkSanity(byte[] data) {
+    /** Returns the cache of the texts decoded by the parsers, e.g. to report its hit rate. */
+    public static TextDecodeCache getTextDecodeCache() {
+        return sTextDecodeCache;
+    }
+
+    private boolean checkSanity(byte[] data) {
         if (data.length <= 1) {
             return false;
         }
         boolean hasCRC = (data[1] & 0x80) != 0; // section_syntax_indicator
         if (hasCRC) {
-            int crc = 0xffffffff;
-            for (byte b : data) {
-                int index = ((crc >> 24) ^ (b & 0xff)) & 0xff;
-                crc = CRC_TABLE[index] ^ (crc << 8);
-            }
-            if (crc != 0) {
+            if (mSectionCrc.compute(data, 0, data.length) != 0) {
                 return false;
             }
         }
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * A bounded cache of decoded texts, which returns the same {@link String} instance for the same
+ * encoded bytes and charset. The texts of PSIP and DVB SI tables, such as event titles and
+ * descriptions, are repeated every cycle, so most of them can be served from this cache without
+ * decoding or allocating.
+ *
+ * <p>The cache is direct-mapped: an entry is placed by the hash of its bytes and charset, and it
+ * replaces the entry which was placed there before. This class is thread-safe.
+ */
+public final class TextDecodeCache {
+    // Longer texts are decoded every time, so that a few of them cannot hold much memory.
+    private static final int MAX_CACHED_BYTES = 1024;
+
+    private final Entry[] mEntries;
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+
+    private static class Entry {
+        private final int mHash;
+        private final Charset mCharset;
+        private final byte[] mBytes;
+        private final String mText;
+
+        private Entry(int hash, Charset charset, byte[] bytes, String text) {
+            mHash = hash;
+            mCharset = charset;
+            mBytes = bytes;
+            mText = text;
+        }
+    }
+
+    /**
+     * Creates a cache.
+     *
+     * @param capacity the maximum number of texts to keep, which is rounded up to a power of two
+     */
+    public TextDecodeCache(int capacity) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        mEntries = new Entry[size];
+    }
+
+    /**
+     * Decodes the given bytes, or returns the text decoded before from the same bytes and charset.
+     *
+     * @param data the buffer which holds the encoded text
+     * @param offset the offset where the encoded text starts
+     * @param length the length of the encoded text
+     * @param charset the charset of the encoded text
+     * @return the decoded text
+     */
+    public synchronized String decode(byte[] data, int offset, int length, Charset charset) {
+        if (length > MAX_CACHED_BYTES) {
+            mMissCount++;
+            return new String(data, offset, length, charset);
+        }
+        int hash = hash(data, offset, length, charset);
+        int index = hash & (mEntries.length - 1);
+        Entry entry = mEntries[index];
+        if (entry != null
+                && entry.mHash == hash
+                && entry.mCharset.equals(charset)
+                && matches(entry.mBytes, data, offset, length)) {
+            mHitCount++;
+            return entry.mText;
+        }
+        mMissCount++;
+        if (entry != null) {
+            mEvictionCount++;
+        }
+        String text = new String(data, offset, length, charset);
+        mEntries[index] =
+                new Entry(hash, charset, Arrays.copyOfRange(data, offset, offset + length), text);
+        return text;
+    }
+
+    /** Removes all the cached texts. The statistics are kept. */
+    public synchronized void clear() {
+        Arrays.fill(mEntries, null);
+    }
+
+    /** Returns the ratio of the decode requests which were served from the cache. */
+    public synchronized double getHitRate() {
+        long requestCount = mHitCount + mMissCount;
+        return requestCount > 0 ? (double) mHitCount / requestCount : 0;
+    }
+
+    /** Returns the hit-rate statistics, which help to tune the capacity. */
+    public synchronized String getStats() {
+        return String.format(
+                Locale.US,
+                "TextDecodeCache capacity: %d, hits: %d, misses: %d, evictions: %d, "
+                        + "hit rate: %.1f%%",
+                mEntries.length,
+                mHitCount,
+                mMissCount,
+                mEvictionCount,
+                getHitRate() * 100);
+    }
+
+    private static int hash(byte[] data, int offset, int length, Charset charset) {
+        int hash = charset.hashCode();
+        for (int i = offset, limit = offset + length; i < limit; ++i) {
+            hash = 31 * hash + data[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean matches(byte[] bytes, byte[] data, int offset, int length) {
+        if (bytes.length != length) {
+            return false;
+        }
+        for (int i = 0; i < length; ++i) {
+            if (bytes[i] != data[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
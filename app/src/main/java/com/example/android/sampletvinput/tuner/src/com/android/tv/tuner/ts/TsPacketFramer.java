@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts;
+
+import android.util.Log;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.util.ByteArrayBuffer;
+
+/**
+ * Splits an arbitrary MPEG-2 TS byte stream into 188-byte TS packets.
+ *
+ * <p>The framer searches for sync bytes, locks onto the packet stride once several consecutive
+ * sync bytes are found, and searches again whenever a sync byte is missing. Besides plain 188-byte
+ * packets, 192-byte M2TS packets (a 4-byte timestamp before each packet) and 204-byte packets
+ * (16 Reed-Solomon bytes after each packet) are accepted. Packets which are complete in the fed
+ * buffer are passed to the listener without being copied; only a packet which spans two feeds is
+ * assembled in an internal buffer.
+ */
+public class TsPacketFramer {
+    private static final String TAG = "TsPacketFramer";
+    private static final boolean DEBUG = false;
+
+    public static final int TS_PACKET_SIZE = 188;
+    public static final int M2TS_PACKET_SIZE = 192;
+    public static final int RS_PACKET_SIZE = 204;
+    private static final int[] PACKET_SIZES = {TS_PACKET_SIZE, M2TS_PACKET_SIZE, RS_PACKET_SIZE};
+
+    private static final int TS_PACKET_START_CODE = 0x47;
+    private static final int INVALID_PACKET_SIZE = 0;
+
+    // The number of consecutive sync bytes which should be found before locking onto a stride.
+    private static final int SYNC_LOCK_PACKET_COUNT = 3;
+    private static final int MAX_LOOKAHEAD = (SYNC_LOCK_PACKET_COUNT - 1) * RS_PACKET_SIZE + 1;
+
+    /** Receives the TS packets found by the framer. */
+    public interface PacketListener {
+        /**
+         * Called for each TS packet. The packet is a view of a buffer which is only valid until
+         * this method returns.
+         *
+         * @param data the buffer which holds the packet
+         * @param offset the offset of the sync byte of the packet
+         */
+        void onPacket(byte[] data, int offset);
+    }
+
+    private final PacketListener mListener;
+    private final ByteArrayBuffer mPending = new ByteArrayBuffer(MAX_LOOKAHEAD * 3);
+    private int mPacketSize = INVALID_PACKET_SIZE;
+    private long mPacketCount;
+    private long mSyncLossCount;
+    private long mSkippedByteCount;
+
+    public TsPacketFramer(PacketListener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Feeds TS data. The data does not need to start on a packet boundary, and a packet may be
+     * split across consecutive calls.
+     *
+     * @param data buffer for TS stream
+     * @param offset the offset where the data starts
+     * @param length the length of available data
+     */
+    public void feed(byte[] data, int offset, int length) {
+        int end = offset + length;
+        while (mPending.length() > 0 && offset < end) {
+            // Completes the data left from the previous feed with the head of the given data.
+            int pendingLength = mPending.length();
+            int amount =
+                    Math.min(
+                            end - offset,
+                            mPacketSize != INVALID_PACKET_SIZE
+                                    ? mPacketSize - pendingLength
+                                    : MAX_LOOKAHEAD * 2);
+            mPending.append(data, offset, amount);
+            int stopPos = process(mPending.buffer(), 0, mPending.length());
+            if (stopPos >= pendingLength) {
+                // The rest can be processed from the given data directly.
+                mPending.setLength(0);
+                offset += stopPos - pendingLength;
+            } else {
+                mPending.consume(stopPos);
+                offset += amount;
+            }
+        }
+        if (offset < end) {
+            int stopPos = process(data, offset, end);
+            if (stopPos < end) {
+                mPending.append(data, stopPos, end - stopPos);
+            }
+        }
+    }
+
+    /** Drops the buffered data and the lock, e.g. when the stream is restarted. */
+    public void reset() {
+        mPending.setLength(0);
+        mPacketSize = INVALID_PACKET_SIZE;
+    }
+
+    /** Returns the packet size which is locked onto, or {@code 0} if the framer is not locked. */
+    public int getPacketSize() {
+        return mPacketSize;
+    }
+
+    /** Returns the number of TS packets passed to the listener. */
+    public long getPacketCount() {
+        return mPacketCount;
+    }
+
+    /** Returns how many times the framer lost the sync after having locked onto a stride. */
+    public long getSyncLossCount() {
+        return mSyncLossCount;
+    }
+
+    /** Returns the number of bytes which were skipped while searching for sync bytes. */
+    public long getSkippedByteCount() {
+        return mSkippedByteCount;
+    }
+
+    /** Returns the position from which more data is needed. */
+    private int process(byte[] data, int pos, int end) {
+        while (pos < end) {
+            if (mPacketSize == INVALID_PACKET_SIZE) {
+                int syncPos = findSync(data, pos, end);
+                mSkippedByteCount += syncPos - pos;
+                pos = syncPos;
+                if (mPacketSize == INVALID_PACKET_SIZE) {
+                    return pos;
+                }
+            }
+            if (pos + mPacketSize > end) {
+                return pos;
+            }
+            if (data[pos] != TS_PACKET_START_CODE) {
+                if (DEBUG) Log.d(TAG, "Sync lost with packet size " + mPacketSize);
+                mSyncLossCount++;
+                mPacketSize = INVALID_PACKET_SIZE;
+                continue;
+            }
+            mPacketCount++;
+            mListener.onPacket(data, pos);
+            pos += mPacketSize;
+        }
+        return pos;
+    }
+
+    /**
+     * Finds the first position where the stride of sync bytes can be confirmed, and locks onto the
+     * stride. Returns the position where the search stopped.
+     */
+    private int findSync(byte[] data, int pos, int end) {
+        for (; pos < end; ++pos) {
+            if (data[pos] != TS_PACKET_START_CODE) {
+                continue;
+            }
+            for (int packetSize : PACKET_SIZES) {
+                if (pos + (SYNC_LOCK_PACKET_COUNT - 1) * packetSize >= end) {
+                    // Wait for more data before deciding.
+                    return pos;
+                }
+                if (hasSyncStride(data, pos, packetSize)) {
+                    if (DEBUG) Log.d(TAG, "Locked with packet size " + packetSize);
+                    mPacketSize = packetSize;
+                    return pos;
+                }
+            }
+        }
+        return pos;
+    }
+
+    private static boolean hasSyncStride(byte[] data, int pos, int packetSize) {
+        for (int i = 1; i < SYNC_LOCK_PACKET_COUNT; ++i) {
+            if (data[pos + i * packetSize] != TS_PACKET_START_CODE) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -29,12 +29,10 @@ import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.Psi
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.TunerChannel;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts.SectionParser.OutputListener;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.util.ByteArrayBuffer;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.util.IntObjectHashMap;
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.BitSet;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeSet;
 
 /** Parses MPEG-2 TS packets. */
 public class TsParser {
@@ -48,6 +46,7 @@ public class TsParser {
     private static final int TS_PACKET_START_CODE = 0x47;
     private static final int TS_PACKET_TEI_MASK = 0x80;
     private static final int TS_PACKET_SIZE = 188;
+    private static final int NUM_PIDS = 0x2000;
 
     /*
      * Using a SparseArray removes the need to auto box the int key for mStreamMap
@@ -56,22 +55,33 @@ public class TsParser {
      * Other maps might be suitable for a SparseArray, but the performance
      * trade offs must be considered carefully.
      * mStreamMap is the only one called at such a high rate.
+     *
+     * The PSIP state tables below are keyed by primitive ints (source ids and program numbers), and
+     * the events are kept in an EventStore keyed by source ids and event ids, so that the lookups
+     * made for every parsed section neither box the keys nor allocate key objects.
      */
     private final SparseArray<Stream> mStreamMap = new SparseArray<>();
-    private final Map<Integer, VctItem> mSourceIdToVctItemMap = new HashMap<>();
-    private final Map<Integer, String> mSourceIdToVctItemDescriptionMap = new HashMap<>();
-    private final Map<Integer, VctItem> mProgramNumberToVctItemMap = new HashMap<>();
-    private final Map<Integer, List<PmtItem>> mProgramNumberToPMTMap = new HashMap<>();
-    private final Map<Integer, List<EitItem>> mSourceIdToEitMap = new HashMap<>();
-    private final Map<Integer, SdtItem> mProgramNumberToSdtItemMap = new HashMap<>();
-    private final Map<EventSourceEntry, List<EitItem>> mEitMap = new HashMap<>();
-    private final Map<EventSourceEntry, List<EttItem>> mETTMap = new HashMap<>();
-    private final TreeSet<Integer> mEITPids = new TreeSet<>();
-    private final TreeSet<Integer> mETTPids = new TreeSet<>();
+    private final IntObjectHashMap<VctItem> mSourceIdToVctItemMap = new IntObjectHashMap<>();
+    private final IntObjectHashMap<String> mSourceIdToVctItemDescriptionMap =
+            new IntObjectHashMap<>();
+    private final IntObjectHashMap<VctItem> mProgramNumberToVctItemMap = new IntObjectHashMap<>();
+    private final IntObjectHashMap<List<PmtItem>> mProgramNumberToPMTMap =
+            new IntObjectHashMap<>();
+    private final IntObjectHashMap<SdtItem> mProgramNumberToSdtItemMap = new IntObjectHashMap<>();
+    private final BitSet mEITPids = new BitSet(NUM_PIDS);
+    private final EventStore mEventStore = new EventStore(mEITPids);
     private final SparseBooleanArray mProgramNumberHandledStatus = new SparseBooleanArray();
     private final SparseBooleanArray mVctItemHandledStatus = new SparseBooleanArray();
     private final TsOutputListener mListener;
     private final boolean mIsDvbSignal;
+    private final TsPacketFramer mPacketFramer =
+            new TsPacketFramer(
+                    new TsPacketFramer.PacketListener() {
+                        @Override
+                        public void onPacket(byte[] data, int offset) {
+                            feedTSPacket(data, offset);
+                        }
+                    });
 
     private int mVctItemCount;
     private int mHandledVctItemCount;
@@ -85,7 +95,15 @@ public class TsParser {
 
         void onVctItemParsed(VctItem channel, List<PmtItem> pmtItems);
 
-        void onEitItemParsed(VctItem channel, List<EitItem> items);
+        /**
+         * Called when events of a channel are added, changed or removed by EIT or ETT items.
+         *
+         * @param channel the channel of the events
+         * @param changedItems the events added or changed since the last call for the channel,
+         *     which is empty if events were only removed
+         * @param items all the current events of the channel
+         */
+        void onEitItemsChanged(VctItem channel, List<EitItem> changedItems, List<EitItem> items);
 
         void onEttPidDetected(int pid);
 
@@ -101,17 +119,32 @@ public class TsParser {
         protected int mContinuityCounter = INVALID_CONTINUITY_COUNTER;
         protected final ByteArrayBuffer mPacket = new ByteArrayBuffer(TS_PACKET_SIZE);
 
-        public void feedData(byte[] data, int continuityCounter, boolean startIndicator) {
+        /**
+         * Feeds the payload of a TS packet. The payload is a view of the caller's buffer, so it
+         * is only valid until this method returns.
+         */
+        public void feedData(
+                byte[] data,
+                int offset,
+                int length,
+                int continuityCounter,
+                boolean startIndicator) {
             if ((mContinuityCounter + 1) % NUM_CONTINUITY_COUNTER != continuityCounter) {
                 mPacket.setLength(0);
             }
             mContinuityCounter = continuityCounter;
-            handleData(data, startIndicator);
+            handleData(data, offset, length, startIndicator);
         }
 
-        protected abstract void handleData(byte[] data, boolean startIndicator);
+        protected abstract void handleData(
+                byte[] data, int offset, int length, boolean startIndicator);
 
         protected abstract void resetDataVersions();
+
+        /** Returns the approximate number of bytes held by the buffers of this stream. */
+        protected long getBufferSizeInBytes() {
+            return mPacket.capacity();
+        }
     }
 
     private class SectionStream extends Stream {
@@ -124,11 +157,11 @@ public class TsParser {
         }
 
         @Override
-        protected void handleData(byte[] data, boolean startIndicator) {
+        protected void handleData(byte[] data, int offset, int length, boolean startIndicator) {
             int startPos = 0;
             if (mPacket.length() == 0) {
                 if (startIndicator) {
-                    startPos = (data[0] & 0xff) + 1;
+                    startPos = (data[offset] & 0xff) + 1;
                 } else {
                     // Don't know where the section starts yet. Wait until start indicator is on.
                     return;
@@ -140,12 +173,29 @@ public class TsParser {
             }
 
             // When a broken packet is encountered, parsing will stop and return right away.
-            if (startPos >= data.length) {
+            if (startPos >= length) {
                 mPacket.setLength(0);
                 return;
             }
-            mPacket.append(data, startPos, data.length - startPos);
-            mSectionParser.parseSections(mPacket);
+            if (mPacket.length() == 0) {
+                // Parse the sections which fit in this packet directly from the caller's buffer,
+                // and keep only a section spanning the following packets.
+                int pos = offset + startPos;
+                int remaining = length - startPos;
+                int consumed = mSectionParser.parseSections(data, pos, remaining);
+                if (consumed >= 0 && consumed < remaining) {
+                    mPacket.append(data, pos + consumed, remaining - consumed);
+                }
+                return;
+            }
+            mPacket.append(data, offset + startPos, length - startPos);
+            int consumed = mSectionParser.parseSections(mPacket.buffer(), 0, mPacket.length());
+            if (consumed < 0) {
+                // Clear stuffing bytes according to H222.0 section 2.4.4.
+                mPacket.setLength(0);
+            } else {
+                mPacket.consume(consumed);
+            }
         }
 
         @Override
@@ -153,6 +203,11 @@ public class TsParser {
             mSectionParser.resetVersionNumbers();
         }
 
+        @Override
+        protected long getBufferSizeInBytes() {
+            return super.getBufferSizeInBytes() + mSectionParser.getVersionTableSizeInBytes();
+        }
+
         private final OutputListener mSectionListener =
                 new OutputListener() {
                     @Override
@@ -212,7 +267,7 @@ public class TsParser {
                             if (i.getTableType() >= MgtItem.TABLE_TYPE_EIT_RANGE_START
                                     && i.getTableType() <= MgtItem.TABLE_TYPE_EIT_RANGE_END) {
                                 startListening(i.getTableTypePid());
-                                mEITPids.add(i.getTableTypePid());
+                                mEITPids.set(i.getTableTypePid());
                                 if (mListener != null) {
                                     mListener.onEitPidDetected(i.getTableTypePid());
                                 }
@@ -221,7 +276,6 @@ public class TsParser {
                                             && i.getTableType()
                                                     <= MgtItem.TABLE_TYPE_ETT_RANGE_END)) {
                                 startListening(i.getTableTypePid());
-                                mETTPids.add(i.getTableTypePid());
                                 if (mListener != null) {
                                     mListener.onEttPidDetected(i.getTableTypePid());
                                 }
@@ -277,9 +331,7 @@ public class TsParser {
                     @Override
                     public void onEitParsed(int sourceId, List<EitItem> items) {
                         if (DEBUG) Log.d(TAG, "onEITParsed " + sourceId);
-                        EventSourceEntry entry = new EventSourceEntry(mPid, sourceId);
-                        mEitMap.put(entry, items);
-                        handleEvents(sourceId);
+                        handleEvents(sourceId, mEventStore.putEitItems(mPid, sourceId, items));
                     }
 
                     @Override
@@ -308,9 +360,7 @@ public class TsParser {
                         }
 
                         // Event Information description
-                        EventSourceEntry entry = new EventSourceEntry(mPid, sourceId);
-                        mETTMap.put(entry, descriptions);
-                        handleEvents(sourceId);
+                        handleEvents(sourceId, mEventStore.putEttItems(sourceId, descriptions));
                     }
 
                     @Override
@@ -336,33 +386,6 @@ public class TsParser {
                 };
     }
 
-    private static class EventSourceEntry {
-        public final int pid;
-        public final int sourceId;
-
-        public EventSourceEntry(int pid, int sourceId) {
-            this.pid = pid;
-            this.sourceId = sourceId;
-        }
-
-        @Override
-        public int hashCode() {
-            int result = 17;
-            result = 31 * result + pid;
-            result = 31 * result + sourceId;
-            return result;
-        }
-
-        @Override
-        public boolean equals(Object obj) {
-            if (obj instanceof EventSourceEntry) {
-                EventSourceEntry another = (EventSourceEntry) obj;
-                return pid == another.pid && sourceId == another.sourceId;
-            }
-            return false;
-        }
-    }
-
     private void handleVctItem(VctItem channel, List<PmtItem> pmtItems) {
         if (DEBUG) {
             Log.d(TAG, "handleVctItem " + channel);
@@ -377,18 +400,19 @@ public class TsParser {
             return;
         }
         if (!mVctItemHandledStatus.valueAt(statusIndex)) {
-            List<EitItem> eitItems = mSourceIdToEitMap.get(sourceId);
+            List<EitItem> eitItems = mEventStore.getEvents(sourceId);
             if (eitItems != null) {
                 // When VCT is parsed later than EIT.
                 mVctItemHandledStatus.put(sourceId, true);
-                handleEitItems(channel, eitItems);
+                handleEitItems(channel, eitItems, eitItems);
             }
         }
     }
 
-    private void handleEitItems(VctItem channel, List<EitItem> items) {
+    private void handleEitItems(
+            VctItem channel, List<EitItem> changedItems, List<EitItem> items) {
         if (mListener != null) {
-            mListener.onEitItemParsed(channel, items);
+            mListener.onEitItemsChanged(channel, changedItems, items);
         }
     }
 
@@ -401,36 +425,25 @@ public class TsParser {
         }
     }
 
-    private void handleEvents(int sourceId) {
-        Map<Integer, EitItem> itemSet = new HashMap<>();
-        for (int pid : mEITPids) {
-            List<EitItem> eitItems = mEitMap.get(new EventSourceEntry(pid, sourceId));
-            if (eitItems != null) {
-                for (EitItem item : eitItems) {
-                    item.setDescription(null);
-                    itemSet.put(item.getEventId(), item);
-                }
-            }
+    /**
+     * Reports the events of a source changed by an EIT or ETT update.
+     *
+     * @param sourceId the source id of the events
+     * @param changedItems the events added or changed by the update, or {@code null} if the update
+     *     did not change the events of the source
+     */
+    private void handleEvents(int sourceId, List<EitItem> changedItems) {
+        if (changedItems == null) {
+            return;
         }
-        for (int pid : mETTPids) {
-            List<EttItem> ettItems = mETTMap.get(new EventSourceEntry(pid, sourceId));
-            if (ettItems != null) {
-                for (EttItem ettItem : ettItems) {
-                    if (ettItem.eventId != 0) {
-                        EitItem item = itemSet.get(ettItem.eventId);
-                        if (item != null) {
-                            item.setDescription(ettItem.text);
-                        }
-                    }
-                }
-            }
+        List<EitItem> items = mEventStore.getEvents(sourceId);
+        if (items == null) {
+            return;
         }
-        List<EitItem> items = new ArrayList<>(itemSet.values());
-        mSourceIdToEitMap.put(sourceId, items);
         VctItem channel = mSourceIdToVctItemMap.get(sourceId);
         if (channel != null && mProgramNumberHandledStatus.get(channel.getProgramNumber())) {
             mVctItemHandledStatus.put(sourceId, true);
-            handleEitItems(channel, items);
+            handleEitItems(channel, changedItems, items);
         } else {
             mVctItemHandledStatus.put(sourceId, false);
             if (!mIsDvbSignal) {
@@ -492,23 +505,34 @@ public class TsParser {
             return false;
         }
         stream.feedData(
-                Arrays.copyOfRange(tsData, payloadPos, pos + TS_PACKET_SIZE),
+                tsData,
+                payloadPos,
+                pos + TS_PACKET_SIZE - payloadPos,
                 continuityCounter,
                 payloadStartIndicator);
         return true;
     }
 
     /**
-     * Feeds MPEG-2 TS data to parse.
+     * Feeds MPEG-2 TS data to parse. The data does not need to be aligned to the packet
+     * boundaries, and 188, 192 and 204-byte packets are accepted.
      *
      * @param tsData buffer for ATSC TS stream
      * @param pos the offset where buffer starts
      * @param length The length of available data
      */
     public void feedTSData(byte[] tsData, int pos, int length) {
-        for (; pos <= length - TS_PACKET_SIZE; pos += TS_PACKET_SIZE) {
-            feedTSPacket(tsData, pos);
-        }
+        mPacketFramer.feed(tsData, pos, length);
+    }
+
+    /** Returns how many times the sync was lost while framing the fed TS data. */
+    public long getSyncLossCount() {
+        return mPacketFramer.getSyncLossCount();
+    }
+
+    /** Returns the number of bytes skipped while searching for the sync of the fed TS data. */
+    public long getSkippedByteCount() {
+        return mPacketFramer.getSkippedByteCount();
     }
 
     /**
@@ -531,9 +555,68 @@ public class TsParser {
         return incompleteChannels;
     }
 
+    /**
+     * Returns a report of the sizes of the backing arrays of the state tables of this parser and
+     * of the buffers of its section streams, and their total. The parsed items and texts which
+     * the tables refer to are not included, so the memory retained by the parser is larger.
+     */
+    public String getTableSizeReport() {
+        StringBuilder report = new StringBuilder("TsParser table sizes:");
+        long total = 0;
+        total += appendTableSize(report, "sourceIdToVctItem", mSourceIdToVctItemMap);
+        total +=
+                appendTableSize(
+                        report, "sourceIdToVctItemDescription", mSourceIdToVctItemDescriptionMap);
+        total += appendTableSize(report, "programNumberToVctItem", mProgramNumberToVctItemMap);
+        total += appendTableSize(report, "programNumberToPmt", mProgramNumberToPMTMap);
+        total += appendTableSize(report, "programNumberToSdtItem", mProgramNumberToSdtItemMap);
+        total +=
+                appendTableSize(
+                        report,
+                        "events",
+                        mEventStore.getSourceCount(),
+                        mEventStore.getTableSizeInBytes());
+        long pidSetSize = mEITPids.size() / 8;
+        report.append("\n  eit pids: ").append(pidSetSize).append(" bytes");
+        total += pidSetSize;
+        long streamSize = 0;
+        for (int i = 0; i < mStreamMap.size(); ++i) {
+            streamSize += mStreamMap.valueAt(i).getBufferSizeInBytes();
+        }
+        report.append("\n  streams: ")
+                .append(mStreamMap.size())
+                .append(" streams, ")
+                .append(streamSize)
+                .append(" bytes");
+        total += streamSize;
+        report.append("\n  total: ").append(total).append(" bytes");
+        return report.toString();
+    }
+
+    private static long appendTableSize(
+            StringBuilder report, String name, IntObjectHashMap<?> table) {
+        return appendTableSize(report, name, table.size(), table.getTableSizeInBytes());
+    }
+
+    private static long appendTableSize(
+            StringBuilder report, String name, int entryCount, long sizeInBytes) {
+        report.append("\n  ")
+                .append(name)
+                .append(": ")
+                .append(entryCount)
+                .append(" entries, ")
+                .append(sizeInBytes)
+                .append(" bytes");
+        return sizeInBytes;
+    }
+
     /** Reset the versions so that data with old version number can be handled. */
     public void resetDataVersions() {
-        for (int eitPid : mEITPids) {
+        // The events of the handled sections are reported again, even if they are unchanged.
+        mEventStore.resetReportedEvents();
+        for (int eitPid = mEITPids.nextSetBit(0);
+                eitPid >= 0;
+                eitPid = mEITPids.nextSetBit(eitPid + 1)) {
             Stream stream = mStreamMap.get(eitPid);
             if (stream != null) {
                 stream.resetDataVersions();
@@ -25,6 +25,7 @@ import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.Psi
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.TunerChannel;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.Track.AtscAudioTrack;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.Track.AtscCaptionTrack;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts.SectionParser;
 import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts.TsParser;
 import java.util.ArrayList;
 import java.util.HashSet;
@@ -73,16 +74,20 @@ public class EventDetector {
                 }
 
                 @Override
-                public void onEitItemParsed(
-                        PsipData.VctItem channel, List<PsipData.EitItem> items) {
+                public void onEitItemsChanged(
+                        PsipData.VctItem channel,
+                        List<PsipData.EitItem> changedItems,
+                        List<PsipData.EitItem> items) {
                     TunerChannel tunerChannel = mChannelMap.get(channel.getProgramNumber());
                     if (DEBUG) {
                         Log.d(
                                 TAG,
-                                "onEitItemParsed tunerChannel:"
+                                "onEitItemsChanged tunerChannel:"
                                         + tunerChannel
                                         + " "
-                                        + channel.getProgramNumber());
+                                        + channel.getProgramNumber()
+                                        + " changed: "
+                                        + changedItems.size());
                     }
                     int channelSourceId = channel.getSourceId();
 
@@ -97,8 +102,10 @@ public class EventDetector {
                     // If at least a one caption track have been found in EIT items for the given
                     // channel,
                     // we starts to interpret the zero tracks as a clearance of the caption tracks.
+                    // The unchanged events were looked at when they were added, so only the changed
+                    // ones are looked at for caption tracks.
                     boolean captionTracksFound = mEitCaptionTracksFound.get(channelSourceId);
-                    for (PsipData.EitItem item : items) {
+                    for (PsipData.EitItem item : changedItems) {
                         if (captionTracksFound) {
                             break;
                         }
@@ -109,10 +116,13 @@ public class EventDetector {
                     }
                     mEitCaptionTracksFound.put(channelSourceId, captionTracksFound);
                     if (captionTracksFound) {
+                        // An unchanged event may be a new item which equals the one looked at.
                         for (PsipData.EitItem item : items) {
                             item.setHasCaptionTrack();
                         }
                     }
+                    // The whole list is passed on, since the programs which are missing from it are
+                    // removed from the database.
                     if (tunerChannel != null && !mEventListeners.isEmpty()) {
                         for (EventListener eventListener : mEventListeners) {
                             eventListener.onEventDetected(tunerChannel, items);
@@ -260,6 +270,10 @@ public class EventDetector {
 
     private void reset() {
         // TODO: Use TsParser.reset()
+        if (DEBUG && mTsParser != null) {
+            Log.d(TAG, mTsParser.getTableSizeReport());
+            Log.d(TAG, SectionParser.getTextDecodeCache().getStats());
+        }
         int deliverySystemType = mTunerHal.getDeliverySystemType();
         mTsParser =
                 new TsParser(
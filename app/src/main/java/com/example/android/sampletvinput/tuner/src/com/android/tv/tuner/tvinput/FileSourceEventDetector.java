@@ -120,15 +120,18 @@ public class FileSourceEventDetector {
                 }
 
                 @Override
-                public void onEitItemParsed(VctItem channel, List<EitItem> items) {
+                public void onEitItemsChanged(
+                        VctItem channel, List<EitItem> changedItems, List<EitItem> items) {
                     TunerChannel tunerChannel = mChannelMap.get(channel.getProgramNumber());
                     if (DEBUG) {
                         Log.d(
                                 TAG,
-                                "onEitItemParsed tunerChannel:"
+                                "onEitItemsChanged tunerChannel:"
                                         + tunerChannel
                                         + " "
-                                        + channel.getProgramNumber());
+                                        + channel.getProgramNumber()
+                                        + " changed: "
+                                        + changedItems.size());
                     }
                     int channelSourceId = channel.getSourceId();
 
@@ -143,8 +146,10 @@ public class FileSourceEventDetector {
                     // If at least a one caption track have been found in EIT items for the given
                     // channel,
                     // we starts to interpret the zero tracks as a clearance of the caption tracks.
+                    // The unchanged events were looked at when they were added, so only the changed
+                    // ones are looked at for caption tracks.
                     boolean captionTracksFound = mEitCaptionTracksFound.get(channelSourceId);
-                    for (EitItem item : items) {
+                    for (EitItem item : changedItems) {
                         if (captionTracksFound) {
                             break;
                         }
@@ -155,10 +160,13 @@ public class FileSourceEventDetector {
                     }
                     mEitCaptionTracksFound.put(channelSourceId, captionTracksFound);
                     if (captionTracksFound) {
+                        // An unchanged event may be a new item which equals the one looked at.
                         for (EitItem item : items) {
                             item.setHasCaptionTrack();
                         }
                     }
+                    // The whole list is passed on, since the programs which are missing from it are
+                    // removed from the database.
                     if (tunerChannel != null && mEventListener != null) {
                         mEventListener.onEventDetected(tunerChannel, items);
                     }
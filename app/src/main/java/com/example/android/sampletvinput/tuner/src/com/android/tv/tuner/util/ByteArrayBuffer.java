@@ -114,6 +114,18 @@ public final class ByteArrayBuffer {
         this.len = 0;
     }
 
+    /** Removes the first {@code len} bytes and moves the remaining bytes to the front. */
+    public void consume(int len) {
+        if (len < 0 || len > this.len) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (len == 0) {
+            return;
+        }
+        System.arraycopy(this.buffer, len, this.buffer, 0, this.len - len);
+        this.len -= len;
+    }
+
     public byte[] toByteArray() {
         byte[] b = new byte[this.len];
         if (this.len > 0) {
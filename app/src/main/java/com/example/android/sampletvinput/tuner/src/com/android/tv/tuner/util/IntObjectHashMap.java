@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.util;
+
+import java.util.Arrays;
+
+/**
+ * A map from primitive int keys to objects, built on open addressing with linear probing. Keys are
+ * not boxed, and lookups do not allocate.
+ *
+ * @param <V> the type of the values
+ */
+public final class IntObjectHashMap<V> extends OpenHashTable {
+    // Used to estimate the memory footprint, assuming 32-bit references as on ART.
+    private static final int REFERENCE_SIZE = 4;
+
+    private Object[] mValues;
+
+    public IntObjectHashMap() {
+        this(0);
+    }
+
+    /** Creates a map which can hold {@code expectedSize} entries without rehashing. */
+    public IntObjectHashMap(int expectedSize) {
+        super(expectedSize);
+        mValues = new Object[capacity()];
+    }
+
+    /** Returns the value mapped to {@code key}, or {@code null} if there is none. */
+    @SuppressWarnings("unchecked")
+    public V get(int key) {
+        int index = indexOf(key);
+        return index >= 0 ? (V) mValues[index] : null;
+    }
+
+    public boolean containsKey(int key) {
+        return indexOf(key) >= 0;
+    }
+
+    /** Maps {@code value} to {@code key}, replacing the previous value if any. */
+    public void put(int key, V value) {
+        // The insertion may reallocate the values.
+        int index = insert(key);
+        mValues[index] = value;
+    }
+
+    /** Removes the mapping of {@code key}, and returns its value or {@code null} if none. */
+    @SuppressWarnings("unchecked")
+    public V remove(int key) {
+        int index = indexOf(key);
+        if (index < 0) {
+            return null;
+        }
+        V value = (V) mValues[index];
+        removeAt(index);
+        return value;
+    }
+
+    @Override
+    void reallocateValues(int capacity, int[] newIndices) {
+        Object[] values = mValues;
+        mValues = new Object[capacity];
+        for (int i = 0; i < newIndices.length; ++i) {
+            if (newIndices[i] >= 0) {
+                mValues[newIndices[i]] = values[i];
+            }
+        }
+    }
+
+    @Override
+    void moveValue(int from, int to) {
+        mValues[to] = mValues[from];
+    }
+
+    @Override
+    void clearValue(int index) {
+        mValues[index] = null;
+    }
+
+    @Override
+    void clearValues() {
+        Arrays.fill(mValues, null);
+    }
+
+    @Override
+    long getValueTableSizeInBytes() {
+        return ARRAY_HEADER_SIZE + (long) mValues.length * REFERENCE_SIZE;
+    }
+}
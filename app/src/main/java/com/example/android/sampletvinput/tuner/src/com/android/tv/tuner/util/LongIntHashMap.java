@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.util;
+
+/**
+ * A map from primitive long keys to primitive int values, built on open addressing with linear
+ * probing. Neither keys nor values are boxed, and lookups do not allocate.
+ */
+public final class LongIntHashMap extends OpenHashTable {
+    private int[] mValues;
+
+    public LongIntHashMap() {
+        this(0);
+    }
+
+    /** Creates a map which can hold {@code expectedSize} entries without rehashing. */
+    public LongIntHashMap(int expectedSize) {
+        super(expectedSize);
+        mValues = new int[capacity()];
+    }
+
+    /** Returns the value mapped to {@code key}, or {@code defaultValue} if there is none. */
+    public int get(long key, int defaultValue) {
+        int index = indexOf(key);
+        return index >= 0 ? mValues[index] : defaultValue;
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    /** Maps {@code value} to {@code key}, replacing the previous value if any. */
+    public void put(long key, int value) {
+        // The insertion may reallocate the values.
+        int index = insert(key);
+        mValues[index] = value;
+    }
+
+    /** Removes the mapping of {@code key}, if any. */
+    public void remove(long key) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            removeAt(index);
+        }
+    }
+
+    @Override
+    void reallocateValues(int capacity, int[] newIndices) {
+        int[] values = mValues;
+        mValues = new int[capacity];
+        for (int i = 0; i < newIndices.length; ++i) {
+            if (newIndices[i] >= 0) {
+                mValues[newIndices[i]] = values[i];
+            }
+        }
+    }
+
+    @Override
+    void moveValue(int from, int to) {
+        mValues[to] = mValues[from];
+    }
+
+    @Override
+    void clearValue(int index) {}
+
+    @Override
+    void clearValues() {}
+
+    @Override
+    long getValueTableSizeInBytes() {
+        return ARRAY_HEADER_SIZE + (long) mValues.length * 4;
+    }
+}
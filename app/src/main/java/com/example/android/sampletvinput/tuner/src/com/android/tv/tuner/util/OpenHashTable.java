@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.util;
+
+import java.util.Arrays;
+
+/**
+ * The keys of a map built on open addressing with linear probing. The values are kept by the
+ * subclasses in an array parallel to the keys, so that they are not boxed either. Keys of the
+ * narrower primitive types are widened to long, so that all the maps share one probing
+ * implementation.
+ */
+abstract class OpenHashTable {
+    private static final int MIN_CAPACITY = 16;
+    // Used to estimate the memory footprint.
+    static final int ARRAY_HEADER_SIZE = 16;
+    private static final long HASH_MULTIPLIER = 0x9e3779b97f4a7c15L;
+
+    private long[] mKeys;
+    private boolean[] mUsed;
+    private int mSize;
+
+    /** Creates a table which can hold {@code expectedSize} entries without rehashing. */
+    OpenHashTable(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity <<= 1;
+        }
+        mKeys = new long[capacity];
+        mUsed = new boolean[capacity];
+    }
+
+    public final int size() {
+        return mSize;
+    }
+
+    public final boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /** Returns the number of slots allocated for the entries. */
+    public final int capacity() {
+        return mKeys.length;
+    }
+
+    /**
+     * Returns the approximate number of bytes held by the backing arrays of this map. The objects
+     * which the values refer to are not included.
+     */
+    public final long getTableSizeInBytes() {
+        return 2 * ARRAY_HEADER_SIZE
+                + (long) mKeys.length * (8 + 1)
+                + getValueTableSizeInBytes();
+    }
+
+    /** Removes all entries. The allocated capacity is kept. */
+    public final void clear() {
+        if (mSize == 0) {
+            return;
+        }
+        Arrays.fill(mUsed, false);
+        clearValues();
+        mSize = 0;
+    }
+
+    /** Returns the slot of {@code key}, or -1 if the key is not in the map. */
+    final int indexOf(long key) {
+        int mask = mKeys.length - 1;
+        int index = hash(key) & mask;
+        while (mUsed[index]) {
+            if (mKeys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** Returns the slot of {@code key}, which is taken for the key if it is not in the map. */
+    final int insert(long key) {
+        int index = indexOf(key);
+        if (index >= 0) {
+            return index;
+        }
+        if ((mSize + 1) * 2 > mKeys.length) {
+            rehash(mKeys.length << 1);
+        }
+        index = findFreeSlot(key);
+        mUsed[index] = true;
+        mKeys[index] = key;
+        mSize++;
+        return index;
+    }
+
+    /**
+     * Removes the entry in a slot. The following entries of the probe sequence are shifted back,
+     * so that no tombstone is needed.
+     */
+    final void removeAt(int index) {
+        int mask = mKeys.length - 1;
+        int hole = index;
+        int next = (hole + 1) & mask;
+        while (mUsed[next]) {
+            int home = hash(mKeys[next]) & mask;
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                mKeys[hole] = mKeys[next];
+                moveValue(next, hole);
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        mUsed[hole] = false;
+        clearValue(hole);
+        mSize--;
+    }
+
+    /**
+     * Allocates the values for a new capacity.
+     *
+     * @param capacity the number of the slots
+     * @param newIndices the new slot of the value in each old slot, or -1 if the old slot is free
+     */
+    abstract void reallocateValues(int capacity, int[] newIndices);
+
+    /** Moves the value in a slot to another slot. */
+    abstract void moveValue(int from, int to);
+
+    /** Drops the value in a slot, so that the map does not retain it. */
+    abstract void clearValue(int index);
+
+    /** Drops all the values. */
+    abstract void clearValues();
+
+    /** Returns the approximate number of bytes held by the backing array of the values. */
+    abstract long getValueTableSizeInBytes();
+
+    private void rehash(int capacity) {
+        long[] keys = mKeys;
+        boolean[] used = mUsed;
+        mKeys = new long[capacity];
+        mUsed = new boolean[capacity];
+        int[] newIndices = new int[keys.length];
+        for (int i = 0; i < keys.length; ++i) {
+            if (used[i]) {
+                int index = findFreeSlot(keys[i]);
+                mUsed[index] = true;
+                mKeys[index] = keys[i];
+                newIndices[i] = index;
+            } else {
+                newIndices[i] = -1;
+            }
+        }
+        reallocateValues(capacity, newIndices);
+    }
+
+    private int findFreeSlot(long key) {
+        int mask = mKeys.length - 1;
+        int index = hash(key) & mask;
+        while (mUsed[index]) {
+            index = (index + 1) & mask;
+        }
+        return index;
+    }
+
+    private static int hash(long key) {
+        long h = key * HASH_MULTIPLIER;
+        return (int) (h ^ (h >>> 32));
+    }
+}
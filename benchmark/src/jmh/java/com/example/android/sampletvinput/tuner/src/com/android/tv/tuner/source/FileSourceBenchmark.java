@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source;
+
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts.SyntheticMultiplex;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Measures how fast the file source of {@code FileTsStreamer} reads the packets of a channel from
+ * a large TS file. Each operation fills a read buffer of the streamer, and the file is read again
+ * from the start once it is consumed. The bytes scanned and passed per second are reported as
+ * secondary results.
+ *
+ * <p>By default a synthetic file of {@code syntheticSizeMb} is written to the temporary directory,
+ * which the page cache likely holds, so the results show the CPU cost of the read path. A capture
+ * and the PIDs of a channel in it can be given instead:
+ *
+ * <pre>
+ * ./gradlew :benchmark:jmh -Pbenchmarks=FileSource -PtsFile=/path/to/capture.ts -Ppids=0,8187,49
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FileSourceBenchmark {
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int TS_SYNC_BYTE = 0x47;
+    // The same as the read buffer of FileTsStreamer.
+    private static final int READ_BUFFER_SIZE = TS_PACKET_SIZE * 100;
+    private static final int SYNTHETIC_CHANNEL_COUNT = 6;
+    private static final int SYNTHETIC_CYCLE_COUNT = 8;
+
+    /** The path of a captured TS file, or empty to write a synthetic file. */
+    @Param("")
+    public String tsFile;
+
+    /** The size of the synthetic file. */
+    @Param("2048")
+    public int syntheticSizeMb;
+
+    /**
+     * The PIDs to pass, separated by commas. The defaults are the PAT, the ATSC base PID, and the
+     * PMT, video and audio of the first channel of the synthetic file.
+     */
+    @Param("0,8187,256,257,258")
+    public String pids;
+
+    private File mFile;
+    private boolean mTemporaryFile;
+    private final byte[] mBuffer = new byte[READ_BUFFER_SIZE];
+
+    private final TsPidFilter mPidFilter = new TsPidFilter();
+    private TsFileReader mFileReader;
+
+    // The previous read path, which copies the packets one at a time from a stream.
+    private final BitSet mPidSet = new BitSet();
+    private final byte[] mPreBuffer = new byte[READ_BUFFER_SIZE];
+    private InputStream mInputStream;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        if (tsFile.isEmpty()) {
+            mFile = File.createTempFile("file_source_benchmark", ".ts");
+            mTemporaryFile = true;
+            writeSyntheticFile(mFile, (long) syntheticSizeMb * 1024 * 1024);
+        } else {
+            mFile = new File(tsFile);
+        }
+        for (String pid : pids.split(",")) {
+            mPidFilter.add(Integer.parseInt(pid.trim()));
+            mPidSet.set(Integer.parseInt(pid.trim()));
+        }
+        mFileReader = TsFileReader.open(mFile.getPath());
+        mInputStream = new BufferedInputStream(new FileInputStream(mFile));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        mFileReader.close();
+        mInputStream.close();
+        if (mTemporaryFile && !mFile.delete()) {
+            throw new IOException("Failed to delete " + mFile);
+        }
+    }
+
+    @Benchmark
+    public int fileReader(FileCounters counters) throws IOException {
+        long scanned = mFileReader.getBytesScanned();
+        int readSize = mFileReader.read(mPidFilter, mBuffer, 0, mBuffer.length);
+        if (readSize < 0) {
+            mFileReader.rewind();
+            readSize = mFileReader.read(mPidFilter, mBuffer, 0, mBuffer.length);
+        }
+        counters.bytesScanned += mFileReader.getBytesScanned() - scanned;
+        counters.bytesPassed += readSize;
+        return readSize;
+    }
+
+    /** Reads a buffer from a stream and copies the packets which pass one at a time. */
+    @Benchmark
+    public int inputStream(FileCounters counters) throws IOException {
+        int readSize = mInputStream.read(mPreBuffer, 0, mPreBuffer.length);
+        if (readSize <= 0) {
+            mInputStream.close();
+            mInputStream = new BufferedInputStream(new FileInputStream(mFile));
+            readSize = mInputStream.read(mPreBuffer, 0, mPreBuffer.length);
+        }
+        int filteredSize = 0;
+        for (int i = 0; i + TS_PACKET_SIZE <= readSize; i += TS_PACKET_SIZE) {
+            if (mPreBuffer[i] == TS_SYNC_BYTE) {
+                int pid = ((mPreBuffer[i + 1] & 0x1f) << 8) + (mPreBuffer[i + 2] & 0xff);
+                if (mPidSet.get(pid)) {
+                    System.arraycopy(mPreBuffer, i, mBuffer, filteredSize, TS_PACKET_SIZE);
+                    filteredSize += TS_PACKET_SIZE;
+                }
+            }
+        }
+        counters.bytesScanned += readSize;
+        counters.bytesPassed += filteredSize;
+        return filteredSize;
+    }
+
+    private static void writeSyntheticFile(File file, long size) throws IOException {
+        byte[] multiplex =
+                SyntheticMultiplex.generate(SYNTHETIC_CHANNEL_COUNT, SYNTHETIC_CYCLE_COUNT);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (long written = 0; written < size; written += multiplex.length) {
+                out.write(multiplex);
+            }
+        }
+    }
+}
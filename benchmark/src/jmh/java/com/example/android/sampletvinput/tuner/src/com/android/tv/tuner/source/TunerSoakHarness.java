@@ -0,0 +1,588 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.source;
+
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.SimulatedTsDevice;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.TsDatagramReceiver;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts.SyntheticMultiplex;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs concurrent streaming sessions on simulated tuners, and reports the sustained throughput,
+ * the dropped bytes and the end-to-end latency. Each session runs the live path of {@code
+ * TunerTsStreamer}: a streaming thread reads the tuner into a {@link TsRingBuffer}, and a player
+ * thread reads the buffer through a cursor which skips to the live position when it falls behind.
+ * The latency is measured from the time when the stream was broadcast to the time when the player
+ * read it. The streaming thread waits for the next transfer of the tuner like {@code
+ * SimulatedTunerHal} does, or polls it at a fixed interval like the tuner reads used to, to
+ * compare the latency and the wakeups of the two.
+ *
+ * <p>With {@code transport=rtp}, the tuner of a session is streamed like {@code NetworkTunerHal}
+ * receives it instead: a sender thread sends the packets of the tuner as RTP datagrams over the
+ * loopback interface, dropping and reordering some of them, and the streaming thread receives
+ * them through a {@link TsDatagramReceiver}.
+ *
+ * <p>The options are given as {@code name=value} pairs, e.g.
+ *
+ * <pre>
+ * ./gradlew :benchmark:soak -PsoakArgs="sessions=32 durationSec=600 lockLossIntervalMs=60000"
+ * </pre>
+ *
+ * See {@link #DEFAULT_OPTIONS} for the options. Without a corpus, a synthetic multiplex is
+ * streamed.
+ */
+public class TunerSoakHarness {
+    private static final int TS_PACKET_SIZE = 188;
+    // The same as TunerTsStreamer.
+    private static final int READ_BUFFER_SIZE = 1500 * 10;
+    // How long the streaming thread waits for the tuner, the same as TunerTsStreamer.
+    private static final long TUNER_READ_TIMEOUT_NS = 100 * 1000000L;
+    private static final long READ_WAIT_SLICE_MS = 100;
+    private static final int SYNTHETIC_CHANNEL_COUNT = 6;
+    private static final int SYNTHETIC_CYCLE_COUNT = 8;
+    private static final int SYNTHETIC_FILE_SIZE = 64 * 1024 * 1024;
+    // The broadcast times of the recent writes, to look up the time of a position.
+    private static final int WRITE_HISTORY_SIZE = 4096;
+    // The latencies are counted in buckets of a millisecond, up to this many.
+    private static final int MAX_LATENCY_MS = 10000;
+    // The same as most IPTV headends send, which fits in an Ethernet frame.
+    private static final int PACKETS_PER_DATAGRAM = 7;
+    private static final int RTP_HEADER_SIZE = 12;
+    private static final int RTP_VERSION = 2;
+    private static final int RTP_PAYLOAD_TYPE_MP2T = 33;
+    // The same as NetworkTunerHal.
+    private static final int SOCKET_RECEIVE_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private static final String[][] DEFAULT_OPTIONS = {
+        {"sessions", "8", "the number of concurrent sessions"},
+        {"durationSec", "30", "how long to stream"},
+        {"bitrate", "19392658", "the bitrate of a stream"},
+        {"corpus", "", "a TS file or a directory of them, or empty for a synthetic multiplex"},
+        {"bufferMb", "8", "the size of the ring buffer of a session"},
+        {"playerReadSize", "7520", "the number of bytes a player reads at a time"},
+        {"lockLossIntervalMs", "0", "the mean time between lock losses, or 0 for none"},
+        {"lockLossDurationMs", "500", "how long the lock is lost"},
+        {"stallIntervalMs", "0", "the mean time between stalls of the tuner, or 0 for none"},
+        {"stallDurationMs", "300", "how long the tuner stalls"},
+        {"packetErrorRate", "0", "the fraction of the packets to corrupt"},
+        {"seed", "0", "the seed of the random faults"},
+        {"pollIntervalMs", "0", "the interval to poll the tuners at, or 0 to wait for them"},
+        {"transport", "device", "device to read the tuners, or rtp to receive them over loopback"},
+        {"rtpLossRate", "0", "the fraction of the RTP datagrams to drop"},
+        {"rtpReorderRate", "0", "the fraction of the RTP datagrams to send after the next one"},
+    };
+
+    private final Map<String, String> mOptions;
+    private final List<Session> mSessions = new ArrayList<>();
+
+    private TunerSoakHarness(Map<String, String> options) {
+        mOptions = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String[] option : DEFAULT_OPTIONS) {
+            options.put(option[0], option[1]);
+        }
+        for (String arg : args) {
+            int index = arg.indexOf('=');
+            if (index < 0 || !options.containsKey(arg.substring(0, index))) {
+                printUsage();
+                System.exit(1);
+            }
+            options.put(arg.substring(0, index), arg.substring(index + 1));
+        }
+        new TunerSoakHarness(options).run();
+    }
+
+    private static void printUsage() {
+        System.err.println("Options:");
+        for (String[] option : DEFAULT_OPTIONS) {
+            System.err.println("  " + option[0] + "=" + option[1] + "\t" + option[2]);
+        }
+    }
+
+    private void run() throws IOException, InterruptedException {
+        File syntheticFile = null;
+        List<File> corpus;
+        String corpusPath = mOptions.get("corpus");
+        if (corpusPath.isEmpty()) {
+            syntheticFile = File.createTempFile("tuner_soak", ".ts");
+            writeSyntheticFile(syntheticFile);
+            corpus = Collections.singletonList(syntheticFile);
+        } else if (new File(corpusPath).isDirectory()) {
+            corpus = SimulatedTsDevice.listCorpus(new File(corpusPath));
+        } else {
+            corpus = Collections.singletonList(new File(corpusPath));
+        }
+        int sessionCount = (int) getLong("sessions");
+        int bitrate = (int) getLong("bitrate");
+        long seed = getLong("seed");
+        String transport = mOptions.get("transport");
+        if (!transport.equals("device") && !transport.equals("rtp")) {
+            throw new IllegalArgumentException("Unknown transport " + transport);
+        }
+        try {
+            for (int i = 0; i < sessionCount; ++i) {
+                SimulatedTsDevice device =
+                        new SimulatedTsDevice(corpus, bitrate, getFaults(seed + i));
+                for (int pid = 0; pid < 0x2000; ++pid) {
+                    device.addPidFilter(pid);
+                }
+                if (!device.tune(i)) {
+                    throw new IOException("Failed to tune session " + i);
+                }
+                mSessions.add(
+                        new Session(
+                                device,
+                                (int) getLong("bufferMb") * 1024 * 1024,
+                                (int) getLong("playerReadSize"),
+                                getLong("pollIntervalMs")));
+                if (transport.equals("rtp")) {
+                    mSessions.get(i).openRtpLink(
+                            Double.parseDouble(mOptions.get("rtpLossRate")),
+                            Double.parseDouble(mOptions.get("rtpReorderRate")),
+                            seed + i);
+                }
+            }
+            System.out.println(
+                    "Streaming "
+                            + sessionCount
+                            + " sessions of "
+                            + corpus
+                            + " over "
+                            + transport
+                            + " with "
+                            + getFaults(seed));
+            long startTimeNs = System.nanoTime();
+            for (Session session : mSessions) {
+                session.start();
+            }
+            Thread.sleep(getLong("durationSec") * 1000);
+            for (Session session : mSessions) {
+                session.stop();
+            }
+            report((System.nanoTime() - startTimeNs) / 1e9);
+        } finally {
+            for (Session session : mSessions) {
+                session.mDevice.close();
+                session.closeRtpLink();
+            }
+            if (syntheticFile != null && !syntheticFile.delete()) {
+                System.err.println("Failed to delete " + syntheticFile);
+            }
+        }
+    }
+
+    private SimulatedTsDevice.Faults getFaults(long seed) {
+        return new SimulatedTsDevice.Faults.Builder()
+                .setLockLoss(getLong("lockLossIntervalMs"), getLong("lockLossDurationMs"))
+                .setStall(getLong("stallIntervalMs"), getLong("stallDurationMs"))
+                .setPacketErrorRate(Double.parseDouble(mOptions.get("packetErrorRate")))
+                .setSeed(seed)
+                .build();
+    }
+
+    private long getLong(String name) {
+        return Long.parseLong(mOptions.get(name));
+    }
+
+    private void report(double durationSec) {
+        long readBytes = 0;
+        long minReadBytes = Long.MAX_VALUE;
+        long overflowBytes = 0;
+        long lockLossBytes = 0;
+        long skippedBytes = 0;
+        long lockLossCount = 0;
+        long stallCount = 0;
+        long packetErrorCount = 0;
+        long underrunCount = 0;
+        long wakeupCount = 0;
+        long sentDroppedCount = 0;
+        long sentReorderedCount = 0;
+        long lostCount = 0;
+        long reorderedCount = 0;
+        long lateCount = 0;
+        long[] latencies = new long[MAX_LATENCY_MS + 1];
+        for (Session session : mSessions) {
+            readBytes += session.mPlayerReadBytes;
+            minReadBytes = Math.min(minReadBytes, session.mPlayerReadBytes);
+            overflowBytes += session.mDevice.getOverflowBytes();
+            lockLossBytes += session.mDevice.getLockLossBytes();
+            skippedBytes += session.mSkippedBytes;
+            underrunCount += session.mUnderrunCount;
+            wakeupCount += session.mWakeupCount;
+            lockLossCount += session.mDevice.getLockLossCount();
+            stallCount += session.mDevice.getStallCount();
+            packetErrorCount += session.mDevice.getPacketErrorCount();
+            if (session.mReceiver != null) {
+                sentDroppedCount += session.mSentDroppedCount;
+                sentReorderedCount += session.mSentReorderedCount;
+                lostCount += session.mReceiver.getLostCount();
+                reorderedCount += session.mReceiver.getReorderedCount();
+                lateCount += session.mReceiver.getLateCount();
+            }
+            for (int i = 0; i <= MAX_LATENCY_MS; ++i) {
+                latencies[i] += session.mLatencies[i];
+            }
+        }
+        System.out.println(
+                String.format(
+                        Locale.US,
+                        "Throughput: %.2f Mbps in total, %.2f Mbps for the slowest session",
+                        readBytes * 8 / durationSec / 1e6,
+                        minReadBytes * 8 / durationSec / 1e6));
+        System.out.println(
+                String.format(
+                        Locale.US,
+                        "Dropped: %d bytes by the tuner buffers, %d bytes while the lock was lost,"
+                                + " %d bytes skipped by the players",
+                        overflowBytes,
+                        lockLossBytes,
+                        skippedBytes));
+        System.out.println(
+                String.format(
+                        Locale.US,
+                        "Faults: %d lock losses, %d stalls, %d corrupted packets",
+                        lockLossCount,
+                        stallCount,
+                        packetErrorCount));
+        if (mSessions.get(0).mReceiver != null) {
+            System.out.println(
+                    String.format(
+                            Locale.US,
+                            "RTP: %d datagrams dropped and %d reordered by the senders, %d lost,"
+                                    + " %d reordered and %d late at the receivers",
+                            sentDroppedCount,
+                            sentReorderedCount,
+                            lostCount,
+                            reorderedCount,
+                            lateCount));
+        }
+        System.out.println(
+                String.format(
+                        Locale.US,
+                        "Tuner reads: %d underruns, %.1f wakeups/sec per session",
+                        underrunCount,
+                        wakeupCount / durationSec / mSessions.size()));
+        System.out.println(
+                String.format(
+                        Locale.US,
+                        "Latency: p50=%dms p90=%dms p99=%dms max=%s",
+                        percentile(latencies, 0.5),
+                        percentile(latencies, 0.9),
+                        percentile(latencies, 0.99),
+                        maxLatency(latencies)));
+    }
+
+    private static int percentile(long[] latencies, double fraction) {
+        long total = 0;
+        for (long count : latencies) {
+            total += count;
+        }
+        long rank = (long) Math.ceil(total * fraction);
+        long seen = 0;
+        for (int i = 0; i < latencies.length; ++i) {
+            seen += latencies[i];
+            if (seen >= rank && seen > 0) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    private static String maxLatency(long[] latencies) {
+        for (int i = latencies.length - 1; i >= 0; --i) {
+            if (latencies[i] > 0) {
+                return i == MAX_LATENCY_MS ? ">" + MAX_LATENCY_MS + "ms" : i + "ms";
+            }
+        }
+        return "0ms";
+    }
+
+    private static void writeSyntheticFile(File file) throws IOException {
+        byte[] multiplex =
+                SyntheticMultiplex.generate(SYNTHETIC_CHANNEL_COUNT, SYNTHETIC_CYCLE_COUNT);
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file))) {
+            for (long written = 0; written < SYNTHETIC_FILE_SIZE; written += multiplex.length) {
+                out.write(multiplex);
+            }
+        }
+    }
+
+    /** A tuner which is streamed into a ring buffer and played from it. */
+    private static class Session {
+        private final SimulatedTsDevice mDevice;
+        private final TsRingBuffer mRingBuffer = new TsRingBuffer();
+        private final TsRingBuffer.Cursor mCursor;
+        private final int mPlayerReadSize;
+        private final long mPollIntervalMs;
+        private final Thread mStreamingThread = new Thread(this::stream, "soak-streaming");
+        private final Thread mPlayerThread = new Thread(this::play, "soak-player");
+        private volatile boolean mStopped;
+
+        // The loopback link of the rtp transport, or null to read the tuner directly.
+        private Thread mSenderThread;
+        private DatagramChannel mSendChannel;
+        private DatagramChannel mReceiveChannel;
+        private Selector mSelector;
+        private TsDatagramReceiver mReceiver;
+        private double mLossRate;
+        private double mReorderRate;
+        private Random mRandom;
+        // The broadcast time of the latest datagram sent, written by the sender thread.
+        private volatile long mSentBroadcastTimeNs;
+        // Written by the sender thread, and read after it ends.
+        private long mSentDroppedCount;
+        private long mSentReorderedCount;
+
+        // The end positions and the broadcast times of the recent writes, written by the
+        // streaming thread.
+        private final AtomicLongArray mWritePositions = new AtomicLongArray(WRITE_HISTORY_SIZE);
+        private final AtomicLongArray mWriteTimesNs = new AtomicLongArray(WRITE_HISTORY_SIZE);
+        private final AtomicInteger mWriteCount = new AtomicInteger();
+
+        // Written by the streaming thread, and read after it ends.
+        private long mUnderrunCount;
+        private long mWakeupCount;
+
+        // Written by the player thread, and read after it ends.
+        private long mPlayerReadBytes;
+        private long mSkippedBytes;
+        private final long[] mLatencies = new long[MAX_LATENCY_MS + 1];
+
+        Session(SimulatedTsDevice device, int bufferSize, int playerReadSize, long pollIntervalMs) {
+            mDevice = device;
+            mPollIntervalMs = pollIntervalMs;
+            mRingBuffer.open(TsBufferStorage.allocate(bufferSize, null));
+            mCursor = mRingBuffer.openCursor(0, SlowReaderPolicy.SKIP_TO_LIVE);
+            mPlayerReadSize = playerReadSize;
+        }
+
+        /** Streams the tuner over RTP on the loopback interface instead of reading it. */
+        void openRtpLink(double lossRate, double reorderRate, long seed) throws IOException {
+            mLossRate = lossRate;
+            mReorderRate = reorderRate;
+            mRandom = new Random(seed);
+            mReceiveChannel = DatagramChannel.open();
+            mReceiveChannel.setOption(
+                    StandardSocketOptions.SO_RCVBUF, SOCKET_RECEIVE_BUFFER_SIZE);
+            mReceiveChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            mReceiveChannel.configureBlocking(false);
+            mSelector = Selector.open();
+            mReceiveChannel.register(mSelector, SelectionKey.OP_READ);
+            mSendChannel = DatagramChannel.open();
+            mSendChannel.connect(mReceiveChannel.getLocalAddress());
+            TsPidFilter pidFilter = new TsPidFilter();
+            for (int pid = 0; pid < 0x2000; ++pid) {
+                pidFilter.add(pid);
+            }
+            mReceiver = new TsDatagramReceiver(pidFilter);
+            mSenderThread = new Thread(this::send, "soak-sender");
+        }
+
+        void closeRtpLink() throws IOException {
+            if (mReceiveChannel != null) {
+                mSelector.close();
+                mReceiveChannel.close();
+                mSendChannel.close();
+            }
+        }
+
+        void start() {
+            if (mSenderThread != null) {
+                mSenderThread.start();
+            }
+            mStreamingThread.start();
+            mPlayerThread.start();
+        }
+
+        void stop() throws InterruptedException {
+            mStopped = true;
+            if (mSenderThread != null) {
+                mSenderThread.join();
+            }
+            mStreamingThread.join();
+            mRingBuffer.close();
+            mPlayerThread.join();
+        }
+
+        private void stream() {
+            byte[] buffer = new byte[READ_BUFFER_SIZE];
+            try {
+                while (!mStopped) {
+                    int size =
+                            mReceiver != null
+                                    ? mReceiver.read(
+                                            mReceiveChannel,
+                                            buffer,
+                                            buffer.length,
+                                            System.nanoTime() / 1000000)
+                                    : mDevice.read(buffer, 0, buffer.length);
+                    if (size == 0) {
+                        mUnderrunCount++;
+                        if (mReceiver != null) {
+                            // Waits like NetworkTunerHal does, until the next datagram comes or
+                            // a gap in the jitter buffer times out.
+                            long waitMs =
+                                    Math.min(
+                                            mReceiver.getGapTimeoutMs(System.nanoTime() / 1000000),
+                                            TUNER_READ_TIMEOUT_NS / 1000000);
+                            mSelector.select(Math.max(1, waitMs));
+                            mSelector.selectedKeys().clear();
+                        } else if (mPollIntervalMs > 0) {
+                            Thread.sleep(mPollIntervalMs);
+                        } else {
+                            long waitNs =
+                                    Math.min(
+                                            mDevice.getTimeUntilReadableNs(),
+                                            TUNER_READ_TIMEOUT_NS);
+                            LockSupport.parkNanos(waitNs);
+                        }
+                        mWakeupCount++;
+                        continue;
+                    }
+                    // Recorded before the write, so that a player finds the write it reads.
+                    int index = mWriteCount.get() % WRITE_HISTORY_SIZE;
+                    mWritePositions.set(index, mRingBuffer.getWritePosition() + size);
+                    mWriteTimesNs.set(
+                            index,
+                            mReceiver != null
+                                    ? mSentBroadcastTimeNs
+                                    : mDevice.getBroadcastTimeNs());
+                    mWriteCount.incrementAndGet();
+                    mRingBuffer.write(buffer, 0, size);
+                }
+            } catch (IOException | InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        /**
+         * Sends the packets of the tuner in RTP datagrams, and drops or delays some of them like a
+         * lossy network would.
+         */
+        private void send() {
+            byte[] packets = new byte[READ_BUFFER_SIZE];
+            int datagramSize = RTP_HEADER_SIZE + PACKETS_PER_DATAGRAM * TS_PACKET_SIZE;
+            ByteBuffer datagram = ByteBuffer.allocate(datagramSize);
+            ByteBuffer delayed = ByteBuffer.allocate(datagramSize);
+            boolean hasDelayed = false;
+            int sequence = 0;
+            try {
+                while (!mStopped) {
+                    int size = mDevice.read(packets, 0, packets.length);
+                    if (size == 0) {
+                        LockSupport.parkNanos(
+                                Math.min(mDevice.getTimeUntilReadableNs(), TUNER_READ_TIMEOUT_NS));
+                        continue;
+                    }
+                    // Published before the datagrams, so that the receiver finds their time.
+                    mSentBroadcastTimeNs = mDevice.getBroadcastTimeNs();
+                    for (int offset = 0; offset < size; ) {
+                        int payloadSize =
+                                Math.min(size - offset, PACKETS_PER_DATAGRAM * TS_PACKET_SIZE);
+                        datagram.clear();
+                        datagram.put((byte) (RTP_VERSION << 6));
+                        datagram.put((byte) RTP_PAYLOAD_TYPE_MP2T);
+                        datagram.putShort((short) sequence++);
+                        // The timestamp and the SSRC, which the receiver doesn't use.
+                        datagram.putInt(0);
+                        datagram.putInt(0);
+                        datagram.put(packets, offset, payloadSize);
+                        datagram.flip();
+                        offset += payloadSize;
+                        if (mRandom.nextDouble() < mLossRate) {
+                            mSentDroppedCount++;
+                            continue;
+                        }
+                        if (!hasDelayed && mRandom.nextDouble() < mReorderRate) {
+                            // Sent after the next datagram.
+                            ByteBuffer swap = delayed;
+                            delayed = datagram;
+                            datagram = swap;
+                            hasDelayed = true;
+                            mSentReorderedCount++;
+                            continue;
+                        }
+                        mSendChannel.write(datagram);
+                        if (hasDelayed) {
+                            mSendChannel.write(delayed);
+                            hasDelayed = false;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void play() {
+            byte[] buffer = new byte[mPlayerReadSize];
+            while (true) {
+                int result =
+                        mRingBuffer.read(mCursor, buffer, 0, buffer.length, READ_WAIT_SLICE_MS);
+                if (result == TsRingBuffer.RESULT_CLOSED) {
+                    return;
+                }
+                if (result == TsRingBuffer.RESULT_OVERWRITTEN) {
+                    mSkippedBytes += mCursor.skipToLive(TS_PACKET_SIZE);
+                    continue;
+                }
+                mPlayerReadBytes += result;
+                long latencyNs = System.nanoTime() - getWriteTimeNs(mCursor.getPosition());
+                long latencyMs = latencyNs / 1000000;
+                mLatencies[(int) Math.max(0, Math.min(latencyMs, MAX_LATENCY_MS))]++;
+            }
+        }
+
+        /** Returns the broadcast time of the write which covers the given position. */
+        private long getWriteTimeNs(long position) {
+            int count = mWriteCount.get();
+            int index = count - 1;
+            // Finds the earliest recent write which ends at or after the position.
+            while (index > 0
+                    && index > count - WRITE_HISTORY_SIZE
+                    && mWritePositions.get((index - 1) % WRITE_HISTORY_SIZE) >= position) {
+                --index;
+            }
+            return mWriteTimesNs.get(index % WRITE_HISTORY_SIZE);
+        }
+    }
+}
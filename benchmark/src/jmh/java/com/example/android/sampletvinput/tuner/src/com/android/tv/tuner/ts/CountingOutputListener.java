@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts;
+
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsiData.PatItem;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsiData.PmtItem;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.EitItem;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.SdtItem;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.VctItem;
+import java.util.List;
+
+/** Counts the items reported by {@link TsParser}, so that the parse results are consumed. */
+class CountingOutputListener implements TsParser.TsOutputListener {
+    // The tables reported, e.g. a PAT, a channel or the events of a channel.
+    long tableCount;
+    long channelCount;
+    long eventCount;
+
+    @Override
+    public void onPatDetected(List<PatItem> items) {
+        tableCount++;
+    }
+
+    @Override
+    public void onEitPidDetected(int pid) {}
+
+    @Override
+    public void onVctItemParsed(VctItem channel, List<PmtItem> pmtItems) {
+        tableCount++;
+        channelCount++;
+    }
+
+    @Override
+    public void onEitItemsChanged(
+            VctItem channel, List<EitItem> changedItems, List<EitItem> items) {
+        tableCount++;
+        eventCount += changedItems.size();
+    }
+
+    @Override
+    public void onEttPidDetected(int pid) {}
+
+    @Override
+    public void onAllVctItemsParsed() {}
+
+    @Override
+    public void onSdtItemParsed(SdtItem channel, List<PmtItem> pmtItems) {
+        tableCount++;
+        channelCount++;
+    }
+}
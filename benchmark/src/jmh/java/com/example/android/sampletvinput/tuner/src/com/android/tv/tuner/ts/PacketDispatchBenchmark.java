@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts;
+
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsiData.PmtItem;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.SdtItem;
+import com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.data.PsipData.VctItem;
+import java.io.ByteArrayOutputStream;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the packet dispatch of {@link TsParser}: framing the fed data into TS packets and
+ * looking up the stream of each packet's PID. The parser learns the tables first, and is then fed
+ * only the packets of the elementary streams and the null packets, which are the bulk of a
+ * multiplex and which the parser drops, so that no section is assembled. The score is in
+ * packets/sec.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PacketDispatchBenchmark {
+    private static final int NUM_PIDS = 0x2000;
+    private static final int NULL_PID = 0x1fff;
+    // Shifts the feeds so that a packet spans every two consecutive feeds.
+    private static final int UNALIGNED_OFFSET = 71;
+
+    private final BitSet mDroppedPids = new BitSet(NUM_PIDS);
+    private TsParser mParser;
+    private byte[] mData;
+    private int mFeedCount;
+    private int mFeedIndex;
+
+    @Setup(Level.Trial)
+    public void setUp(TsCorpus corpus) {
+        mDroppedPids.set(NULL_PID);
+        mParser =
+                new TsParser(
+                        new CountingOutputListener() {
+                            @Override
+                            public void onVctItemParsed(VctItem channel, List<PmtItem> pmtItems) {
+                                super.onVctItemParsed(channel, pmtItems);
+                                addElementaryStreamPids(pmtItems);
+                            }
+
+                            @Override
+                            public void onSdtItemParsed(SdtItem channel, List<PmtItem> pmtItems) {
+                                super.onSdtItemParsed(channel, pmtItems);
+                                addElementaryStreamPids(pmtItems);
+                            }
+                        },
+                        false);
+        // Learns the tables, so that the parser listens to the PIDs it does while watching.
+        byte[] data = corpus.getData();
+        mParser.feedTSData(data, 0, data.length);
+        mData = selectDroppedPackets(data);
+        mFeedCount = mData.length / TsCorpus.FEED_SIZE;
+        if (mFeedCount == 0) {
+            throw new IllegalArgumentException(
+                    "At least "
+                            + TsCorpus.PACKETS_PER_FEED
+                            + " packets of elementary streams are needed");
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TsCorpus.PACKETS_PER_FEED)
+    public void aligned() {
+        mParser.feedTSData(mData, nextFeedOffset(), TsCorpus.FEED_SIZE);
+    }
+
+    /** Feeds chunks which do not start on packet boundaries, as a file read may return. */
+    @Benchmark
+    @OperationsPerInvocation(TsCorpus.PACKETS_PER_FEED)
+    public void unaligned() {
+        int offset = nextFeedOffset();
+        if (offset == 0) {
+            // The last feed ended with the data, on a packet boundary.
+            mParser.feedTSData(mData, 0, UNALIGNED_OFFSET);
+        }
+        int length = Math.min(TsCorpus.FEED_SIZE, mData.length - offset - UNALIGNED_OFFSET);
+        mParser.feedTSData(mData, offset + UNALIGNED_OFFSET, length);
+    }
+
+    private void addElementaryStreamPids(List<PmtItem> pmtItems) {
+        if (pmtItems == null) {
+            return;
+        }
+        for (PmtItem item : pmtItems) {
+            mDroppedPids.set(item.getEsPid());
+        }
+    }
+
+    /** Returns the packets of the dropped PIDs in the data, truncated to whole feeds. */
+    private byte[] selectDroppedPackets(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+        for (int pos = 0; pos + TsCorpus.TS_PACKET_SIZE <= data.length;
+                pos += TsCorpus.TS_PACKET_SIZE) {
+            int pid = ((data[pos + 1] & 0x1f) << 8) | (data[pos + 2] & 0xff);
+            if (mDroppedPids.get(pid)) {
+                out.write(data, pos, TsCorpus.TS_PACKET_SIZE);
+            }
+        }
+        byte[] packets = out.toByteArray();
+        int length = packets.length - packets.length % TsCorpus.FEED_SIZE;
+        byte[] feeds = new byte[length];
+        System.arraycopy(packets, 0, feeds, 0, length);
+        return feeds;
+    }
+
+    private int nextFeedOffset() {
+        int offset = mFeedIndex * TsCorpus.FEED_SIZE;
+        mFeedIndex = (mFeedIndex + 1) % mFeedCount;
+        return offset;
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures {@link TsParser} once the tables are known, as while watching a channel: the sections
+ * are assembled from the packets, and dropped unless their version changes. The score is in
+ * packets/sec, and the tables/sec and events/sec are reported as secondary results.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SectionAssemblyBenchmark {
+    private final CountingOutputListener mListener = new CountingOutputListener();
+    private TsParser mParser;
+    private byte[] mData;
+    private int mFeedCount;
+    private int mFeedIndex;
+
+    @Setup(Level.Trial)
+    public void setUp(TsCorpus corpus) {
+        mData = corpus.getData();
+        mFeedCount = corpus.getFeedCount();
+        mParser = new TsParser(mListener, false);
+        // Learns the tables before measuring.
+        mParser.feedTSData(mData, 0, mData.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(TsCorpus.PACKETS_PER_FEED)
+    public void knownTables(ParseCounters counters) {
+        long tableCount = mListener.tableCount;
+        long eventCount = mListener.eventCount;
+        mParser.feedTSData(mData, mFeedIndex * TsCorpus.FEED_SIZE, TsCorpus.FEED_SIZE);
+        mFeedIndex = (mFeedIndex + 1) % mFeedCount;
+        counters.tables += mListener.tableCount - tableCount;
+        counters.events += mListener.eventCount - eventCount;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Compares the {@link SectionCrc} implementations over sections of typical sizes. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SectionCrcBenchmark {
+    // A short PAT, a PSI section of the maximum size, and an EIT section of the maximum size.
+    @Param({"16", "1024", "4096"})
+    public int sectionSize;
+
+    private byte[] mSection;
+
+    @Setup
+    public void setUp() {
+        mSection = new byte[sectionSize];
+        new Random(sectionSize).nextBytes(mSection);
+        int crc = SectionCrc.BYTEWISE.compute(mSection, 0, sectionSize - 4);
+        mSection[sectionSize - 4] = (byte) (crc >>> 24);
+        mSection[sectionSize - 3] = (byte) (crc >>> 16);
+        mSection[sectionSize - 2] = (byte) (crc >>> 8);
+        mSection[sectionSize - 1] = (byte) crc;
+    }
+
+    @Benchmark
+    public int bytewise() {
+        return SectionCrc.BYTEWISE.compute(mSection, 0, sectionSize);
+    }
+
+    @Benchmark
+    public int slicingBy8() {
+        return SectionCrc.SLICING_BY_8.compute(mSection, 0, sectionSize);
+    }
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates an ATSC multiplex which resembles a capture of a broadcast: PAT, PMT, MGT, TVCT, EIT
+ * and ETT sections repeated every cycle, between audio and video packets which the parser skips.
+ * The EIT and ETT versions change half way, so both new and already known sections are parsed.
+ */
+public final class SyntheticMultiplex {
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int TS_PAYLOAD_SIZE = 184;
+    private static final int NUM_PIDS = 0x2000;
+
+    private static final int PAT_PID = 0x0000;
+    private static final int ATSC_SI_BASE_PID = 0x1ffb;
+    private static final int EIT_PID = 0x1d00;
+    private static final int ETT_PID = 0x1e00;
+    private static final int NULL_PID = 0x1fff;
+
+    private static final int TABLE_ID_PAT = 0x00;
+    private static final int TABLE_ID_PMT = 0x02;
+    private static final int TABLE_ID_MGT = 0xc7;
+    private static final int TABLE_ID_TVCT = 0xc8;
+    private static final int TABLE_ID_EIT = 0xcb;
+    private static final int TABLE_ID_ETT = 0xcc;
+
+    private static final int TRANSPORT_STREAM_ID = 0x10;
+    private static final int EVENTS_PER_CHANNEL = 8;
+    private static final long GPS_START_TIME = 1200000000L;
+    private static final int EVENT_LENGTH_IN_SECOND = 1800;
+
+    // A broadcast carries far more audio and video than tables; this keeps the tables at a few
+    // percent of the packets.
+    private static final int AV_PACKETS_PER_SI_PACKET = 20;
+
+    private final ByteArrayOutputStream mOut = new ByteArrayOutputStream();
+    private final int[] mContinuityCounters = new int[NUM_PIDS];
+    private final Random mRandom = new Random(0);
+    private final byte[] mAvPayload = new byte[TS_PAYLOAD_SIZE];
+    private final int mChannelCount;
+
+    private SyntheticMultiplex(int channelCount) {
+        mChannelCount = channelCount;
+    }
+
+    /**
+     * Returns the generated multiplex as 188-byte TS packets.
+     *
+     * @param channelCount the number of virtual channels
+     * @param cycleCount the number of times all the tables are sent
+     */
+    public static byte[] generate(int channelCount, int cycleCount) {
+        SyntheticMultiplex multiplex = new SyntheticMultiplex(channelCount);
+        for (int cycle = 0; cycle < cycleCount; ++cycle) {
+            multiplex.writeCycle(cycle < cycleCount / 2 ? 0 : 1);
+        }
+        return multiplex.mOut.toByteArray();
+    }
+
+    private void writeCycle(int version) {
+        writeSections(PAT_PID, Arrays.asList(pat()), false);
+        for (int program = 1; program <= mChannelCount; ++program) {
+            writeSections(pmtPid(program), Arrays.asList(pmt(program)), false);
+        }
+        writeSections(ATSC_SI_BASE_PID, Arrays.asList(mgt()), false);
+        writeSections(ATSC_SI_BASE_PID, tvct(), true);
+        List<byte[]> eits = new ArrayList<>();
+        List<byte[]> etts = new ArrayList<>();
+        for (int channel = 1; channel <= mChannelCount; ++channel) {
+            eits.add(eit(sourceId(channel), version));
+            for (int event = 1; event <= EVENTS_PER_CHANNEL; ++event) {
+                etts.add(ett(sourceId(channel), event, version));
+            }
+        }
+        writeSections(EIT_PID, eits, true);
+        writeSections(ETT_PID, etts, true);
+    }
+
+    private static int pmtPid(int program) {
+        return 0x100 * program;
+    }
+
+    private static int sourceId(int channel) {
+        return 1000 + channel;
+    }
+
+    private byte[] pat() {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int program = 1; program <= mChannelCount; ++program) {
+            write16(body, program);
+            write16(body, 0xe000 | pmtPid(program));
+        }
+        return section(TABLE_ID_PAT, TRANSPORT_STREAM_ID, 0, 0, 0, body);
+    }
+
+    private static byte[] pmt(int program) {
+        int videoPid = pmtPid(program) + 1;
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        write16(body, 0xe000 | videoPid); // PCR PID
+        write16(body, 0xf000);
+        body.write(0x02); // MPEG-2 video
+        write16(body, 0xe000 | videoPid);
+        write16(body, 0xf000);
+        byte[] ac3 = {(byte) 0x81, 4, 0x48, 0x0c, 0x0f, 0x00};
+        byte[] language = {0x0a, 4, 'e', 'n', 'g', 0};
+        body.write(0x81); // AC-3 audio
+        write16(body, 0xe000 | (videoPid + 1));
+        write16(body, 0xf000 | (ac3.length + language.length));
+        write(body, ac3);
+        write(body, language);
+        return section(TABLE_ID_PMT, program, 0, 0, 0, body);
+    }
+
+    private static byte[] mgt() {
+        int[][] tables = {{0x0000, ATSC_SI_BASE_PID}, {0x0100, EIT_PID}, {0x0200, ETT_PID}};
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(0); // protocol version
+        write16(body, tables.length);
+        for (int[] table : tables) {
+            write16(body, table[0]);
+            write16(body, 0xe000 | table[1]);
+            body.write(0xe0);
+            write(body, new byte[4]);
+            write16(body, 0xf000);
+        }
+        write16(body, 0xf000);
+        return section(TABLE_ID_MGT, 0, 0, 0, 0, body);
+    }
+
+    private List<byte[]> tvct() {
+        // Two sections, to exercise the tracking of the VCT section numbers.
+        List<byte[]> sections = new ArrayList<>();
+        int channelsPerSection = (mChannelCount + 1) / 2;
+        for (int sectionNumber = 0; sectionNumber < 2; ++sectionNumber) {
+            int first = sectionNumber * channelsPerSection + 1;
+            int last = Math.min(mChannelCount, first + channelsPerSection - 1);
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            body.write(0); // protocol version
+            body.write(last - first + 1);
+            for (int channel = first; channel <= last; ++channel) {
+                byte[] shortName = new byte[14];
+                byte[] name = ("CH" + channel).getBytes(StandardCharsets.UTF_16BE);
+                System.arraycopy(name, 0, shortName, 0, Math.min(name.length, shortName.length));
+                write(body, shortName);
+                int major = 10 + channel;
+                int minor = 1;
+                body.write(0xf0 | (major >> 6));
+                body.write(((major & 0x3f) << 2) | (minor >> 8));
+                body.write(minor);
+                body.write(0); // modulation mode
+                write(body, new byte[4]); // carrier frequency
+                write16(body, TRANSPORT_STREAM_ID);
+                write16(body, channel); // program number
+                // Neither access controlled nor hidden, and an ATSC digital television service.
+                body.write(0x0d);
+                body.write(0xc2);
+                write16(body, sourceId(channel));
+                byte[] longName = multipleStringStructure("Long Channel " + channel);
+                write16(body, 0xfc00 | (longName.length + 2));
+                body.write(0xa0); // extended channel name descriptor
+                body.write(longName.length);
+                write(body, longName);
+            }
+            write16(body, 0xfc00);
+            sections.add(section(TABLE_ID_TVCT, TRANSPORT_STREAM_ID, 0, sectionNumber, 1, body));
+        }
+        return sections;
+    }
+
+    private static byte[] eit(int sourceId, int version) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(0); // protocol version
+        body.write(EVENTS_PER_CHANNEL);
+        for (int event = 1; event <= EVENTS_PER_CHANNEL; ++event) {
+            write16(body, 0xc000 | event);
+            write32(body, GPS_START_TIME + (long) event * EVENT_LENGTH_IN_SECOND);
+            body.write(0xc0 | (EVENT_LENGTH_IN_SECOND >> 16));
+            write16(body, EVENT_LENGTH_IN_SECOND);
+            byte[] title =
+                    multipleStringStructure("Show " + sourceId + "-" + event + " v" + version);
+            body.write(title.length);
+            write(body, title);
+
+            ByteArrayOutputStream descriptors = new ByteArrayOutputStream();
+            // Content advisory: one US TV region with one rated dimension and its description.
+            byte[] ratingDescription = multipleStringStructure("TV-14");
+            byte[] advisory = {(byte) 0xc1, 1, 2, 0, (byte) 0xf4, 6, (byte) 0xf1};
+            descriptors.write(0x87);
+            descriptors.write(advisory.length + 1 + ratingDescription.length);
+            write(descriptors, advisory);
+            descriptors.write(ratingDescription.length);
+            write(descriptors, ratingDescription);
+            // Caption service: one CEA-708 service.
+            byte[] captions = {(byte) 0xe1, 'e', 'n', 'g', (byte) 0xc1, 0x3f, (byte) 0xff};
+            descriptors.write(0x86);
+            descriptors.write(captions.length);
+            write(descriptors, captions);
+            // Genre: two attributes.
+            byte[] genres = {(byte) 0xe2, 0x20, 0x25};
+            descriptors.write(0xab);
+            descriptors.write(genres.length);
+            write(descriptors, genres);
+            write16(body, 0xf000 | descriptors.size());
+            write(body, descriptors.toByteArray());
+        }
+        return section(TABLE_ID_EIT, sourceId, version, 0, 0, body);
+    }
+
+    private static byte[] ett(int sourceId, int eventId, int version) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(0); // protocol version
+        write16(body, sourceId);
+        write16(body, (eventId << 2) | 0x02);
+        write(
+                body,
+                multipleStringStructure(
+                        "Description of the show " + sourceId + "-" + eventId + " v" + version));
+        return section(TABLE_ID_ETT, (sourceId << 4) | eventId, version, 0, 0, body);
+    }
+
+    /** Returns a multiple string structure with a single uncompressed Latin-1 string. */
+    private static byte[] multipleStringStructure(String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.ISO_8859_1);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(1); // number of strings
+        write(out, new byte[] {'e', 'n', 'g'});
+        out.write(1); // number of segments
+        out.write(0); // no compression
+        out.write(0); // Latin-1
+        out.write(bytes.length);
+        write(out, bytes);
+        return out.toByteArray();
+    }
+
+    /** Returns a section with the long form header and a valid CRC_32 field. */
+    private static byte[] section(
+            int tableId,
+            int tableIdExtension,
+            int version,
+            int sectionNumber,
+            int lastSectionNumber,
+            ByteArrayOutputStream body) {
+        int sectionLength = 5 + body.size() + 4;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(tableId);
+        out.write(0xb0 | (sectionLength >> 8));
+        out.write(sectionLength);
+        write16(out, tableIdExtension);
+        out.write(0xc1 | (version << 1));
+        out.write(sectionNumber);
+        out.write(lastSectionNumber);
+        write(out, body.toByteArray());
+        write32(out, SectionCrc.BYTEWISE.compute(out.toByteArray(), 0, out.size()));
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the sections to the packets of the PID. When {@code packed}, a section may start in
+     * the middle of a packet after the previous one, otherwise each section starts a packet.
+     */
+    private void writeSections(int pid, List<byte[]> sections, boolean packed) {
+        if (!packed) {
+            for (byte[] section : sections) {
+                writeSections(pid, Arrays.asList(section), true);
+            }
+            return;
+        }
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        List<Integer> starts = new ArrayList<>();
+        for (byte[] section : sections) {
+            starts.add(all.size());
+            write(all, section);
+        }
+        byte[] data = all.toByteArray();
+        int pos = 0;
+        int nextStart = 0;
+        byte[] payload = new byte[TS_PAYLOAD_SIZE];
+        while (pos < data.length) {
+            while (nextStart < starts.size() && starts.get(nextStart) < pos) {
+                nextStart++;
+            }
+            boolean startIndicator =
+                    nextStart < starts.size() && starts.get(nextStart) < pos + TS_PAYLOAD_SIZE - 1;
+            int headerLength = startIndicator ? 1 : 0;
+            int length = Math.min(TS_PAYLOAD_SIZE - headerLength, data.length - pos);
+            Arrays.fill(payload, (byte) 0xff);
+            if (startIndicator) {
+                payload[0] = (byte) (starts.get(nextStart) - pos); // pointer field
+            }
+            System.arraycopy(data, pos, payload, headerLength, length);
+            writePacket(pid, startIndicator, payload);
+            pos += length;
+            writeAvPackets();
+        }
+    }
+
+    private void writeAvPackets() {
+        for (int i = 0; i < AV_PACKETS_PER_SI_PACKET; ++i) {
+            int channel = 1 + mRandom.nextInt(mChannelCount);
+            // Mostly video, some audio and a few null packets.
+            int choice = mRandom.nextInt(10);
+            int pid = choice == 0 ? NULL_PID : pmtPid(channel) + (choice < 8 ? 1 : 2);
+            mRandom.nextBytes(mAvPayload);
+            writePacket(pid, mRandom.nextInt(16) == 0, mAvPayload);
+        }
+    }
+
+    private void writePacket(int pid, boolean startIndicator, byte[] payload) {
+        mOut.write(0x47);
+        mOut.write((startIndicator ? 0x40 : 0) | (pid >> 8));
+        mOut.write(pid);
+        mOut.write(0x10 | mContinuityCounters[pid]);
+        mContinuityCounters[pid] = (mContinuityCounters[pid] + 1) & 0x0f;
+        mOut.write(payload, 0, TS_PAYLOAD_SIZE);
+    }
+
+    private static void write(ByteArrayOutputStream out, byte[] data) {
+        out.write(data, 0, data.length);
+    }
+
+    private static void write16(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static void write32(ByteArrayOutputStream out, long value) {
+        out.write((int) (value >> 24));
+        out.write((int) (value >> 16));
+        out.write((int) (value >> 8));
+        out.write((int) value);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Measures the extraction of the ATSC and DVB texts, e.g. the titles of the events, against
+ * decoding every text to a new String. With a few distinct texts, as repeated by a broadcast,
+ * most texts are found in the {@link TextDecodeCache}; with more distinct texts than the cache
+ * holds, most are decoded.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TextExtractionBenchmark {
+    @Param({"64", "8192"})
+    public int distinctTexts;
+
+    private byte[] mAtscData;
+    private int[] mAtscOffsets;
+    private byte[] mDvbData;
+    private int[] mDvbOffsets;
+    private int[] mDvbLengths;
+    private int mIndex;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        ByteArrayOutputStream atsc = new ByteArrayOutputStream();
+        // Starts with a byte which selects the default DVB character table.
+        ByteArrayOutputStream dvb = new ByteArrayOutputStream();
+        dvb.write(0x20);
+        mAtscOffsets = new int[distinctTexts];
+        mDvbOffsets = new int[distinctTexts];
+        mDvbLengths = new int[distinctTexts];
+        for (int i = 0; i < distinctTexts; ++i) {
+            byte[] text =
+                    ("Evening News " + i + ": Weather, Sports and Local Headlines")
+                            .getBytes(StandardCharsets.ISO_8859_1);
+            mAtscOffsets[i] = atsc.size();
+            atsc.write(1); // number of strings
+            atsc.write(new byte[] {'e', 'n', 'g'}, 0, 3);
+            atsc.write(1); // number of segments
+            atsc.write(0); // no compression
+            atsc.write(0); // Latin-1
+            atsc.write(text.length);
+            atsc.write(text, 0, text.length);
+            mDvbOffsets[i] = dvb.size();
+            mDvbLengths[i] = text.length;
+            dvb.write(text, 0, text.length);
+        }
+        mAtscData = atsc.toByteArray();
+        mDvbData = dvb.toByteArray();
+        SectionParser.getTextDecodeCache().clear();
+    }
+
+    @Benchmark
+    public String atscText() {
+        return SectionParser.extractText(mAtscData, mAtscOffsets[nextIndex()]);
+    }
+
+    @Benchmark
+    public String dvbText() {
+        int index = nextIndex();
+        return SectionParser.extractTextFromDvb(mDvbData, mDvbOffsets[index], mDvbLengths[index]);
+    }
+
+    /** Decodes the same text as {@link #dvbText} to a new String every time. */
+    @Benchmark
+    public String newString() {
+        int index = nextIndex();
+        return new String(
+                mDvbData, mDvbOffsets[index], mDvbLengths[index], StandardCharsets.ISO_8859_1);
+    }
+
+    private int nextIndex() {
+        int index = mIndex;
+        mIndex = (index + 1) % distinctTexts;
+        return index;
+    }
+}
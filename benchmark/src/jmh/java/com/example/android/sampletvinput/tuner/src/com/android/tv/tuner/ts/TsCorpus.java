@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.example.android.sampletvinput.tuner.src.com.android.tv.tuner.ts;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The TS data the benchmarks are fed with. By default a {@link SyntheticMultiplex} is used. A
+ * capture, e.g. a file stored by {@code TsStreamWriter}, can be given with the {@code tsFile}
+ * parameter:
+ *
+ * <pre>./gradlew :benchmark:jmh -PtsFile=/path/to/capture.ts</pre>
+ *
+ * <p>The benchmarks feed the data in chunks of {@link #PACKETS_PER_FEED} packets, and count an
+ * operation per packet. The data is truncated to whole chunks, and is fed again from the start
+ * once it is consumed.
+ */
+@State(Scope.Benchmark)
+public class TsCorpus {
+    public static final int TS_PACKET_SIZE = 188;
+
+    /** The number of packets in a chunk, which is about what a tuner read returns. */
+    public static final int PACKETS_PER_FEED = 64;
+
+    public static final int FEED_SIZE = TS_PACKET_SIZE * PACKETS_PER_FEED;
+
+    private static final int SYNTHETIC_CHANNEL_COUNT = 6;
+    private static final int SYNTHETIC_CYCLE_COUNT = 8;
+
+    /** The path of a captured TS file, or empty to use a synthetic multiplex. */
+    @Param("")
+    public String tsFile;
+
+    private byte[] mData;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        byte[] data;
+        if (tsFile.isEmpty()) {
+            data = SyntheticMultiplex.generate(SYNTHETIC_CHANNEL_COUNT, SYNTHETIC_CYCLE_COUNT);
+        } else {
+            data = Files.readAllBytes(Paths.get(tsFile));
+        }
+        int length = data.length - data.length % FEED_SIZE;
+        if (length == 0) {
+            throw new IllegalArgumentException(
+                    "At least " + PACKETS_PER_FEED + " TS packets are needed: " + tsFile);
+        }
+        mData = new byte[length];
+        System.arraycopy(data, 0, mData, 0, length);
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    /** Returns the number of chunks of {@link #FEED_SIZE} bytes in the data. */
+    public int getFeedCount() {
+        return mData.length / FEED_SIZE;
+    }
+}
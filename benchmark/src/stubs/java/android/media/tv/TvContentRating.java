@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.media.tv;
+
+/** Stand-in for the framework class on a plain JVM, which flattens ratings the same way. */
+public final class TvContentRating {
+    private static final String DELIMITER = "/";
+
+    private final String mFlattened;
+
+    private TvContentRating(String flattened) {
+        mFlattened = flattened;
+    }
+
+    public static TvContentRating createRating(
+            String domain, String ratingSystem, String rating, String... subRatings) {
+        StringBuilder builder = new StringBuilder(domain);
+        builder.append(DELIMITER).append(ratingSystem).append(DELIMITER).append(rating);
+        if (subRatings != null) {
+            for (String subRating : subRatings) {
+                builder.append(DELIMITER).append(subRating);
+            }
+        }
+        return new TvContentRating(builder.toString());
+    }
+
+    public String flattenToString() {
+        return mFlattened;
+    }
+}
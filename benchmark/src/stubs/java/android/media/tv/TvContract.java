@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.media.tv;
+
+/** Stand-in for the framework class on a plain JVM, limited to the program genres. */
+public final class TvContract {
+    private TvContract() {}
+
+    public static final class Programs {
+        private Programs() {}
+
+        public static final class Genres {
+            public static final String FAMILY_KIDS = "FAMILY_KIDS";
+            public static final String SPORTS = "SPORTS";
+            public static final String SHOPPING = "SHOPPING";
+            public static final String MOVIES = "MOVIES";
+            public static final String COMEDY = "COMEDY";
+            public static final String TRAVEL = "TRAVEL";
+            public static final String DRAMA = "DRAMA";
+            public static final String EDUCATION = "EDUCATION";
+            public static final String ANIMAL_WILDLIFE = "ANIMAL_WILDLIFE";
+            public static final String NEWS = "NEWS";
+            public static final String GAMING = "GAMING";
+            public static final String ARTS = "ARTS";
+            public static final String ENTERTAINMENT = "ENTERTAINMENT";
+            public static final String LIFE_STYLE = "LIFE_STYLE";
+            public static final String MUSIC = "MUSIC";
+            public static final String PREMIER = "PREMIER";
+            public static final String TECH_SCIENCE = "TECH_SCIENCE";
+
+            private Genres() {}
+
+            /** Joins the genres with commas. Unlike the framework, commas are not escaped. */
+            public static String encode(String... genres) {
+                return String.join(",", genres);
+            }
+        }
+    }
+}